@@ -0,0 +1,127 @@
+package com.github.mercurydb.benchmarks;
+
+import com.github.mercurydb.queryutils.HgDB;
+import com.github.mercurydb.queryutils.HgSubscriber;
+import com.github.mercurydb.queryutils.HgSubscription;
+import org.openjdk.jmh.annotations.*;
+import weborders.db.CustomerTable;
+import weborders.db.OdetailTable;
+import weborders.db.OrderTable;
+import weborders.source.Customer;
+import weborders.source.Odetail;
+import weborders.source.Order;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The generated insert, remove and updateNewValue* paths. Update
+ * benchmarks go through the instrumented setters so that both the
+ * removeStaleValue* and updateNewValue* hooks run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IndexMaintenanceBenchmark {
+    private Order order;
+    private Odetail odetail;
+    private Customer customer;
+    private int toggle;
+
+    /**
+     * Subscriptions to single orders and to ranges of orders, none of
+     * which match the order inserted by the benchmarks.
+     */
+    @State(Scope.Benchmark)
+    public static class Subscriptions {
+        static final int SUBSCRIPTIONS = 1000;
+
+        final List<HgSubscription<Order>> subscriptions = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void subscribe(WebordersData data) {
+            HgSubscriber<Order> subscriber = new HgSubscriber<Order>() {
+                @Override
+                public void inserted(Order row) {
+                }
+
+                @Override
+                public void removed(Order row) {
+                }
+            };
+
+            for (int i = 0; i < SUBSCRIPTIONS; ++i) {
+                int ono = WebordersData.FIRST_ONO + i * 10;
+                subscriptions.add(HgDB.subscribe(subscriber, OrderTable.eq.ono(ono)));
+                subscriptions.add(HgDB.subscribe(subscriber, OrderTable.ge.ono(ono), OrderTable.lt.ono(ono + 10)));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            subscriptions.forEach(HgSubscription::close);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup(WebordersData data) {
+        // constructors insert through the hooks, so take these back out
+        order = new Order(WebordersData.FIRST_ONO - 1, data.customers[0], data.emps[0], "", "");
+        odetail = new Odetail(order, data.parts[0], 1);
+        OdetailTable.remove(odetail);
+        OrderTable.remove(order);
+
+        customer = data.customers[0];
+    }
+
+    @Benchmark
+    public void insertRemoveOrder() {
+        OrderTable.insert(order);
+        OrderTable.remove(order);
+    }
+
+    @Benchmark
+    public void insertRemoveOrderSubscribed(Subscriptions subscriptions) {
+        OrderTable.insert(order);
+        OrderTable.remove(order);
+    }
+
+    @Benchmark
+    public void insertRemoveOdetail() {
+        OdetailTable.insert(odetail);
+        OdetailTable.remove(odetail);
+    }
+
+    @Benchmark
+    public void updateOno(WebordersData data) {
+        Order o = data.orders[toggle++ % data.orders.length];
+        // moves the order between two buckets of the ordered ono index
+        o.setOno(o.getOno() ^ 1);
+    }
+
+    /**
+     * The same update, which also moves the tuples of the order in a
+     * materialized Order x Odetail view.
+     */
+    @Benchmark
+    public void updateOnoWithView(WebordersData data, JoinBenchmark.View view) {
+        Order o = data.orders[toggle++ % data.orders.length];
+        o.setOno(o.getOno() ^ 1);
+    }
+
+    @Benchmark
+    public void updateCname() {
+        customer.setName((toggle++ & 1) == 0 ? "Customer A" : "Customer B");
+    }
+
+    @Benchmark
+    public void updateNewValueOno(WebordersData data) {
+        Order o = data.orders[toggle++ % data.orders.length];
+        OrderTable.removeStaleValueOno(o);
+        OrderTable.updateNewValueOno(o);
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.mercurydb.benchmarks;
+
+import com.github.mercurydb.queryutils.*;
+import com.github.mercurydb.queryutils.joiners.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import weborders.db.OdetailTable;
+import weborders.db.OrderTable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Order x Odetail on ono through every joiner in queryutils.joiners,
+ * plus the planner entry point {@link HgDB#join}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JoinBenchmark {
+
+    /**
+     * Number of orders fed to the nested loops join, which is quadratic.
+     */
+    @Param({"100"})
+    public int nestedLoopsRows;
+
+    /**
+     * Keeps Order x Odetail materialized for the benchmarks which take it.
+     */
+    @State(Scope.Benchmark)
+    public static class View {
+        HgJoinView view;
+
+        @Setup(Level.Trial)
+        public void open(WebordersData data) {
+            view = HgDB.materialize(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            view.close();
+        }
+    }
+
+    @Benchmark
+    public long hgdbJoin(WebordersData data, Blackhole bh) {
+        return consume(HgDB.join(OrderTable.on.ono(), OdetailTable.on.ono()), bh);
+    }
+
+    @Benchmark
+    public long materializedView(View view, Blackhole bh) {
+        return consume(view.view.stream(), bh);
+    }
+
+    @Benchmark
+    public long indexScan(WebordersData data, Blackhole bh) {
+        return consume(new JoinIndexScan(new JoinPredicate(
+                noIndexStream(OrderTable.on.ono()),
+                OdetailTable.on.ono())), bh);
+    }
+
+    /**
+     * Range join against the ordered ono index. The orders are limited
+     * to the first nestedLoopsRows so that the result stays small.
+     */
+    /**
+     * The same join as indexScan, read a batch at a time.
+     */
+    @Benchmark
+    public long indexScanBatches(WebordersData data, Blackhole bh) {
+        return consumeBatches(new JoinIndexScan(new JoinPredicate(
+                noIndexStream(OrderTable.on.ono()),
+                OdetailTable.on.ono())), bh);
+    }
+
+    /**
+     * The same join as indexScan, overwriting a single tuple.
+     */
+    @Benchmark
+    public long indexScanReused(WebordersData data, Blackhole bh) {
+        return consume(new JoinIndexScan(new JoinPredicate(
+                noIndexStream(OrderTable.on.ono()),
+                OdetailTable.on.ono())).reuseTuples(), bh);
+    }
+
+    @Benchmark
+    public long sortMergeReused(WebordersData data, Blackhole bh) {
+        return consume(new JoinSortMerge(new JoinPredicate(
+                OrderTable.on.ono(),
+                OdetailTable.on.ono())).reuseTuples(), bh);
+    }
+
+    @Benchmark
+    public long indexScanGt(WebordersData data, Blackhole bh) {
+        return consume(new JoinIndexScan(new JoinPredicate(
+                HgDB.query(OrderTable.lt.ono(WebordersData.FIRST_ONO + nestedLoopsRows))
+                        .joinOn(OrderTable.value.ono(OrderTable.ID)),
+                OdetailTable.on.ono(),
+                HgRelation.GT)), bh);
+    }
+
+    @Benchmark
+    public long sortMerge(WebordersData data, Blackhole bh) {
+        return consume(new JoinSortMerge(new JoinPredicate(
+                OrderTable.on.ono(),
+                OdetailTable.on.ono())), bh);
+    }
+
+    @Benchmark
+    public long tempIndexScan(WebordersData data, Blackhole bh) {
+        return consume(new JoinTempIndexScan(new JoinPredicate(
+                noIndexStream(OrderTable.on.ono()),
+                noIndexStream(OdetailTable.on.ono()))), bh);
+    }
+
+    @Benchmark
+    public long tempIndexScanBatches(WebordersData data, Blackhole bh) {
+        return consumeBatches(new JoinTempIndexScan(new JoinPredicate(
+                noIndexStream(OrderTable.on.ono()),
+                noIndexStream(OdetailTable.on.ono()))), bh);
+    }
+
+    @Benchmark
+    public long nestedLoops(WebordersData data, Blackhole bh) {
+        return consume(new JoinNestedLoops(new JoinPredicate(
+                HgDB.query(OrderTable.lt.ono(WebordersData.FIRST_ONO + nestedLoopsRows))
+                        .joinOn(OrderTable.value.ono(OrderTable.ID)),
+                noIndexStream(OdetailTable.on.ono()))), bh);
+    }
+
+    @Benchmark
+    public long filter(WebordersData data, Blackhole bh) {
+        HgPolyTupleStream joined = HgDB.join(OrderTable.on.ono(), OdetailTable.on.ono());
+        return consume(new JoinFilter(new JoinPredicate(
+                joined.joinOn(OrderTable.value.ono(OrderTable.ID)),
+                OdetailTable.on.ono())), bh);
+    }
+
+    @Benchmark
+    public long indexIntersection(WebordersData data, Blackhole bh) {
+        return consume(new JoinIndexIntersection(new JoinPredicate(
+                OrderTable.on.ono(),
+                OdetailTable.on.ono())), bh);
+    }
+
+    static long consume(HgTupleStream stream, Blackhole bh) {
+        long count = 0;
+        for (HgTupleStream.HgTuple t : stream) {
+            bh.consume(t);
+            ++count;
+        }
+        return count;
+    }
+
+    static long consumeBatches(HgTupleStream stream, Blackhole bh) {
+        long count = 0;
+        HgTupleBatch batch = stream.newBatch();
+        while (stream.nextBatch(batch)) {
+            bh.consume(batch);
+            count += batch.size();
+        }
+        return count;
+    }
+
+    static HgTupleStream noIndexStream(HgTupleStream src) {
+        return new HgWrappedTupleStream(src) {
+            @Override
+            public boolean isIndexed() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.mercurydb.benchmarks;
+
+import com.github.mercurydb.queryutils.HgAggregate;
+import com.github.mercurydb.queryutils.HgAggregateResult;
+import com.github.mercurydb.queryutils.HgAggregation;
+import com.github.mercurydb.queryutils.HgDB;
+import com.github.mercurydb.queryutils.HgOrder;
+import com.github.mercurydb.queryutils.HgParameter;
+import com.github.mercurydb.queryutils.HgPreparedQuery;
+import com.github.mercurydb.queryutils.HgStream;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import weborders.db.CustomerTable;
+import weborders.db.OdetailTable;
+import weborders.db.OrderTable;
+import weborders.db.PartTable;
+import weborders.source.Customer;
+import weborders.source.Order;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single table queries through {@link HgDB#query} and {@link HgDB#top},
+ * and aggregates through {@link HgDB#count} and {@link HgAggregation}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+    private HgPreparedQuery<Order> preparedEq;
+    private HgPreparedQuery<Customer> preparedMulti;
+    private HgPreparedQuery<Order> preparedRange;
+
+    /**
+     * Enables the query cache for the benchmarks which take this state.
+     */
+    @State(Scope.Benchmark)
+    public static class QueryCache {
+        /**
+         * Number of distinct ranges read by the cached benchmarks.
+         */
+        static final int HOT_RANGES = 256;
+
+        @Setup(Level.Trial)
+        public void enable() {
+            HgDB.setQueryCacheSize(2 * HOT_RANGES);
+        }
+
+        @TearDown(Level.Trial)
+        public void disable() {
+            HgDB.setQueryCacheSize(0);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void prepare(WebordersData data) {
+        preparedEq = HgDB.prepare(HgParameter.of(OrderTable.eq.ono(data.randomOno())));
+        preparedMulti = HgDB.prepare(
+                HgParameter.of(CustomerTable.eq.cname("Customer 0")),
+                HgParameter.of(CustomerTable.ge.street("5")));
+        preparedRange = HgDB.prepare(
+                HgParameter.of(OrderTable.ge.ono(WebordersData.FIRST_ONO)),
+                HgParameter.of(OrderTable.lt.ono(WebordersData.FIRST_ONO + 100)));
+    }
+
+    @Benchmark
+    public long indexedEq(WebordersData data, Blackhole bh) {
+        return consume(HgDB.query(OrderTable.eq.ono(data.randomOno())), bh);
+    }
+
+    @Benchmark
+    public long preparedEq(WebordersData data, Blackhole bh) {
+        return consume(preparedEq.execute(data.randomOno()), bh);
+    }
+
+    @Benchmark
+    public long indexedRange(WebordersData data, Blackhole bh) {
+        int lo = data.randomOno();
+        return consume(HgDB.query(OrderTable.ge.ono(lo), OrderTable.lt.ono(lo + 100)), bh);
+    }
+
+    @Benchmark
+    public long indexedMulti(WebordersData data, Blackhole bh) {
+        return consume(HgDB.query(
+                CustomerTable.eq.cname("Customer " + data.random.nextInt(data.customers.length)),
+                CustomerTable.ge.street("5")), bh);
+    }
+
+    @Benchmark
+    public long preparedRange(WebordersData data, Blackhole bh) {
+        int lo = WebordersData.FIRST_ONO + data.random.nextInt(QueryCache.HOT_RANGES);
+        return consume(preparedRange.execute(lo, lo + 100), bh);
+    }
+
+    @Benchmark
+    public long preparedRangeCached(WebordersData data, QueryCache cache, Blackhole bh) {
+        int lo = WebordersData.FIRST_ONO + data.random.nextInt(QueryCache.HOT_RANGES);
+        return consume(preparedRange.execute(lo, lo + 100), bh);
+    }
+
+    @Benchmark
+    public long preparedMulti(WebordersData data, Blackhole bh) {
+        return consume(preparedMulti.execute("Customer " + data.random.nextInt(data.customers.length), "5"), bh);
+    }
+
+    @Benchmark
+    public long unindexedScan(WebordersData data, Blackhole bh) {
+        return consume(HgDB.query(OdetailTable.lt.qty(data.random.nextInt(10))), bh);
+    }
+
+    @Benchmark
+    public long unindexedScanTyped(WebordersData data, Blackhole bh) {
+        return consume(HgDB.query(
+                PartTable.le.price(data.random.nextInt(20) + 5.5),
+                PartTable.ge.pname("Part " + data.random.nextInt(10))), bh);
+    }
+
+    @Benchmark
+    public long unindexedScanCompiled(WebordersData data, Blackhole bh) {
+        return consume(HgDB.queryCompiled(
+                PartTable.le.price(data.random.nextInt(20) + 5.5),
+                PartTable.ge.pname("Part " + data.random.nextInt(10))), bh);
+    }
+
+    /**
+     * Unindexed queries of several shapes, as a service would run them,
+     * so that the call sites of the stream filters see many predicate classes.
+     */
+    @Benchmark
+    public long mixedShapes(WebordersData data, Blackhole bh) {
+        int qty = data.random.nextInt(10);
+        return consume(HgDB.query(OdetailTable.lt.qty(qty)), bh)
+                + consume(HgDB.query(OdetailTable.eq.qty(qty), OdetailTable.ne.ono(data.randomOno())), bh)
+                + consume(HgDB.query(PartTable.le.price(qty + 5.5)), bh)
+                + consume(HgDB.query(PartTable.gt.qoh(qty * 30), PartTable.ge.pname("Part " + qty)), bh);
+    }
+
+    @Benchmark
+    public long mixedShapesCompiled(WebordersData data, Blackhole bh) {
+        int qty = data.random.nextInt(10);
+        return consume(HgDB.queryCompiled(OdetailTable.lt.qty(qty)), bh)
+                + consume(HgDB.queryCompiled(OdetailTable.eq.qty(qty), OdetailTable.ne.ono(data.randomOno())), bh)
+                + consume(HgDB.queryCompiled(PartTable.le.price(qty + 5.5)), bh)
+                + consume(HgDB.queryCompiled(PartTable.gt.qoh(qty * 30), PartTable.ge.pname("Part " + qty)), bh);
+    }
+
+    @Benchmark
+    public long unindexedPredicate(WebordersData data, Blackhole bh) {
+        String prefix = "Part " + data.random.nextInt(10);
+        return consume(HgDB.query(PartTable.predicates.pname(n -> n.startsWith(prefix))), bh);
+    }
+
+    @Benchmark
+    public long unindexedPredicateParallel(WebordersData data) {
+        String prefix = "Part " + data.random.nextInt(10);
+        return HgDB.query(PartTable.predicates.pname(n -> n.startsWith(prefix))).parallel().count();
+    }
+
+    @Benchmark
+    public long indexedRangeParallel(WebordersData data) {
+        int lo = data.randomOno();
+        return HgDB.query(OrderTable.ge.ono(lo), OrderTable.lt.ono(lo + 100)).parallel().count();
+    }
+
+    @Benchmark
+    public long topIndexed(WebordersData data, Blackhole bh) {
+        return consume(HgDB.top(HgOrder.desc(OrderTable.value.ono(OrderTable.ID)), 50), bh);
+    }
+
+    @Benchmark
+    public long topIndexedFiltered(WebordersData data, Blackhole bh) {
+        return consume(HgDB.top(HgOrder.desc(OdetailTable.value.ono(OdetailTable.ID)), 50,
+                OdetailTable.lt.qty(data.random.nextInt(10) + 1)), bh);
+    }
+
+    @Benchmark
+    public long topUnindexed(WebordersData data, Blackhole bh) {
+        return consume(HgDB.top(HgOrder.desc(OdetailTable.value.qty(OdetailTable.ID)), 50), bh);
+    }
+
+    @Benchmark
+    public long sortedUnindexed(WebordersData data, Blackhole bh) {
+        return consume(OdetailTable.stream().sorted(HgOrder.desc(OdetailTable.value.qty(OdetailTable.ID))).limit(50), bh);
+    }
+
+    @Benchmark
+    public long indexedRangeCount(WebordersData data) {
+        int lo = data.randomOno();
+        return HgDB.count(OrderTable.ge.ono(lo), OrderTable.lt.ono(lo + 100));
+    }
+
+    @Benchmark
+    public Map<Object, HgAggregateResult> groupedSum(WebordersData data) {
+        return HgAggregation.over(OdetailTable.stream())
+                .groupBy(OdetailTable.value.ono(OdetailTable.ID))
+                .aggregate(HgAggregate.count(), HgAggregate.sum(OdetailTable.value.qty(OdetailTable.ID)));
+    }
+
+    @Benchmark
+    public Map<Object, HgAggregateResult> groupedSumParallel(WebordersData data) {
+        return HgAggregation.over(OdetailTable.stream())
+                .groupBy(OdetailTable.value.ono(OdetailTable.ID))
+                .parallel()
+                .aggregate(HgAggregate.count(), HgAggregate.sum(OdetailTable.value.qty(OdetailTable.ID)));
+    }
+
+    static <T> long consume(HgStream<T> stream, Blackhole bh) {
+        long count = 0;
+        for (T t : stream) {
+            bh.consume(t);
+            ++count;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.mercurydb.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import weborders.db.*;
+import weborders.source.*;
+
+import java.util.Random;
+
+/**
+ * Shared benchmark state which populates the weborders tables. The
+ * bytecode hooks insert every constructed object into its table, so
+ * creating the objects is enough to fill the database. Everything is
+ * removed again on tear down so that the static tables do not grow
+ * from one trial to the next.
+ *
+ * The scale is controlled by the rows parameter, which is the number
+ * of orders. There are two order details per order on average.
+ */
+@State(Scope.Benchmark)
+public class WebordersData {
+    public static final int FIRST_ONO = 1000;
+
+    @Param({"10000"})
+    public int rows;
+
+    /**
+     * Seed for the random data so that runs are comparable.
+     */
+    @Param({"42"})
+    public long seed;
+
+    public Zipcode[] zips;
+    public Employee[] emps;
+    public Customer[] customers;
+    public Part[] parts;
+    public Order[] orders;
+    public Odetail[] odetails;
+
+    public Random random;
+
+    @Setup(Level.Trial)
+    public void populate() {
+        random = new Random(seed);
+
+        zips = new Zipcode[100];
+        for (int i = 0; i < zips.length; ++i) {
+            zips[i] = new Zipcode(50000 + i * 100, "City " + i);
+        }
+
+        emps = new Employee[100];
+        for (int i = 0; i < emps.length; ++i) {
+            emps[i] = new Employee(1000 + i, "Employee " + i, randomOf(zips), "01-JAN-95");
+        }
+
+        customers = new Customer[Math.max(1, rows / 10)];
+        for (int i = 0; i < customers.length; ++i) {
+            customers[i] = new Customer(i, "Customer " + random.nextInt(customers.length),
+                    random.nextInt(1000) + " Main St.", randomOf(zips), "316-555-" + i);
+        }
+
+        parts = new Part[1000];
+        for (int i = 0; i < parts.length; ++i) {
+            parts[i] = new Part(10000 + i, "Part " + i, random.nextInt(300),
+                    5 + random.nextInt(20) + 0.99, 20);
+        }
+
+        orders = new Order[rows];
+        for (int i = 0; i < orders.length; ++i) {
+            orders[i] = new Order(FIRST_ONO + i, randomOf(customers), randomOf(emps),
+                    "01-JAN-15", "02-JAN-15");
+        }
+
+        odetails = new Odetail[rows * 2];
+        for (int i = 0; i < odetails.length; ++i) {
+            odetails[i] = new Odetail(randomOf(orders), randomOf(parts), random.nextInt(10));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void clear() {
+        for (Odetail o : odetails) OdetailTable.remove(o);
+        for (Order o : orders) OrderTable.remove(o);
+        for (Part p : parts) PartTable.remove(p);
+        for (Customer c : customers) CustomerTable.remove(c);
+        for (Employee e : emps) EmployeeTable.remove(e);
+        for (Zipcode z : zips) ZipcodeTable.remove(z);
+    }
+
+    /**
+     * @return an order number which is present in the order table
+     */
+    public int randomOno() {
+        return FIRST_ONO + random.nextInt(rows);
+    }
+
+    public <T> T randomOf(T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
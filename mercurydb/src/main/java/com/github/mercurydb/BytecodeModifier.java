@@ -55,8 +55,10 @@ public class BytecodeModifier {
                             _tableClass,
                             Utils.upperFirst(value));
 
+                    // run the update hook even if the method throws, so that
+                    // the value is indexed again and a snapshot write is ended
                     m.insertBefore(removeHook);
-                    m.insertAfter(updateHook);
+                    m.insertAfter(updateHook, true);
 
                 } else {
                     throw new IllegalStateException(
@@ -1,7 +1,9 @@
 package com.github.mercurydb;
 
+import com.github.mercurydb.annotations.HgCompositeIndex;
 import com.github.mercurydb.annotations.HgIndexStyle;
 import com.github.mercurydb.annotations.HgValue;
+import com.github.mercurydb.queryutils.indexes.PrimitiveKey;
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheFactory;
@@ -9,6 +11,7 @@ import com.github.mustachejava.MustacheFactory;
 import java.io.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class ClassToTableExtractor {
     public final Class<?> c;
@@ -21,6 +24,8 @@ public class ClassToTableExtractor {
 
     public List<ValueData> values;
 
+    public List<CompositeData> composites;
+
     public String packageName;
 
     public String tableSuffix;
@@ -29,30 +34,74 @@ public class ClassToTableExtractor {
 
     public int joinId;
 
+    public final boolean concurrent;
+
+    public final boolean snapshot;
+
+    public final boolean weak;
+
     public ClassToTableExtractor(
             Class<?> c,
             String superTable,
             Collection<String> subClassTables,
             String tableSuffix,
-            int joinId) throws IOException {
+            int joinId,
+            boolean concurrent,
+            boolean snapshot,
+            boolean weak) throws IOException {
 
         this.c = c;
         this.hasSuper = superTable != null;
         this.cSuper = superTable;
         this.tableSuffix = tableSuffix;
         this.joinId = joinId;
+        this.concurrent = concurrent;
+        this.snapshot = snapshot;
+        this.weak = weak;
 
         this.values = new ArrayList<>();
+        this.composites = new ArrayList<>();
         this.constructors = new ArrayList<>();
 
         this.subClasses = subClassTables;
         populateValuesList();
+        populateCompositesList();
         //populateConstructorsList();
     }
 
     private void populateValuesList() {
         MercuryBootstrap.getHgValues(c).values().stream()
-                .forEach(hgV -> values.add(new ValueData(hgV.annotation, hgV.method)));
+                .forEach(hgV -> values.add(new ValueData(hgV.annotation, hgV.method, concurrent)));
+    }
+
+    private void populateCompositesList() {
+        Map<String, ValueData> valueMap = new HashMap<>();
+        values.forEach(v -> valueMap.put(v.name, v));
+
+        for (HgCompositeIndex ci : c.getDeclaredAnnotationsByType(HgCompositeIndex.class)) {
+            List<ValueData> components = new ArrayList<>();
+            for (String name : ci.value()) {
+                ValueData v = valueMap.get(name);
+                if (v == null) {
+                    throw new IllegalStateException(String.format(
+                            "Cannot find @HgValue(\"%s\") of @HgCompositeIndex on %s", name, c.getName()));
+                } else if (components.contains(v)) {
+                    throw new IllegalStateException(String.format(
+                            "Cannot use @HgValue(\"%s\") more than once in @HgCompositeIndex on %s", name, c.getName()));
+                }
+                components.add(v);
+            }
+
+            if (components.size() < 2 || ci.index() == HgIndexStyle.UNINDEXED) {
+                throw new IllegalStateException(String.format(
+                        "@HgCompositeIndex on %s must name at least two values and be ORDERED or UNORDERED",
+                        c.getName()));
+            }
+
+            CompositeData composite = new CompositeData(ci, components);
+            composites.add(composite);
+            components.forEach(v -> v.composites.add(composite));
+        }
     }
 
     // TODO unused for now, but should be used later in conjunction with ConstructorData
@@ -109,18 +158,41 @@ public class ClassToTableExtractor {
         boolean hasIndex;
         boolean isOrdered;
 
-        ValueData(HgValue value, Method valueMethod) {
+        /**
+         * Name of the PrimitiveKey constant for int, long and double
+         * values, which get primitive indexes and seeds, or null.
+         */
+        String primitiveKey;
+        boolean isPrimitive;
+        boolean isPrimitiveIndex;
+
+        /**
+         * Composite indexes whose key includes this value.
+         */
+        List<CompositeData> composites = new ArrayList<>();
+
+        ValueData(HgValue value, Method valueMethod, boolean concurrent) {
             this.valueMethod = valueMethod;
             hgValueMethod = valueMethod.getName() + "()";
             valueType = valueMethod.getGenericReturnType();
             rawType = valueType.getTypeName();
             name = value.value();
 
+            PrimitiveKey key = PrimitiveKey.forTypeName(rawType);
+            if (key != null) {
+                primitiveKey = key.name();
+                isPrimitive = true;
+            }
+
             // fetch HgIndex annotation
             if (value.index() != HgIndexStyle.UNINDEXED) {
                 hasIndex = true;
+                // primitive indexes are not thread-safe
+                isPrimitiveIndex = isPrimitive && !concurrent;
+                // primitives are always comparable once boxed
                 isOrdered = value.index() == HgIndexStyle.ORDERED &&
-                        Comparable.class.isAssignableFrom(valueMethod.getReturnType());
+                        (valueMethod.getReturnType().isPrimitive() ||
+                                Comparable.class.isAssignableFrom(valueMethod.getReturnType()));
             }
         }
 
@@ -152,6 +224,33 @@ public class ClassToTableExtractor {
             return Utils.upperFirst(name);
         }
 
+        /**
+         * @return true if the relations of this value are generated as
+         * TypedValueRelations, which is for int, long, double and String
+         */
+        @SuppressWarnings("unused") // used in template.java.mustache
+        boolean isTyped() {
+            return isPrimitive || rawType.equals(String.class.getName());
+        }
+
+        /**
+         * @return true if a change of this value must update an index
+         */
+        @SuppressWarnings("unused") // used in template.java.mustache
+        boolean maintained() {
+            return hasIndex || !composites.isEmpty();
+        }
+
+        @SuppressWarnings("unused") // used in template.java.mustache
+        boolean hasComposites() {
+            return !composites.isEmpty();
+        }
+
+        @SuppressWarnings("unused") // used in template.java.mustache
+        String compositeList() {
+            return composites.stream().map(cd -> cd.name).collect(Collectors.joining(", "));
+        }
+
         @Override
         @SuppressWarnings("NullableProblems") // parameter "o" can be null or non-null
         public int compareTo(ValueData o) {
@@ -163,6 +262,40 @@ public class ClassToTableExtractor {
         }
     }
 
+    private static class CompositeData {
+        /**
+         * Name of the CompositeIndex constant, e.g. onoQtyComposite
+         */
+        String name;
+        boolean isOrdered;
+        List<ValueData> components;
+
+        CompositeData(HgCompositeIndex composite, List<ValueData> components) {
+            this.components = components;
+            this.name = components.get(0).name
+                    + components.stream().skip(1).map(ValueData::CCname).collect(Collectors.joining())
+                    + "Composite";
+            // primitives are always comparable once boxed
+            this.isOrdered = composite.index() == HgIndexStyle.ORDERED && components.stream()
+                    .map(v -> v.valueMethod.getReturnType())
+                    .allMatch(t -> t.isPrimitive() || Comparable.class.isAssignableFrom(t));
+        }
+
+        @SuppressWarnings("unused") // used in template.java.mustache
+        String keyArgs() {
+            return components.stream()
+                    .map(v -> "val." + v.hgValueMethod)
+                    .collect(Collectors.joining(", "));
+        }
+
+        @SuppressWarnings("unused") // used in template.java.mustache
+        String valueNames() {
+            return components.stream()
+                    .map(v -> '"' + v.name + '"')
+                    .collect(Collectors.joining(", "));
+        }
+    }
+
     public String fullSourceClass() {
         return c.getName();
     }
@@ -27,6 +27,12 @@ public class Main {
         options.addOption(opt);
         opt = new Option("sx", "suffix", true, "Specify output file suffix. Default is *Table");
         opt.setRequired(false);
+        opt = new Option("c", "concurrent", false, "Generate thread-safe tables which can be used without external locking.");
+        options.addOption(opt);
+        opt = new Option("s", "snapshot", false, "Generate concurrent tables with snapshot isolated reads. Implies --concurrent.");
+        options.addOption(opt);
+        opt = new Option("w", "weak", false, "Generate tables which drop rows once they are garbage collected. Not with --concurrent.");
+        options.addOption(opt);
 
         CommandLineParser parser = new DefaultParser();
 
@@ -48,6 +54,9 @@ public class Main {
             if (suffix != null) {
                 bs.setTableSuffix(suffix);
             }
+            bs.setConcurrent(cmd.hasOption("c"));
+            bs.setSnapshot(cmd.hasOption("s"));
+            bs.setWeak(cmd.hasOption("w"));
             if (cmd.hasOption("ih")) {
                 String hooksBaseDir = cmd.getOptionValue("ih", "build/classes/main");
                 bs.insertBytecodeHooks(hooksBaseDir);
@@ -42,6 +42,21 @@ public class MercuryBootstrap {
      */
     private String tableSuffix = "Table";
 
+    /**
+     * Generate thread-safe tables
+     */
+    private boolean concurrent = false;
+
+    /**
+     * Generate concurrent tables with snapshot isolated reads
+     */
+    private boolean snapshot = false;
+
+    /**
+     * Generate tables which do not keep their rows reachable
+     */
+    private boolean weak = false;
+
     /**
      * Primary constructor for MercuryBootstrap.
      *
@@ -67,6 +82,47 @@ public class MercuryBootstrap {
         this.tableSuffix = suffix;
     }
 
+    /**
+     * Enables generation of thread-safe tables. Concurrent tables keep
+     * their rows and indexes in concurrent collections, so inserts,
+     * updates and queries may run on many threads at once without a
+     * global lock. Values of indexed fields must not be null in this
+     * mode. Default is false.
+     *
+     * @param concurrent true to generate concurrent tables
+     */
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Enables generation of snapshot tables, which are concurrent tables
+     * that keep multiple versions of their rows and indexes. Queries run
+     * inside an HgSnapshot see a consistent state of all tables while
+     * writers keep going. Default is false.
+     *
+     * @param snapshot true to generate snapshot tables
+     * @see com.github.mercurydb.queryutils.HgSnapshot
+     */
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Enables generation of weak tables, which hold their rows and the
+     * buckets of their indexes through weak references. Rows which are
+     * no longer reachable from the application are then collected and
+     * dropped from the table and its indexes at its next write, instead
+     * of having to be removed. Weak tables cannot be concurrent or
+     * snapshot tables. Default is false.
+     *
+     * @param weak true to generate weak tables
+     * @see com.github.mercurydb.queryutils.HgWeakIdentitySet
+     */
+    public void setWeak(boolean weak) {
+        this.weak = weak;
+    }
+
     /**
      * Retrieves all classes that can be converted into table classes
      * by this tool.
@@ -107,6 +163,10 @@ public class MercuryBootstrap {
      * @param dbDir  the base java (+package) directory to output tables into
      */
     public void generateTables(String dbDir) {
+        if (weak && (concurrent || snapshot)) {
+            throw new IllegalStateException("Weak tables cannot be concurrent or snapshot tables!");
+        }
+
         // Fetch appropriate class files
         Collection<Class<?>> classes = getSupportedClasses();
 
@@ -148,7 +208,7 @@ public class MercuryBootstrap {
 
             ClassToTableExtractor extractor;
             try {
-                extractor = new ClassToTableExtractor(cls, superTable, subTables, tableSuffix, joinId++);
+                extractor = new ClassToTableExtractor(cls, superTable, subTables, tableSuffix, joinId++, concurrent || snapshot, snapshot, weak);
                 extractor.extract(tablePath, tablePackage);
             } catch (IOException e) {
                 System.err.println(e.getMessage());
@@ -0,0 +1,23 @@
+package com.github.mercurydb.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares an index over the combined key of several @HgValue values
+ * of a class, named in the order of the key. The values need not be
+ * indexed themselves. Any setter of one of the values must carry an
+ * {@link HgUpdate} for the value, just like for a single value index.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Repeatable(HgCompositeIndexes.class)
+
+@SuppressWarnings("unused") // because this is a library annotation
+public @interface HgCompositeIndex {
+    String[] value();
+    HgIndexStyle index() default HgIndexStyle.UNORDERED;
+}
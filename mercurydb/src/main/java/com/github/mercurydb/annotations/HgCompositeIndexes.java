@@ -0,0 +1,17 @@
+package com.github.mercurydb.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Container of repeated {@link HgCompositeIndex} annotations.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+
+@SuppressWarnings("unused") // because this is a library annotation
+public @interface HgCompositeIndexes {
+    HgCompositeIndex[] value();
+}
@@ -1,5 +1,8 @@
 package com.github.mercurydb.queryutils;
 
+import com.github.mercurydb.queryutils.indexes.CompositeIndex;
+
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -17,6 +20,18 @@ public abstract class AbstractValueExtractablePredicate<T, F>
         this._fwdFE = fe;
     }
 
+    /**
+     * Tests the value of an instance. Subclasses which know the type of
+     * the value override this to read it without boxing.
+     *
+     * @param instance an instance of the table of the value
+     * @return the result of test() on the extracted value
+     */
+    @SuppressWarnings("unchecked") // for cast to (F)
+    public boolean testInstance(Object instance) {
+        return test((F) extractValue(instance));
+    }
+
     @Override
     public Class<?> getContainerClass() {
         return _fwdFE.getContainerClass();
@@ -37,6 +52,11 @@ public abstract class AbstractValueExtractablePredicate<T, F>
         return _fwdFE.getIndex();
     }
 
+    @Override
+    public HgIndexStatistics getStatistics() {
+        return _fwdFE.getStatistics();
+    }
+
     @Override
     public TableID<T> getTableId() {
         return _fwdFE.getTableId();
@@ -45,4 +65,14 @@ public abstract class AbstractValueExtractablePredicate<T, F>
     public HgStream<T> getDefaultStream() {
         return _fwdFE.getDefaultStream();
     }
+
+    @Override
+    public String getValueName() {
+        return _fwdFE.getValueName();
+    }
+
+    @Override
+    public List<CompositeIndex> getCompositeIndexes() {
+        return _fwdFE.getCompositeIndexes();
+    }
 }
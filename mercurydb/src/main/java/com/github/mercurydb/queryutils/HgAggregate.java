@@ -0,0 +1,190 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.indexes.PrimitiveKey;
+
+/**
+ * An aggregate function over one value of the rows of a stream, for
+ * {@link HgAggregation}. Values which are extracted by a
+ * PrimitiveValueExtractable are accumulated as encoded primitive keys,
+ * so int, long and double values are never boxed. Null values are
+ * ignored by every function but count.
+ *
+ * Results are a Long for count, a Long for sums of integral values and
+ * a Double for other sums, a Double for avg and the extracted value for
+ * min and max. Avg, min and max are null if no value was accumulated.
+ */
+public final class HgAggregate {
+    public enum Kind {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+
+    public final Kind kind;
+
+    /**
+     * The aggregated value, or null for count.
+     */
+    public final ValueExtractable value;
+
+    private HgAggregate(Kind kind, ValueExtractable value) {
+        this.kind = kind;
+        this.value = value;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public static HgAggregate count() {
+        return new HgAggregate(Kind.COUNT, null);
+    }
+
+    /**
+     * @param value a numeric value
+     * @return the sum of the values
+     */
+    public static HgAggregate sum(ValueExtractable value) {
+        return new HgAggregate(Kind.SUM, value);
+    }
+
+    /**
+     * @param value a Comparable value
+     * @return the least value
+     */
+    public static HgAggregate min(ValueExtractable value) {
+        return new HgAggregate(Kind.MIN, value);
+    }
+
+    /**
+     * @param value a Comparable value
+     * @return the greatest value
+     */
+    public static HgAggregate max(ValueExtractable value) {
+        return new HgAggregate(Kind.MAX, value);
+    }
+
+    /**
+     * @param value a numeric value
+     * @return the mean of the values
+     */
+    public static HgAggregate avg(ValueExtractable value) {
+        return new HgAggregate(Kind.AVG, value);
+    }
+
+    Accumulator newAccumulator() {
+        return new Accumulator();
+    }
+
+    /**
+     * The state of one aggregate function for one group.
+     */
+    final class Accumulator {
+        private long count;
+        private long longSum;
+        private double doubleSum;
+        private boolean isDouble;
+        private long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
+        private Object minValue, maxValue;
+
+        /**
+         * @param instance the instance of the table of the value
+         */
+        void add(Object instance) {
+            if (kind == Kind.COUNT) {
+                ++count;
+            } else if (value instanceof PrimitiveValueExtractable) {
+                PrimitiveValueExtractable pfe = (PrimitiveValueExtractable) value;
+                addKey(pfe.getKeyType(), pfe.extractKey(instance));
+            } else {
+                addValue(value.extractValue(instance));
+            }
+        }
+
+        private void addKey(PrimitiveKey keyType, long key) {
+            ++count;
+            switch (kind) {
+                case MIN:
+                    minKey = Math.min(minKey, key);
+                    break;
+                case MAX:
+                    maxKey = Math.max(maxKey, key);
+                    break;
+                default:
+                    if (keyType.isIntegral()) {
+                        longSum += key;
+                    } else {
+                        isDouble = true;
+                        doubleSum += keyType.decodeDouble(key);
+                    }
+            }
+        }
+
+        private void addValue(Object v) {
+            if (v != null) {
+                ++count;
+                accumulate(v);
+            }
+        }
+
+        @SuppressWarnings("unchecked") // min and max values must be Comparable
+        private void accumulate(Object v) {
+            switch (kind) {
+                case MIN:
+                    if (minValue == null || ((Comparable<Object>) v).compareTo(minValue) < 0) {
+                        minValue = v;
+                    }
+                    break;
+                case MAX:
+                    if (maxValue == null || ((Comparable<Object>) v).compareTo(maxValue) > 0) {
+                        maxValue = v;
+                    }
+                    break;
+                default:
+                    if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+                        longSum += ((Number) v).longValue();
+                    } else {
+                        isDouble = true;
+                        doubleSum += ((Number) v).doubleValue();
+                    }
+            }
+        }
+
+        /**
+         * Adds the state of another accumulator of the same function.
+         */
+        void merge(Accumulator o) {
+            count += o.count;
+            longSum += o.longSum;
+            doubleSum += o.doubleSum;
+            isDouble |= o.isDouble;
+            minKey = Math.min(minKey, o.minKey);
+            maxKey = Math.max(maxKey, o.maxKey);
+            if (o.minValue != null) {
+                accumulate(o.minValue);
+            }
+            if (o.maxValue != null) {
+                accumulate(o.maxValue);
+            }
+        }
+
+        Object result() {
+            boolean primitive = value instanceof PrimitiveValueExtractable;
+            switch (kind) {
+                case COUNT:
+                    return count;
+                case SUM:
+                    return isDouble ? (Object) (doubleSum + longSum) : (Object) longSum;
+                case AVG:
+                    return count == 0 ? null : (doubleSum + longSum) / count;
+                case MIN:
+                    if (primitive) {
+                        return count == 0 ? null : ((PrimitiveValueExtractable) value).getKeyType().decode(minKey);
+                    }
+                    return minValue;
+                default:
+                    if (primitive) {
+                        return count == 0 ? null : ((PrimitiveValueExtractable) value).getKeyType().decode(maxKey);
+                    }
+                    return maxValue;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.Arrays;
+
+/**
+ * The results of the aggregate functions of one group, in the order in
+ * which the functions were given to {@link HgAggregation#aggregate}.
+ */
+public final class HgAggregateResult {
+    private final Object[] results;
+
+    HgAggregateResult(Object[] results) {
+        this.results = results;
+    }
+
+    /**
+     * @return the number of aggregate functions
+     */
+    public int size() {
+        return results.length;
+    }
+
+    /**
+     * @param i the position of the aggregate function
+     * @return its result, which may be null
+     * @see HgAggregate
+     */
+    public Object get(int i) {
+        return results[i];
+    }
+
+    /**
+     * @param i the position of a count or integral aggregate function
+     * @return its result as a long, or 0 if there is none
+     */
+    public long getLong(int i) {
+        return results[i] == null ? 0 : ((Number) results[i]).longValue();
+    }
+
+    /**
+     * @param i the position of a numeric aggregate function
+     * @return its result as a double, or NaN if there is none
+     */
+    public double getDouble(int i) {
+        return results[i] == null ? Double.NaN : ((Number) results[i]).doubleValue();
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(results);
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.indexes.CompositeKey;
+
+import java.util.*;
+
+/**
+ * Hash aggregation over the rows of an HgStream or the tuples of an
+ * HgTupleStream. The rows are grouped by the values of zero or more
+ * ValueExtractables, and every group accumulates the given aggregate
+ * functions:
+ *
+ * <code>
+ * Map&lt;Object, HgAggregateResult&gt; perOrder = HgAggregation.over(OdetailTable.stream())
+ *     .groupBy(OdetailTable.value.ono(OdetailTable.ID))
+ *     .aggregate(HgAggregate.count(), HgAggregate.sum(OdetailTable.value.qty(OdetailTable.ID)));
+ * </code>
+ *
+ * The key of a group is the value of its single grouping value, or a
+ * CompositeKey of the values of several. The values of a tuple are
+ * extracted from the instance of the table of each ValueExtractable.
+ * Streams of rows may be aggregated in parallel, in which case every
+ * thread aggregates a part of the rows and the groups are merged.
+ * Tuple streams are always aggregated on the calling thread.
+ *
+ * @param <T> the type of the rows
+ * @see HgDB#count
+ * @see HgDB#min
+ * @see HgDB#max
+ */
+public class HgAggregation<T> {
+    private static final Object NO_GROUP = new Object();
+
+    private final HgStream<T> stream;
+    private final boolean tuples;
+    private ValueExtractable[] keys = new ValueExtractable[0];
+    private boolean parallel;
+
+    private HgAggregation(HgStream<T> stream) {
+        this.stream = stream;
+        this.tuples = stream instanceof HgTupleStream;
+    }
+
+    /**
+     * @param stream a stream of rows or an HgTupleStream
+     * @param <T> the type of the rows
+     * @return an aggregation of all rows of the stream
+     */
+    public static <T> HgAggregation<T> over(HgStream<T> stream) {
+        return new HgAggregation<>(stream);
+    }
+
+    /**
+     * @param keys the values to group the rows by
+     * @return this aggregation
+     */
+    public HgAggregation<T> groupBy(ValueExtractable... keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    /**
+     * Aggregates the rows of the stream on the common fork-join pool.
+     *
+     * @return this aggregation
+     * @see HgStream#parallel()
+     */
+    public HgAggregation<T> parallel() {
+        this.parallel = true;
+        return this;
+    }
+
+    /**
+     * @param aggregates the aggregate functions
+     * @return the results of the functions per group, by group key
+     */
+    public Map<Object, HgAggregateResult> aggregate(HgAggregate... aggregates) {
+        Map<Object, HgAggregate.Accumulator[]> groups;
+        if (parallel && !tuples) {
+            groups = stream.toJavaStream(true).collect(
+                    HashMap::new,
+                    (g, row) -> add(g, row, aggregates),
+                    HgAggregation::merge);
+        } else {
+            groups = new HashMap<>();
+            for (T row : stream) {
+                add(groups, row, aggregates);
+            }
+        }
+
+        Map<Object, HgAggregateResult> results = new HashMap<>(groups.size() * 4 / 3 + 1);
+        groups.forEach((key, accumulators) -> results.put(key, result(accumulators)));
+        return results;
+    }
+
+    /**
+     * Aggregates all rows of the stream as a single group, whether or
+     * not groupBy was called.
+     *
+     * @param aggregates the aggregate functions
+     * @return the results of the functions
+     */
+    public HgAggregateResult aggregateAll(HgAggregate... aggregates) {
+        ValueExtractable[] groupKeys = keys;
+        keys = new ValueExtractable[0];
+        try {
+            HgAggregateResult result = aggregate(aggregates).get(NO_GROUP);
+            return result != null ? result : result(accumulators(aggregates));
+        } finally {
+            keys = groupKeys;
+        }
+    }
+
+    private Object instance(Object row, ValueExtractable fe) {
+        return tuples ? ((HgTupleStream.HgTuple) row).get(fe.getTableId()) : row;
+    }
+
+    private Object groupKey(Object row) {
+        if (keys.length == 0) {
+            return NO_GROUP;
+        } else if (keys.length == 1) {
+            return keys[0].extractValue(instance(row, keys[0]));
+        }
+
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            values[i] = keys[i].extractValue(instance(row, keys[i]));
+        }
+        return CompositeKey.of(values);
+    }
+
+    private void add(Map<Object, HgAggregate.Accumulator[]> groups, Object row, HgAggregate[] aggregates) {
+        HgAggregate.Accumulator[] accumulators = groups.computeIfAbsent(groupKey(row), k -> accumulators(aggregates));
+        for (int i = 0; i < aggregates.length; ++i) {
+            HgAggregate aggregate = aggregates[i];
+            accumulators[i].add(aggregate.value == null ? null : instance(row, aggregate.value));
+        }
+    }
+
+    private static HgAggregate.Accumulator[] accumulators(HgAggregate[] aggregates) {
+        HgAggregate.Accumulator[] accumulators = new HgAggregate.Accumulator[aggregates.length];
+        for (int i = 0; i < aggregates.length; ++i) {
+            accumulators[i] = aggregates[i].newAccumulator();
+        }
+        return accumulators;
+    }
+
+    private static void merge(Map<Object, HgAggregate.Accumulator[]> into, Map<Object, HgAggregate.Accumulator[]> from) {
+        from.forEach((key, accumulators) -> into.merge(key, accumulators, (a, b) -> {
+            for (int i = 0; i < a.length; ++i) {
+                a[i].merge(b[i]);
+            }
+            return a;
+        }));
+    }
+
+    private static HgAggregateResult result(HgAggregate.Accumulator[] accumulators) {
+        Object[] results = new Object[accumulators.length];
+        for (int i = 0; i < accumulators.length; ++i) {
+            results[i] = accumulators[i].result();
+        }
+        return new HgAggregateResult(results);
+    }
+}
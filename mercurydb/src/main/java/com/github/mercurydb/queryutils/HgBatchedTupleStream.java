@@ -0,0 +1,68 @@
+package com.github.mercurydb.queryutils;
+
+/**
+ * A join whose tuples are produced a batch at a time by
+ * {@link #fillBatch(HgTupleBatch)}. hasNext() and next() are an adapter
+ * on top, which buffers one batch and creates an HgTuple per row, or
+ * overwrites a single one if tuples are reused.
+ */
+public abstract class HgBatchedTupleStream extends HgPolyTupleStream {
+    private HgTupleBatch buffer;
+    private int position;
+
+    public HgBatchedTupleStream(JoinPredicate predicate) {
+        super(predicate);
+    }
+
+    /**
+     * Replaces the contents of the batch with the next tuples of this
+     * join.
+     *
+     * @param batch a batch returned by {@link #newBatch()}
+     * @return false if there are no more tuples
+     * @see HgTupleStream#nextBatch(HgTupleBatch)
+     */
+    protected abstract boolean fillBatch(HgTupleBatch batch);
+
+    @Override
+    public final boolean hasNext() {
+        if (buffer == null) {
+            buffer = newBatch();
+        }
+
+        if (position == buffer.size()) {
+            position = 0;
+            return fillBatch(buffer);
+        }
+
+        return true;
+    }
+
+    @Override
+    public final HgTuple next() {
+        return tuple(buffer, position++);
+    }
+
+    @Override
+    public final boolean nextBatch(HgTupleBatch batch) {
+        if (buffer == null || position == buffer.size()) {
+            return fillBatch(batch);
+        }
+
+        // hand out the rest of the buffered batch first
+        batch.clear();
+        while (position < buffer.size() && !batch.isFull()) {
+            batch.add(buffer, position++);
+        }
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        if (buffer != null) {
+            buffer.clear();
+        }
+        position = 0;
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.mercurydb.queryutils;
+
+import com.google.common.collect.Iterables;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The rows in a range of index buckets. Iteration is lazy like
+ * Iterables.concat(), but the spliterator splits between the buckets
+ * so that queries over index ranges can run in parallel.
+ *
+ * @param <T> the type of the rows
+ */
+class HgBucketIterable<T> implements Iterable<T> {
+    private final Collection<? extends Collection<T>> buckets;
+
+    HgBucketIterable(Collection<? extends Collection<T>> buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return the number of rows in the buckets
+     */
+    long size() {
+        long size = 0;
+        for (Collection<T> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return Iterables.concat(buckets).iterator();
+    }
+
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        for (Collection<T> bucket : buckets) {
+            bucket.forEach(action);
+        }
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        return HgSpliterators.buckets(buckets);
+    }
+}
@@ -0,0 +1,288 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A Set which adapts its representation to its size. This is what the
+ * indexes of non-concurrent tables use as buckets, since most keys of
+ * an index such as ono or cno have a single row, for which a HashSet
+ * (a HashMap, its table and an entry) is several times the size of the
+ * row reference itself.
+ *
+ * A set holds one element as a bare reference, up to
+ * {@link #MAX_INLINE} elements in an array which is searched linearly,
+ * and more in a HashSet. It returns to an array once it shrinks to half
+ * of MAX_INLINE. Elements are compared with equals, like in a HashSet.
+ *
+ * Null elements are not permitted. Sets are not thread-safe.
+ *
+ * @param <E> the type of the elements
+ */
+public final class HgCompactSet<E> extends AbstractSet<E> {
+    /**
+     * Number of elements beyond which a set is kept in a HashSet.
+     */
+    public static final int MAX_INLINE = 8;
+
+    /*
+     * null if the set is empty, the element if it has one, an Object[]
+     * whose first size elements are used, or an Overflow. Only an
+     * Overflow can be told apart by its type, since the elements may be
+     * sets or arrays themselves.
+     */
+    private Object elements;
+    private int size;
+    private int modifications;
+
+    /**
+     * The HashSet of a set which has grown beyond MAX_INLINE elements.
+     */
+    private static final class Overflow<E> {
+        final HashSet<E> set;
+
+        Overflow(HashSet<E> set) {
+            this.set = set;
+        }
+    }
+
+    public HgCompactSet() {
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        if (size == 0) {
+            elements = e;
+        } else if (elements instanceof Overflow) {
+            if (!overflow().add(e)) {
+                return false;
+            }
+        } else if (size == 1) {
+            if (matches(elements, e)) {
+                return false;
+            }
+            Object[] array = new Object[4];
+            array[0] = elements;
+            array[1] = e;
+            elements = array;
+        } else {
+            Object[] array = (Object[]) elements;
+            if (indexOf(array, size, e) >= 0) {
+                return false;
+            }
+
+            if (size == MAX_INLINE) {
+                HashSet<Object> set = new HashSet<>(Arrays.asList(array));
+                set.add(e);
+                elements = new Overflow<>(set);
+            } else {
+                if (size == array.length) {
+                    elements = array = Arrays.copyOf(array, MAX_INLINE);
+                }
+                array[size] = e;
+            }
+        }
+
+        ++size;
+        ++modifications;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null || size == 0) {
+            return false;
+        }
+
+        if (elements instanceof Overflow) {
+            Set<E> set = overflow();
+            if (!set.remove(o)) {
+                return false;
+            }
+            if (set.size() <= MAX_INLINE / 2) {
+                elements = inline(set);
+            }
+        } else if (size == 1) {
+            if (!matches(elements, o)) {
+                return false;
+            }
+            elements = null;
+        } else {
+            Object[] array = (Object[]) elements;
+            int i = indexOf(array, size, o);
+            if (i < 0) {
+                return false;
+            }
+            removeAt(array, i);
+        }
+
+        --size;
+        ++modifications;
+        return true;
+    }
+
+    /**
+     * @return the representation of a set with at most MAX_INLINE / 2
+     * elements, which the iterator of an Overflow may have removed any
+     * number of
+     */
+    private static Object inline(Set<?> set) {
+        if (set.isEmpty()) {
+            return null;
+        } else if (set.size() == 1) {
+            return set.iterator().next();
+        }
+        return set.toArray(new Object[MAX_INLINE / 2]);
+    }
+
+    @SuppressWarnings("unchecked") // only elements of type E are added
+    private Set<E> overflow() {
+        return ((Overflow<E>) elements).set;
+    }
+
+    private void removeAt(Object[] array, int i) {
+        int last = size - 1;
+        System.arraycopy(array, i + 1, array, i, last - i);
+        array[last] = null;
+        if (last == 1) {
+            elements = array[0];
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null || size == 0) {
+            return false;
+        } else if (elements instanceof Overflow) {
+            return overflow().contains(o);
+        } else if (size == 1) {
+            return matches(elements, o);
+        }
+        return indexOf((Object[]) elements, size, o) >= 0;
+    }
+
+    /**
+     * @return the element at position i of an inline set
+     */
+    private Object element(int i) {
+        return size == 1 ? elements : ((Object[]) elements)[i];
+    }
+
+    private static boolean matches(Object element, Object o) {
+        return element == o || element.equals(o);
+    }
+
+    private static int indexOf(Object[] array, int size, Object o) {
+        for (int i = 0; i < size; ++i) {
+            if (matches(array[i], o)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        elements = null;
+        size = 0;
+        ++modifications;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // only elements of type E are added
+    public void forEach(Consumer<? super E> action) {
+        if (size == 0) {
+            return;
+        } else if (elements instanceof Overflow) {
+            overflow().forEach(action);
+        } else if (size == 1) {
+            action.accept((E) elements);
+        } else {
+            Object[] array = (Object[]) elements;
+            for (int i = 0; i < size; ++i) {
+                action.accept((E) array[i]);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // only elements of type E are added
+    public Iterator<E> iterator() {
+        if (elements instanceof Overflow) {
+            return new Iterator<E>() {
+                private final Iterator<E> it = overflow().iterator();
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    // stays an Overflow until the next call to remove(Object)
+                    it.remove();
+                    --size;
+                    ++modifications;
+                }
+            };
+        }
+
+        return new Iterator<E>() {
+            private int expected = modifications;
+            private int position;
+            private boolean removable;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public E next() {
+                if (modifications != expected) {
+                    throw new ConcurrentModificationException();
+                } else if (position >= size) {
+                    throw new NoSuchElementException();
+                }
+
+                removable = true;
+                return (E) element(position++);
+            }
+
+            @Override
+            public void remove() {
+                if (!removable) {
+                    throw new IllegalStateException();
+                }
+                removable = false;
+                HgCompactSet.this.remove(element(--position));
+                expected = modifications;
+            }
+        };
+    }
+}
@@ -0,0 +1,282 @@
+package com.github.mercurydb.queryutils;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A conjunction of predicates on the rows of one table, compiled with
+ * Javassist into a class whose test() and filter loop call every
+ * predicate directly:
+ *
+ * <code>
+ * HgStream&lt;Odetail&gt; s = HgCompiledFilter.compile(OdetailTable.lt.qty(5), OdetailTable.ge.ono(1021))
+ *     .filter(OdetailTable.stream());
+ * </code>
+ *
+ * {@link HgStream#filter} nests one wrapper per call, and the calls to
+ * testInstance() in all of them share one call site, which sees every
+ * predicate class of the application and cannot be inlined by the JIT.
+ * A compiled filter has one call site per predicate in its own class,
+ * so that each sees a single predicate class and is inlined, and its
+ * loop reads the rows of a table or of an index directly.
+ *
+ * One class is generated per shape, which is the sequence of the classes
+ * of the predicates, and is reused for every filter of that shape
+ * whatever the values of the predicates. After {@value #MAX_SHAPES}
+ * shapes, or if the class can not be generated, filters are interpreted
+ * by a loop over the predicates instead.
+ *
+ * @param <T> the type of the rows
+ * @see HgDB#queryCompiled
+ */
+public abstract class HgCompiledFilter<T> {
+    public static final int MAX_SHAPES = 256;
+
+    private static final Map<List<Class<?>>, Constructor<?>> shapes = new ConcurrentHashMap<>();
+    private static final PlanLoader loader = new PlanLoader(HgCompiledFilter.class.getClassLoader());
+    private static ClassPool pool;
+
+    protected final AbstractValueExtractablePredicate<T, ?>[] predicates;
+
+    protected HgCompiledFilter(AbstractValueExtractablePredicate<T, ?>[] predicates) {
+        this.predicates = predicates;
+    }
+
+    /**
+     * @param predicates the predicates, all on the same table
+     * @param <T> the type of the rows
+     * @return a filter which passes the rows which satisfy every predicate
+     */
+    @SafeVarargs
+    @SuppressWarnings({"unchecked", "varargs"}) // generated classes extend HgCompiledFilter, the predicates are copied
+    public static <T> HgCompiledFilter<T> compile(AbstractValueExtractablePredicate<T, ?>... predicates) {
+        Class<?>[] classes = new Class<?>[predicates.length];
+        for (int i = 0; i < predicates.length; ++i) {
+            classes[i] = predicates[i].getClass();
+        }
+
+        Constructor<?> constructor = shapes.get(Arrays.asList(classes));
+        if (constructor == null) {
+            constructor = generate(Arrays.asList(classes));
+        }
+
+        if (constructor != null) {
+            try {
+                return (HgCompiledFilter<T>) constructor.newInstance((Object) predicates.clone());
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Could not instantiate compiled filter!", e);
+            }
+        }
+
+        return new Interpreted<>(predicates.clone());
+    }
+
+    /**
+     * @return the number of shapes for which a class has been generated
+     */
+    public static int getShapeCount() {
+        return shapes.size();
+    }
+
+    /**
+     * @return the predicates, in the order in which they are tested
+     */
+    public List<AbstractValueExtractablePredicate<T, ?>> getPredicates() {
+        return Arrays.asList(predicates.clone());
+    }
+
+    /**
+     * @return true if this filter runs a generated class
+     */
+    public boolean isCompiled() {
+        return !(this instanceof Interpreted);
+    }
+
+    /**
+     * @param instance a row of the table
+     * @return true if the row satisfies every predicate
+     */
+    public abstract boolean test(Object instance);
+
+    /**
+     * Advances rows until one satisfies every predicate. Tables and
+     * indexes contain no null rows, so null marks the end.
+     *
+     * @param rows an iterator over rows of the table
+     * @return the next row which satisfies every predicate, or null
+     */
+    public abstract Object nextMatch(Iterator<?> rows);
+
+    /**
+     * @param source the rows to filter
+     * @return a stream over the rows of source which pass this filter
+     */
+    public HgStream<T> filter(final HgStream<T> source) {
+        // rows of tables and indexes are read from their iterator, not through the stream
+        final Iterable<T> seed = source instanceof HgWrappedIterableStream
+                ? ((HgWrappedIterableStream<T>) source).getStreamSeed()
+                : null;
+
+        return new HgStream<T>() {
+            private Iterator<T> rows = seed != null ? seed.iterator() : source;
+            private T next;
+
+            @Override
+            @SuppressWarnings("unchecked") // rows are of type T
+            public boolean hasNext() {
+                next = (T) nextMatch(rows);
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                return next;
+            }
+
+            @Override
+            public void reset() {
+                if (seed != null) {
+                    rows = seed.iterator();
+                } else {
+                    source.reset();
+                }
+            }
+
+            @Override
+            public Spliterator<T> spliterator() {
+                return HgSpliterators.filter(source.spliterator(), HgCompiledFilter.this::test);
+            }
+
+            @Override
+            public HgTupleStream joinOn(ValueExtractable fe) {
+                return HgTupleStream.createJoinInput(fe, this, true);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + Arrays.toString(predicates);
+    }
+
+    /**
+     * Generates the class for a shape, unless MAX_SHAPES have been
+     * generated already.
+     *
+     * @return the constructor of the class, or null
+     */
+    private static synchronized Constructor<?> generate(List<Class<?>> shape) {
+        Constructor<?> constructor = shapes.get(shape);
+        if (constructor != null || shapes.size() >= MAX_SHAPES) {
+            return constructor;
+        }
+
+        try {
+            if (pool == null) {
+                pool = new ClassPool(true);
+                pool.appendClassPath(new LoaderClassPath(HgCompiledFilter.class.getClassLoader()));
+            }
+
+            String name = HgCompiledFilter.class.getName() + "$Shape" + shapes.size();
+            CtClass cc = pool.makeClass(name, pool.get(HgCompiledFilter.class.getName()));
+            String predicateClass = AbstractValueExtractablePredicate.class.getName();
+
+            StringBuilder init = new StringBuilder();
+            StringBuilder test = new StringBuilder();
+            for (int i = 0; i < shape.size(); ++i) {
+                cc.addField(CtField.make("private final " + predicateClass + " p" + i + ";", cc));
+                init.append("p").append(i).append(" = $1[").append(i).append("];");
+                test.append(i == 0 ? "" : " && ").append("p").append(i).append(".testInstance(x)");
+            }
+            if (shape.isEmpty()) {
+                test.append("true");
+            }
+
+            cc.addConstructor(CtNewConstructor.make(
+                    new CtClass[]{pool.get(predicateClass + "[]")}, new CtClass[0],
+                    "{ super($1); " + init + " }", cc));
+            cc.addMethod(CtNewMethod.make(
+                    "public boolean test(Object x) { return " + test + "; }", cc));
+            cc.addMethod(CtNewMethod.make(
+                    "public Object nextMatch(java.util.Iterator rows) {"
+                            + " while (rows.hasNext()) {"
+                            + " Object x = rows.next();"
+                            + " if (" + test + ") { return x; }"
+                            + " }"
+                            + " return null; }", cc));
+
+            byte[] bytecode = cc.toBytecode();
+            cc.detach();
+
+            constructor = loader.define(name, bytecode).getConstructor(AbstractValueExtractablePredicate[].class);
+            shapes.put(shape, constructor);
+            return constructor;
+        } catch (NotFoundException | CannotCompileException | IOException | NoSuchMethodException e) {
+            // interpret this shape
+            return null;
+        }
+    }
+
+    /**
+     * Defines the generated classes. Their only dependencies are this
+     * class and AbstractValueExtractablePredicate, which are resolved by
+     * the parent loader.
+     */
+    private static final class PlanLoader extends ClassLoader {
+        PlanLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+
+    /**
+     * Tests the predicates in a loop, for shapes without a class.
+     */
+    private static final class Interpreted<T> extends HgCompiledFilter<T> {
+        Interpreted(AbstractValueExtractablePredicate<T, ?>[] predicates) {
+            super(predicates);
+        }
+
+        @Override
+        public boolean test(Object instance) {
+            for (AbstractValueExtractablePredicate<T, ?> predicate : predicates) {
+                if (!predicate.testInstance(instance)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public Object nextMatch(Iterator<?> rows) {
+            while (rows.hasNext()) {
+                Object instance = rows.next();
+                if (test(instance)) {
+                    return instance;
+                }
+            }
+
+            return null;
+        }
+    }
+}
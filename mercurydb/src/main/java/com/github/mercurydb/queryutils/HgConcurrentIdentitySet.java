@@ -0,0 +1,85 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe Set which compares its elements by identity, like
+ * Guava's Sets.newIdentityHashSet(). This is what concurrent tables
+ * use to hold their rows. Iterators are weakly consistent and never
+ * throw ConcurrentModificationException.
+ *
+ * Null elements are not permitted.
+ *
+ * @param <E> the type of the elements
+ */
+public class HgConcurrentIdentitySet<E> extends AbstractSet<E> {
+    private final ConcurrentHashMap<IdentityKey, E> map = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean add(E e) {
+        return map.putIfAbsent(new IdentityKey(e), e) == null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return map.remove(new IdentityKey(o)) != null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(new IdentityKey(o));
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return map.values().iterator();
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        return map.values().spliterator();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Wraps an element so that a ConcurrentHashMap compares it by
+     * identity.
+     */
+    static final class IdentityKey {
+        private final Object ref;
+
+        IdentityKey(Object ref) {
+            if (ref == null) {
+                throw new NullPointerException();
+            }
+            this.ref = ref;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(ref);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof IdentityKey && ((IdentityKey) other).ref == ref;
+        }
+    }
+}
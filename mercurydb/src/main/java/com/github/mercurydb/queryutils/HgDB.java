@@ -4,6 +4,9 @@ import com.github.mercurydb.queryutils.joiners.JoinFilter;
 import com.github.mercurydb.queryutils.joiners.JoinIndexScan;
 import com.github.mercurydb.queryutils.joiners.JoinTempIndexScan;
 import com.github.mercurydb.queryutils.joiners.JoinNestedLoops;
+import com.github.mercurydb.queryutils.joiners.JoinSortMerge;
+import com.github.mercurydb.queryutils.indexes.CompositeIndex;
+import com.github.mercurydb.queryutils.indexes.CompositeKey;
 
 import java.util.*;
 
@@ -31,117 +34,880 @@ import java.util.*;
  * where an HgJoinPredicate is a wrapper for the objects required for the
  * 2 table reference join method above.
  *
+ * The count, min, max and countBy methods aggregate a single table, using
+ * its indexes where they can. Other aggregates are computed by an
+ * HgAggregation.
+ *
+ * Over snapshot tables, queries and joins are not pinned to a version
+ * by themselves, since their streams are lazy and a pin would be held
+ * until a stream is exhausted, which may be never. An unpinned stream
+ * reads each index bucket at the version which is stable when it starts
+ * iterating that bucket, so a join may see a row which is updated while
+ * it runs in two buckets or in none. Run them inside an
+ * {@link HgSnapshot} to read every bucket at the same version.
+ *
  * @see #query
  * @see #join
+ * @see HgAggregation
  */
 public class HgDB {
     private static final Comparator<AbstractValueExtractablePredicate<?, ?>> QUERY_COMPARATOR =
             (a, b) -> {
-                int aPriority = getQueryPredicatePriority(a);
-                int bPriority = getQueryPredicatePriority(b);
-                return aPriority - bPriority;
+                double aPriority = getQueryPredicatePriority(a);
+                double bPriority = getQueryPredicatePriority(b);
+                return Double.compare(aPriority, bPriority);
             };
 
-    private static int getQueryPredicatePriority(AbstractValueExtractablePredicate<?, ?> predicate) {
+    private static volatile HgQueryCache queryCache;
+
+    /**
+     * Estimates the number of rows fetched by a query which starts from
+     * the given predicate: the bucket size for an indexed equality, an
+     * estimate from the index statistics for other indexed relations and
+     * the size of the table for anything which needs a scan.
+     */
+    private static double getQueryPredicatePriority(AbstractValueExtractablePredicate<?, ?> predicate) {
+        HgTableStatistics table = predicate.getTableId().getStatistics();
+        double scan = table == null ? Double.POSITIVE_INFINITY : table.getRowCount();
+
         if (predicate instanceof ValueExtractableRelation) {
             ValueExtractableRelation<?, ?> fer = (ValueExtractableRelation<?, ?>) predicate;
             if (fer.isIndexed() && fer.relation == HgRelation.EQ) {
                 Set<Object> value = fer.getIndex().get(fer.value);
-                return -(value == null ? 0 : value.size());
+                return value == null ? 0 : value.size();
             } else if (isIndexCompatible(fer.getIndex(), fer.relation)) {
-                return 2;
+                HgIndexStatistics statistics = fer.getStatistics();
+                if (statistics != null) {
+                    return Math.min(scan, statistics.estimateCount(fer.relation, fer.value));
+                }
+                return Math.nextDown(scan);
             }
+        } else if (predicate instanceof ValueExtractableRange) {
+            return ((ValueExtractableRange<?>) predicate).estimateCount(scan);
         }
 
-        return 3;
+        return scan;
     }
 
-    private static final Comparator<JoinPredicate> JOIN_PREDICATE_COMPARATOR =
-            (a, b) -> {
-                int aPriority = getJoinPredicatePriority(a);
-                int bPriority = getJoinPredicatePriority(b);
-                return aPriority - bPriority;
-            };
-
-    private static int getJoinPredicatePriority(JoinPredicate predicate) {
-        if (isStreamAndIndexCompatible(predicate.streamA, predicate.relation) ||
-                isStreamAndIndexCompatible(predicate.streamB, predicate.relation)) {
-            return predicate.relation == HgRelation.EQ ? 1 : 2;
-        }
-
-        return predicate.relation == HgRelation.EQ ? 3 : 4;
+    /**
+     * Performs a single table query. Equalities on all values of a composite index
+     * are first fused into one equality on its key, and relations on the same ordered
+     * field into a single range of its index. The predicate which is estimated to fetch
+     * the fewest rows is evaluated first, through its index if it has one. Its rows are
+     * intersected with the buckets of the other indexed equalities, and then stream
+     * filters will be performed to retrieve the rest of the filtered results.
+     *
+     * @param extractableValues the field values to be extracted
+     * @param <T> the type of the contained class of the queries
+     * @return a stream of type T
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs") // the predicates are only read
+    public static <T> HgStream<T> query(AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+        return query(false, extractableValues);
     }
 
     /**
-     * Performs a single table query. The stream with the largest index size will be fetched
-     * first, and then stream filters will be performed to retrieve the rest of the filtered
-     * results.
+     * Performs a single table query like {@link #query}, but the predicates
+     * which are not answered by an index are tested by one
+     * {@link HgCompiledFilter} instead of a chain of stream filters. The
+     * class of the filter is generated once per shape of the remaining
+     * predicates, so this pays off for queries which are run many times.
      *
      * @param extractableValues the field values to be extracted
      * @param <T> the type of the contained class of the queries
      * @return a stream of type T
      */
-    @SuppressWarnings("unchecked") // cast from Iterable<Object> to Iterable<T>
-    public static <T> HgStream<T> query(AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+    @SafeVarargs
+    @SuppressWarnings("varargs") // the predicates are only read
+    public static <T> HgStream<T> queryCompiled(AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+        return query(true, extractableValues);
+    }
+
+    /**
+     * Plans a single table query once, for many executions with different
+     * constants. The relations wrapped in an {@link HgParameter} are bound
+     * to new constants by each execution.
+     *
+     * @param extractableValues the predicates of the query
+     * @param <T> the type of the contained class of the queries
+     * @return the prepared query
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs") // the predicates are copied
+    public static <T> HgPreparedQuery<T> prepare(AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+        return new HgPreparedQuery<>(extractableValues);
+    }
+
+    /**
+     * Enables, resizes or disables the cache of the results of prepared
+     * queries and joins. Resizing the cache drops every cached result.
+     *
+     * @param maxEntries the number of results to keep, or 0 to disable
+     *                   the cache, which is the default
+     * @see HgQueryCache
+     */
+    public static void setQueryCacheSize(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Query cache size must not be negative!");
+        }
+        queryCache = maxEntries == 0 ? null : new HgQueryCache(maxEntries);
+    }
+
+    /**
+     * @return the cache of the results of prepared queries and joins, or
+     * null if it is disabled
+     * @see #setQueryCacheSize(int)
+     */
+    public static HgQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    private static <T> HgStream<T> query(boolean compiled, AbstractValueExtractablePredicate<T, ?>[] extractableValues) {
         if (extractableValues.length == 0) {
-            return new HgRetrievalStream<>(Collections.<T>emptyList());
+            return new HgQueryResultStream<>(Collections.<T>emptyList());
+        }
+
+        extractableValues = fuse(extractableValues);
+        if (extractableValues == null) {
+            return new HgQueryResultStream<>(Collections.<T>emptyList());
         }
 
-        Arrays.sort(extractableValues, QUERY_COMPARATOR);
+        sortByPriority(extractableValues);
+        return execute(extractableValues, true, compiled);
+    }
+
+    /**
+     * Fuses the equalities on composite indexes and the relations on
+     * ordered fields of a query.
+     *
+     * @return a new array of predicates, or null if they cannot all hold
+     * @see #fuseComposites(AbstractValueExtractablePredicate[])
+     * @see #fuseRanges(AbstractValueExtractablePredicate[])
+     */
+    static <T> AbstractValueExtractablePredicate<T, ?>[] fuse(AbstractValueExtractablePredicate<T, ?>[] preds) {
+        return fuseRanges(fuseComposites(preds));
+    }
+
+    /**
+     * Sorts the predicates of a query by the estimated number of rows
+     * which a query starting from each of them fetches.
+     */
+    static void sortByPriority(AbstractValueExtractablePredicate<?, ?>[] preds) {
+        Arrays.sort(preds, QUERY_COMPARATOR);
+    }
 
+    /**
+     * @return true if a query may start from the index of pred
+     */
+    static boolean isIndexDriven(AbstractValueExtractablePredicate<?, ?> pred) {
+        if (pred instanceof ValueExtractableRelation) {
+            ValueExtractableRelation<?, ?> fer = (ValueExtractableRelation<?, ?>) pred;
+            return isIndexCompatible(fer.getIndex(), fer.relation);
+        }
+
+        return pred instanceof ValueExtractableRange;
+    }
+
+    /**
+     * Runs a query over fused predicates. The rows of the first predicate
+     * are fetched from its index, if it has one and fromIndex is true, and
+     * intersected with the buckets of the other indexed equalities. The
+     * rest are filtered.
+     */
+    @SuppressWarnings("unchecked") // cast from Iterable<Object> to Iterable<T>
+    static <T> HgStream<T> execute(
+            AbstractValueExtractablePredicate<T, ?>[] extractableValues, boolean fromIndex, boolean compiled) {
         ValueExtractableSeed<T> fe = extractableValues[0];
         HgStream<T> stream = fe.getDefaultStream();
 
         int start = 0;
-        if (fe instanceof ValueExtractableRelation) {
+        if (fromIndex && fe instanceof ValueExtractableRelation && isIndexDriven(extractableValues[0])) {
             ValueExtractableRelation<T, ?> fer = (ValueExtractableRelation<T, ?>) fe;
-            if (isIndexCompatible(fer.getIndex(), fer.relation)) {
-                start = 1;
-                HgRelation hgRelation = (HgRelation) fer.relation;
-                Iterable<Object> iter = hgRelation.getFromIndex(fer.getIndex(), fer.value);
-                stream = new HgQueryResultStream<>((Iterable<T>) iter);
+            start = 1;
+            HgRelation hgRelation = (HgRelation) fer.relation;
+            Iterable<Object> iter = hgRelation.getFromIndex(fer.getIndex(), fer.value);
+            stream = intersect((Iterable<T>) iter, extractableValues);
+        } else if (fromIndex && fe instanceof ValueExtractableRange) {
+            start = 1;
+            Iterable<Object> iter = ((ValueExtractableRange<T>) fe).getFromIndex();
+            stream = intersect((Iterable<T>) iter, extractableValues);
+        }
+
+        if (compiled) {
+            List<AbstractValueExtractablePredicate<T, ?>> filters = new ArrayList<>();
+            for (int i = start; i < extractableValues.length; ++i) {
+                if (extractableValues[i] != null) {
+                    filters.add(extractableValues[i]);
+                }
             }
+
+            if (!filters.isEmpty()) {
+                // copyOf creates an array of the generic element type
+                stream = HgCompiledFilter.compile(filters.toArray(Arrays.copyOf(extractableValues, filters.size()))).filter(stream);
+            }
+            return stream;
         }
 
         for (int i = start; i < extractableValues.length; ++i) {
-            stream = stream.filter(extractableValues[i]);
+            if (extractableValues[i] != null) {
+                stream = stream.filter(extractableValues[i]);
+            }
         }
 
         return stream;
     }
 
     /**
-     * Joins a set of JoinPredicates. It performs joins in the order
-     * defined by {@link #JOIN_PREDICATE_COMPARATOR}. If the predicates
-     * do not unify, an IllegalStateException is thrown.
+     * Replaces the equalities on all values of a composite index with one
+     * equality on the key of the index. Where composite indexes overlap,
+     * the one with the smallest bucket is fused first.
+     *
+     * @return a new array of predicates, or preds if none were fused
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    private static <T> AbstractValueExtractablePredicate<T, ?>[] fuseComposites(
+            AbstractValueExtractablePredicate<T, ?>[] preds) {
+        Map<String, ValueExtractableRelation<T, ?>> equalities = new HashMap<>();
+        Set<CompositeIndex> composites = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (AbstractValueExtractablePredicate<T, ?> pred : preds) {
+            if (pred instanceof ValueExtractableRelation && pred.getValueName() != null
+                    && ((ValueExtractableRelation<T, ?>) pred).relation == HgRelation.EQ) {
+                equalities.putIfAbsent(pred.getValueName(), (ValueExtractableRelation<T, ?>) pred);
+                composites.addAll(pred.getCompositeIndexes());
+            }
+        }
+
+        if (composites.isEmpty()) {
+            return preds;
+        }
+
+        List<ValueExtractableRelation<T, ?>> candidates = new ArrayList<>();
+        Map<ValueExtractableRelation<T, ?>, List<ValueExtractableRelation<T, ?>>> covers = new IdentityHashMap<>();
+
+        for (CompositeIndex composite : composites) {
+            List<ValueExtractableRelation<T, ?>> components = new ArrayList<>();
+            for (String name : composite.getValues()) {
+                ValueExtractableRelation<T, ?> eq = equalities.get(name);
+                if (eq == null || !eq.getCompositeIndexes().contains(composite)) {
+                    break;
+                }
+                components.add(eq);
+            }
+
+            if (components.size() == composite.getValues().size()) {
+                List<ValueExtractableSeed<T>> seeds = new ArrayList<>();
+                Object[] key = new Object[components.size()];
+                for (int i = 0; i < key.length; ++i) {
+                    seeds.add(components.get(i)._fwdFE);
+                    key[i] = components.get(i).value;
+                }
+
+                ValueExtractableRelation<T, ?> fused = new ValueExtractableRelation<>(
+                        new ValueExtractableComposite<>(seeds, composite), HgRelation.EQ, CompositeKey.of(key));
+                candidates.add(fused);
+                covers.put(fused, components);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return preds;
+        }
+
+        candidates.sort(QUERY_COMPARATOR);
+        Set<AbstractValueExtractablePredicate<T, ?>> covered = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<AbstractValueExtractablePredicate<T, ?>> result = new ArrayList<>(preds.length);
+
+        for (ValueExtractableRelation<T, ?> fused : candidates) {
+            if (Collections.disjoint(covered, covers.get(fused))) {
+                covered.addAll(covers.get(fused));
+                result.add(fused);
+            }
+        }
+
+        for (AbstractValueExtractablePredicate<T, ?> pred : preds) {
+            if (!covered.contains(pred)) {
+                result.add(pred);
+            }
+        }
+
+        return result.toArray(new AbstractValueExtractablePredicate[result.size()]);
+    }
+
+    /**
+     * Fuses the relations on each field with an ordered index into a
+     * single ValueExtractableRange, so that the query scans one sub-range
+     * of the index. An equality on the field replaces the range if it
+     * lies inside of it.
+     *
+     * @return a new array of predicates, or null if they cannot all hold
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation, Comparable values
+    private static <T> AbstractValueExtractablePredicate<T, ?>[] fuseRanges(
+            AbstractValueExtractablePredicate<T, ?>[] preds) {
+        Map<Map<?, ?>, List<ValueExtractableRelation<T, ?>>> fields = new IdentityHashMap<>();
+        List<AbstractValueExtractablePredicate<T, ?>> result = new ArrayList<>(preds.length);
+
+        for (AbstractValueExtractablePredicate<T, ?> pred : preds) {
+            if (isFusable(pred)) {
+                fields.computeIfAbsent(pred.getIndex(), k -> new ArrayList<>())
+                        .add((ValueExtractableRelation<T, ?>) pred);
+            } else {
+                result.add(pred);
+            }
+        }
+
+        for (List<ValueExtractableRelation<T, ?>> field : fields.values()) {
+            if (field.size() == 1) {
+                result.add(field.get(0));
+                continue;
+            }
+
+            Comparable<Object> lo = null, hi = null, eq = null;
+            boolean loInclusive = false, hiInclusive = false;
+            ValueExtractableRelation<T, ?> eqPred = null;
+
+            for (ValueExtractableRelation<T, ?> fer : field) {
+                Comparable<Object> value = (Comparable<Object>) fer.value;
+                if (fer.relation == HgRelation.EQ) {
+                    if (eq != null && eq.compareTo(value) != 0) {
+                        return null;
+                    }
+                    eq = value;
+                    eqPred = fer;
+                } else if (fer.relation == HgRelation.GT || fer.relation == HgRelation.GE) {
+                    boolean inclusive = fer.relation == HgRelation.GE;
+                    int c = lo == null ? 1 : value.compareTo(lo);
+                    if (c > 0 || (c == 0 && !inclusive)) {
+                        lo = value;
+                        loInclusive = inclusive;
+                    }
+                } else {
+                    boolean inclusive = fer.relation == HgRelation.LE;
+                    int c = hi == null ? -1 : value.compareTo(hi);
+                    if (c < 0 || (c == 0 && !inclusive)) {
+                        hi = value;
+                        hiInclusive = inclusive;
+                    }
+                }
+            }
+
+            if (lo != null && hi != null) {
+                int c = lo.compareTo(hi);
+                if (c > 0 || (c == 0 && !(loInclusive && hiInclusive))) {
+                    return null;
+                }
+            }
+
+            ValueExtractableRange<T> range = new ValueExtractableRange<>(
+                    field.get(0)._fwdFE, lo, loInclusive, hi, hiInclusive);
+            if (eqPred == null) {
+                result.add(range);
+            } else if (range.test(eq)) {
+                result.add(eqPred);
+            } else {
+                return null;
+            }
+        }
+
+        return result.toArray(new AbstractValueExtractablePredicate[result.size()]);
+    }
+
+    private static boolean isFusable(AbstractValueExtractablePredicate<?, ?> pred) {
+        if (!(pred instanceof ValueExtractableRelation) || !pred.isIndexed()
+                || !(pred.getIndex() instanceof NavigableMap)
+                || ((NavigableMap<?, ?>) pred.getIndex()).comparator() != null) {
+            return false;
+        }
+
+        ValueExtractableRelation<?, ?> fer = (ValueExtractableRelation<?, ?>) pred;
+        return fer.value != null && (fer.relation == HgRelation.EQ
+                || fer.relation == HgRelation.LT || fer.relation == HgRelation.LE
+                || fer.relation == HgRelation.GT || fer.relation == HgRelation.GE);
+    }
+
+    /**
+     * Intersects the candidates of the first predicate with the buckets
+     * of every other indexed equality. The intersected predicates are
+     * set to null in sortedPreds. Other predicates are left to be
+     * filtered, as fetching their candidates would cost more than
+     * testing the smaller candidate set of the first predicate.
+     */
+    private static <T> HgStream<T> intersect(
+            Iterable<T> candidates,
+            AbstractValueExtractablePredicate<T, ?>[] sortedPreds) {
+        List<Set<Object>> buckets = new ArrayList<>();
+
+        for (int i = 1; i < sortedPreds.length; ++i) {
+            if (sortedPreds[i] instanceof ValueExtractableRelation) {
+                ValueExtractableRelation<T, ?> fer = (ValueExtractableRelation<T, ?>) sortedPreds[i];
+                if (fer.isIndexed() && fer.relation == HgRelation.EQ) {
+                    Set<Object> bucket = fer.getIndex().get(fer.value);
+                    if (bucket == null || bucket.isEmpty()) {
+                        return new HgQueryResultStream<>(Collections.<T>emptyList());
+                    }
+
+                    buckets.add(bucket);
+                    sortedPreds[i] = null;
+                }
+            }
+        }
+
+        return new HgQueryResultStream<>(buckets.isEmpty() ? candidates : new HgIndexIntersection<>(candidates, buckets));
+    }
+
+    /**
+     * Counts the rows of a single table query. If the predicates are
+     * fused into a single indexed relation or range, the rows are counted
+     * from the sizes of the index buckets without visiting them.
+     *
+     * @param extractableValues the predicates of the query
+     * @param <T> the type of the contained class of the queries
+     * @return the number of rows which satisfy all predicates
+     * @see #query
+     */
+    @SuppressWarnings("unchecked") // cast from Iterable<Object> to Iterable<T>
+    public static <T> long count(AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+        if (extractableValues.length == 0) {
+            return 0;
+        }
+
+        AbstractValueExtractablePredicate<T, ?>[] fused = fuseRanges(fuseComposites(extractableValues));
+        if (fused == null) {
+            return 0;
+        } else if (fused.length == 1) {
+            Iterable<Object> rows = null;
+            if (fused[0] instanceof ValueExtractableRange) {
+                rows = ((ValueExtractableRange<T>) fused[0]).getFromIndex();
+            } else if (fused[0] instanceof ValueExtractableRelation) {
+                ValueExtractableRelation<T, ?> fer = (ValueExtractableRelation<T, ?>) fused[0];
+                if (isIndexCompatible(fer.getIndex(), fer.relation)) {
+                    rows = ((HgRelation) fer.relation).getFromIndex(fer.getIndex(), fer.value);
+                }
+            }
+
+            if (rows instanceof HgBucketIterable) {
+                return ((HgBucketIterable<Object>) rows).size();
+            } else if (rows instanceof Collection) {
+                return ((Collection<Object>) rows).size();
+            }
+        }
+
+        long count = 0;
+        for (T ignored : query(fused)) {
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Performs a single table query and returns all rows in the given order.
+     *
+     * @param order the order of the rows
+     * @param extractableValues the predicates of the query
+     * @param <T> the type of the contained class of the queries
+     * @return a stream over the rows in order
+     * @see #top
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs") // the predicates are only read
+    public static <T> HgStream<T> orderBy(HgOrder order, AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+        return top(order, Long.MAX_VALUE, extractableValues);
+    }
+
+    /**
+     * Performs a single table query and returns the first k rows in the
+     * given order. If the order is by a value of the queried table with an
+     * ordered index, its keys may be walked in order, within the range of
+     * the query on that value, until k rows pass the other predicates.
+     * This is done if it is estimated to visit fewer rows than the query
+     * fetches. Otherwise the rows of the query are passed through a bounded
+     * heap of k rows.
+     *
+     * @param order the order of the rows
+     * @param k the number of rows to return
+     * @param extractableValues the predicates of the query, which may be none
+     * @param <T> the type of the contained class of the queries
+     * @return a stream over the first k rows in order
+     * @throws IllegalArgumentException if there are no predicates and the
+     * order is not by a value of a table
+     * @see HgStream#top(HgOrder, long)
+     */
+    @SafeVarargs
+    @SuppressWarnings({"unchecked", "varargs"}) // cast from Iterable<Object> to Iterable<T>, the predicates are only read
+    public static <T> HgStream<T> top(HgOrder order, long k, AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+        if (extractableValues.length == 0 && !(order.value instanceof ValueExtractableSeed)) {
+            throw new IllegalArgumentException("The order of a query without predicates must be by a value of a table!");
+        }
+
+        AbstractValueExtractablePredicate<T, ?>[] preds = extractableValues.length == 0
+                ? extractableValues : fuseRanges(fuseComposites(extractableValues));
+        if (preds == null || k <= 0) {
+            return new HgQueryResultStream<>(Collections.<T>emptyList());
+        }
+
+        NavigableMap<Object, Set<Object>> index = naturalIndex(order.value);
+        boolean sameTable = true;
+        for (AbstractValueExtractablePredicate<T, ?> pred : preds) {
+            sameTable &= pred.getTableId().equals(order.value.getTableId());
+        }
+
+        if (index != null && sameTable) {
+            HgTableStatistics table = order.value.getTableId().getStatistics();
+            double rows = table == null ? Double.POSITIVE_INFINITY : table.getRowCount();
+
+            // the range of the query on the order value bounds the walk
+            int rangeAt = -1;
+            ValueExtractableRange<T> range = null;
+            for (int i = 0; i < preds.length && range == null; ++i) {
+                range = asRange(preds[i], index);
+                rangeAt = i;
+            }
+
+            double walked = range == null ? rows : range.estimateCount(rows);
+            double fetched = walked;
+            for (AbstractValueExtractablePredicate<T, ?> pred : preds) {
+                fetched = Math.min(fetched, getQueryPredicatePriority(pred));
+            }
+
+            // rows which pass the query are assumed to be spread evenly over the walk
+            if (preds.length == 0 || Math.min(walked, k * walked / Math.max(1, fetched)) <= fetched) {
+                NavigableMap<Object, Set<Object>> keys = range == null ? index : range.subIndex();
+                HgStream<T> stream = new HgQueryResultStream<>(
+                        (Iterable<T>) new HgBucketIterable<>((order.descending ? keys.descendingMap() : keys).values()));
+                for (int i = 0; i < preds.length; ++i) {
+                    if (i != rangeAt || range == null) {
+                        stream = stream.filter(preds[i]);
+                    }
+                }
+                return stream.limit(k);
+            }
+        }
+
+        HgStream<T> stream = preds.length == 0
+                ? ((ValueExtractableSeed<T>) order.value).getDefaultStream()
+                : query(preds);
+        return stream.top(order, k);
+    }
+
+    /**
+     * @return the index of fe if it is ordered by the natural order of its keys, or null
+     */
+    private static NavigableMap<Object, Set<Object>> naturalIndex(ValueExtractable fe) {
+        if (fe.isIndexed() && fe.getIndex() instanceof NavigableMap
+                && ((NavigableMap<Object, Set<Object>>) fe.getIndex()).comparator() == null) {
+            return (NavigableMap<Object, Set<Object>>) fe.getIndex();
+        }
+        return null;
+    }
+
+    /**
+     * @return the range of index which pred selects, or null if pred is
+     * not a range or fusable relation on index
+     */
+    private static <T> ValueExtractableRange<T> asRange(
+            AbstractValueExtractablePredicate<T, ?> pred, NavigableMap<Object, Set<Object>> index) {
+        if (pred.getIndex() != index) {
+            return null;
+        } else if (pred instanceof ValueExtractableRange) {
+            @SuppressWarnings("unchecked") // a range on a table of T
+            ValueExtractableRange<T> range = (ValueExtractableRange<T>) pred;
+            return range;
+        } else if (!isFusable(pred)) {
+            return null;
+        }
+
+        ValueExtractableRelation<T, ?> fer = (ValueExtractableRelation<T, ?>) pred;
+        if (fer.relation == HgRelation.EQ) {
+            return new ValueExtractableRange<>(fer._fwdFE, fer.value, true, fer.value, true);
+        } else if (fer.relation == HgRelation.GT || fer.relation == HgRelation.GE) {
+            return new ValueExtractableRange<>(fer._fwdFE, fer.value, fer.relation == HgRelation.GE, null, false);
+        }
+        return new ValueExtractableRange<>(fer._fwdFE, null, false, fer.value, fer.relation == HgRelation.LE);
+    }
+
+    /**
+     * Returns the least value of a field in its table. For a field with
+     * an ordered index this is the first key with a non-empty bucket.
+     *
+     * @param fe the field
+     * @return the least value, or null if the table has no values
+     */
+    public static Object min(ValueExtractableSeed<?> fe) {
+        return extreme(fe, false);
+    }
+
+    /**
+     * Returns the greatest value of a field in its table. For a field
+     * with an ordered index this is the last key with a non-empty bucket.
+     *
+     * @param fe the field
+     * @return the greatest value, or null if the table has no values
+     */
+    public static Object max(ValueExtractableSeed<?> fe) {
+        return extreme(fe, true);
+    }
+
+    private static Object extreme(ValueExtractableSeed<?> fe, boolean max) {
+        NavigableMap<Object, Set<Object>> index = naturalIndex(fe);
+        if (index != null) {
+            for (Map.Entry<Object, Set<Object>> e : (max ? index.descendingMap() : index).entrySet()) {
+                if (!e.getValue().isEmpty()) {
+                    return e.getKey();
+                }
+            }
+            return null;
+        }
+
+        return HgAggregation.over(fe.getDefaultStream())
+                .aggregateAll(max ? HgAggregate.max(fe) : HgAggregate.min(fe))
+                .get(0);
+    }
+
+    /**
+     * Counts the rows of a table per value of a field. For an indexed
+     * field these are the sizes of its non-empty buckets.
+     *
+     * @param fe the field
+     * @return the number of rows per value
+     */
+    public static Map<Object, Long> countBy(ValueExtractableSeed<?> fe) {
+        Map<Object, Long> counts = new LinkedHashMap<>();
+        if (fe.isIndexed()) {
+            for (Map.Entry<Object, Set<Object>> e : fe.getIndex().entrySet()) {
+                int size = e.getValue().size();
+                if (size > 0) {
+                    counts.put(e.getKey(), (long) size);
+                }
+            }
+        } else {
+            HgAggregation.over(fe.getDefaultStream()).groupBy(fe).aggregate(HgAggregate.count())
+                    .forEach((key, result) -> counts.put(key, result.getLong(0)));
+        }
+        return counts;
+    }
+
+    /**
+     * Joins a set of JoinPredicates. Equalities between two tables which
+     * cover all values of a composite index are first fused into one
+     * equality on its key. It performs joins in the order chosen by
+     * {@link JoinPlanner}. If the predicates do not unify, an
+     * IllegalStateException is thrown.
      *
      * @param preds  One or more JoinPredicates
      * @return  a JoinResult of a join on preds
      * @throws IllegalStateException  if preds do not unify
      */
     public static HgPolyTupleStream join(JoinPredicate... preds) {
-        HgPolyTupleStream result = join(preds[0]);
+        return join(plan(preds));
+    }
 
-        if (preds.length == 1) {
-            return result;
-        }
+    /**
+     * Plans a join once, for many executions.
+     *
+     * @param preds  One or more JoinPredicates
+     * @return the prepared join
+     * @throws IllegalStateException  if preds do not unify
+     */
+    public static HgPreparedJoin prepareJoin(JoinPredicate... preds) {
+        return new HgPreparedJoin(preds);
+    }
+
+    /**
+     * Joins whole tables into a view, which the hooks of the tables keep
+     * up to date.
+     *
+     * @param preds  One or more JoinPredicates between streams over whole tables
+     * @return the view, which must be closed once it is no longer needed
+     * @throws IllegalStateException  if preds do not unify
+     * @see HgJoinView
+     */
+    public static HgJoinView materialize(JoinPredicate... preds) {
+        return new HgJoinView(preds);
+    }
+
+    /**
+     * Subscribes to the rows of a table which satisfy every predicate.
+     * Rows which start or stop matching because they are inserted,
+     * removed or updated are pushed to the subscriber by the hooks of
+     * the table.
+     *
+     * @param subscriber receives the changes
+     * @param extractableValues the predicates, all on the same table
+     * @param <T> the type of the contained class of the queries
+     * @return the subscription, which must be closed once it is no longer needed
+     * @see HgSubscriptionRouter
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs") // the predicates are copied
+    public static <T> HgSubscription<T> subscribe(
+            HgSubscriber<T> subscriber, AbstractValueExtractablePredicate<T, ?>... extractableValues) {
+        return new HgSubscription<>(subscriber, extractableValues);
+    }
 
-        Arrays.sort(preds, JOIN_PREDICATE_COMPARATOR);
+    /**
+     * Subscribes to the tuples of a join of whole tables. The join is
+     * materialized, and the tuples which its maintenance adds or removes
+     * are pushed to the subscriber. An update of a row removes its tuples
+     * and adds them again.
+     *
+     * @param subscriber receives the changes
+     * @param preds  One or more JoinPredicates between streams over whole tables
+     * @return the view of the join, which must be closed once it is no longer needed
+     * @throws IllegalStateException  if preds do not unify
+     * @see #materialize(JoinPredicate...)
+     */
+    public static HgJoinView subscribe(HgSubscriber<HgTupleStream.HgTuple> subscriber, JoinPredicate... preds) {
+        return new HgJoinView(subscriber, preds);
+    }
 
-        for (int i = 1; i < preds.length; ++i) {
-            JoinPredicate p = preds[i];
+    /**
+     * Fuses the composite equalities of a join and orders them with
+     * {@link JoinPlanner}.
+     *
+     * @param preds One or more JoinPredicates
+     * @return the order in which to join the predicates
+     * @throws IllegalStateException  if preds do not unify
+     */
+    static List<JoinPredicate> plan(JoinPredicate... preds) {
+        return JoinPlanner.order(fuseComposites(preds));
+    }
+
+    /**
+     * Joins predicates in the given order.
+     */
+    static HgPolyTupleStream join(List<JoinPredicate> order) {
+        HgPolyTupleStream result = join(order.get(0));
+
+        for (int i = 1; i < order.size(); ++i) {
+            JoinPredicate p = order.get(i);
             if (result.containsId(p.streamA.getTableId())) {
-                preds[i] = new JoinPredicate(result.joinOn(p.streamA), p.streamB, p.relation);
-            } else if (result.containsId(p.streamB.getTableId())) {
-                preds[i] = new JoinPredicate(p.streamA, result.joinOn(p.streamB), p.relation);
+                result = join(new JoinPredicate(result.joinOn(p.streamA), p.streamB, p.relation));
             } else {
+                result = join(new JoinPredicate(p.streamA, result.joinOn(p.streamB), p.relation));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Fuses the equalities between each pair of tables which cover all
+     * values of a composite index of one of the tables into one equality
+     * between the key of the index and the matching key of the other
+     * table. Only equalities between unfiltered table streams are fused,
+     * since the fused equality joins new streams over the same tables.
+     *
+     * @return a new array of predicates, or preds if none were fused
+     */
+    private static JoinPredicate[] fuseComposites(JoinPredicate[] preds) {
+        Map<List<TableID<?>>, List<JoinPredicate>> pairs = new LinkedHashMap<>();
+        List<JoinPredicate> result = new ArrayList<>(preds.length);
+
+        for (JoinPredicate pred : preds) {
+            if (!isCompositeFusable(pred)) {
+                result.add(pred);
                 continue;
             }
 
-            return join(Arrays.copyOfRange(preds, 1, preds.length));
+            TableID<?> a = pred.streamA.getTableId(), b = pred.streamB.getTableId();
+            List<JoinPredicate> reversed = pairs.get(Arrays.asList(b, a));
+            if (reversed != null) {
+                reversed.add(pred.swapLhsAndRhs());
+            } else {
+                pairs.computeIfAbsent(Arrays.asList(a, b), k -> new ArrayList<>()).add(pred);
+            }
         }
 
-        throw new IllegalStateException("Predicates do not unify!");
+        boolean fusedAny = false;
+        for (List<JoinPredicate> pair : pairs.values()) {
+            while (pair.size() > 1) {
+                JoinPredicate fused = fuseComposite(pair, false);
+                if (fused == null) {
+                    fused = fuseComposite(pair, true);
+                }
+
+                if (fused == null) {
+                    break;
+                }
+
+                result.add(fused);
+                fusedAny = true;
+            }
+            result.addAll(pair);
+        }
+
+        return fusedAny ? result.toArray(new JoinPredicate[result.size()]) : preds;
+    }
+
+    private static boolean isCompositeFusable(JoinPredicate pred) {
+        HgTupleStream a = pred.streamA, b = pred.streamB;
+        return pred.relation == HgRelation.EQ && a.isUnfiltered() && b.isUnfiltered()
+                && !a.getTableId().equals(b.getTableId())
+                && a.getFieldExtractor() instanceof ValueExtractableSeed
+                && b.getFieldExtractor() instanceof ValueExtractableSeed
+                && seed(a).getValueName() != null && seed(b).getValueName() != null
+                && !(seed(a).getCompositeIndexes().isEmpty() && seed(b).getCompositeIndexes().isEmpty());
+    }
+
+    @SuppressWarnings("unchecked") // rows are handled as Objects in joins
+    private static ValueExtractableSeed<Object> seed(HgTupleStream stream) {
+        return (ValueExtractableSeed<Object>) stream.getFieldExtractor();
+    }
+
+    /**
+     * Fuses the equalities of one pair of tables which cover the composite
+     * index with the most values on side A, or side B if swapped, and
+     * removes them from pair. The other side uses a composite index with
+     * the matching values in the same order if it has one.
+     *
+     * @return the fused equality, or null if no composite index is covered
+     */
+    private static JoinPredicate fuseComposite(List<JoinPredicate> pair, boolean swapped) {
+        Map<String, JoinPredicate> byName = new HashMap<>();
+        Set<CompositeIndex> composites = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (JoinPredicate pred : pair) {
+            ValueExtractableSeed<Object> seed = seed(swapped ? pred.streamB : pred.streamA);
+            byName.putIfAbsent(seed.getValueName(), pred);
+            composites.addAll(seed.getCompositeIndexes());
+        }
+
+        CompositeIndex best = null;
+        for (CompositeIndex composite : composites) {
+            if (byName.keySet().containsAll(composite.getValues())
+                    && (best == null || composite.getValues().size() > best.getValues().size())) {
+                best = composite;
+            }
+        }
+
+        if (best == null) {
+            return null;
+        }
+
+        List<ValueExtractableSeed<Object>> indexed = new ArrayList<>(), other = new ArrayList<>();
+        List<String> otherNames = new ArrayList<>();
+        for (String name : best.getValues()) {
+            JoinPredicate pred = byName.get(name);
+            pair.remove(pred);
+            indexed.add(seed(swapped ? pred.streamB : pred.streamA));
+            other.add(seed(swapped ? pred.streamA : pred.streamB));
+            otherNames.add(other.get(other.size() - 1).getValueName());
+        }
+
+        CompositeIndex otherIndex = null;
+        for (CompositeIndex composite : other.get(0).getCompositeIndexes()) {
+            if (composite.getValues().equals(otherNames)) {
+                otherIndex = composite;
+            }
+        }
+
+        HgTupleStream a = indexed.get(0).getDefaultStream()
+                .joinOn(new ValueExtractableComposite<>(indexed, best));
+        HgTupleStream b = other.get(0).getDefaultStream()
+                .joinOn(new ValueExtractableComposite<>(other, otherIndex));
+        return swapped ? new JoinPredicate(b, a) : new JoinPredicate(a, b);
     }
 
     /**
@@ -178,8 +944,10 @@ public class HgDB {
     }
 
     /**
-     * Performs a join on 2 streams. If one of the HgTupleStreams in
-     * the given predicate has an index and the relation is supported by
+     * Performs a join on 2 streams. If both HgTupleStreams in the given
+     * predicate have an ordered index and the relation is EQ or an
+     * inequality, the keys of both indexes are merged. Otherwise, if one
+     * of the HgTupleStreams has an index and the relation is supported by
      * the index, an index-scan is performed. Supported relations are
      * those defined in HgRelation. Relations defined by an HgBiPredicate
      * using a lambda are not supported by indexes, and as of right now
@@ -197,23 +965,18 @@ public class HgDB {
              * Filter operation
              */
             return new JoinFilter(predicate);
+        } else if (JoinSortMerge.isCompatible(predicate)) {
+            /*
+             * Both A and B have ordered indexes
+             * Merge the keys of both indexes
+             */
+            return new JoinSortMerge(predicate);
         } else if (isStreamAndIndexCompatible(a, predicate.relation) ||
                 isStreamAndIndexCompatible(b, predicate.relation)) {
-
-            // TODO decide if IndexIntersection is actually more efficient in any case!
-//            if (a.isIndexed() && b.isIndexed()) {
-//
-//                /*
-//                 * Both A and B indexed
-//                 * Do index intersection A, B
-//                 */
-//                return new JoinIndexIntersection(predicate);
-//            } else {
-
-                /*
-                 * Only A indexed
-                 * Scan B, use A index
-                 */
+            /*
+             * Only A indexed
+             * Scan B, use A index
+             */
             return new JoinIndexScan(predicate);
         } else if (predicate.relation instanceof HgRelation) {
             /*
@@ -237,9 +1000,9 @@ public class HgDB {
     }
 
     private static boolean isIndexCompatible(Map<?, ?> index, HgBiPredicate<?, ?> pred) {
-        boolean indexIsTreeMap = index instanceof TreeMap<?, ?>;
+        boolean indexIsOrdered = index instanceof NavigableMap<?, ?>;
         boolean predIsHgRelation = pred instanceof HgRelation;
 
-        return index != null && (pred == HgRelation.EQ || pred == HgRelation.NE || (indexIsTreeMap && predIsHgRelation));
+        return index != null && (pred == HgRelation.EQ || pred == HgRelation.NE || (indexIsOrdered && predIsHgRelation));
     }
 }
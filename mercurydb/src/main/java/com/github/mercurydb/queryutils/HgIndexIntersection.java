@@ -0,0 +1,48 @@
+package com.github.mercurydb.queryutils;
+
+import com.google.common.collect.Iterators;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+
+/**
+ * The rows of one index lookup which are also members of every one of
+ * a list of index buckets. HgDB.query uses it to intersect the
+ * candidates of several indexed predicates: the smallest candidate set
+ * is iterated, and each row is probed in the buckets of the other
+ * indexed equalities, smallest bucket first, without extracting any
+ * values from it.
+ *
+ * @param <T> the type of the rows
+ */
+class HgIndexIntersection<T> implements Iterable<T> {
+    private final Iterable<T> candidates;
+    private final List<? extends Set<?>> buckets;
+
+    HgIndexIntersection(Iterable<T> candidates, List<? extends Set<?>> buckets) {
+        this.candidates = candidates;
+        this.buckets = buckets;
+    }
+
+    private boolean inAllBuckets(T row) {
+        for (Set<?> bucket : buckets) {
+            if (!bucket.contains(row)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return Iterators.filter(candidates.iterator(), this::inAllBuckets);
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        return HgSpliterators.filter(candidates.spliterator(), this::inAllBuckets);
+    }
+}
@@ -0,0 +1,343 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of one index of a generated table: the number of distinct
+ * keys, the distribution of bucket sizes and, for ordered indexes, an
+ * equi-depth histogram of the keys.
+ *
+ * The generated hooks count every change to the index. The statistics
+ * themselves are summarized from the index when they are first read,
+ * and summarized again once the number of changes since the last
+ * summary exceeds {@link #STALE_FRACTION} of the rows, so that the cost
+ * of keeping them is amortized over the writes. A summary is immutable
+ * and may be read by any number of threads.
+ *
+ * @see ValueExtractable#getStatistics()
+ */
+public final class HgIndexStatistics {
+    /**
+     * Number of buckets in the histogram of an ordered index.
+     */
+    public static final int HISTOGRAM_BUCKETS = 32;
+
+    /**
+     * Fraction of the rows which may change before the summary is stale.
+     */
+    static final double STALE_FRACTION = 0.1;
+
+    /**
+     * Number of changes which are always allowed before the summary is stale.
+     */
+    static final long MIN_STALE = 16;
+
+    /**
+     * Selectivity assumed for relations which cannot be estimated.
+     */
+    static final double DEFAULT_SELECTIVITY = 1.0 / 3;
+
+    private final HgTableStatistics table;
+    private final Map<?, ? extends Set<?>> index;
+    private final LongAdder modifications = new LongAdder();
+    private volatile Summary summary;
+
+    /**
+     * @param table the statistics of the table which owns the index
+     * @param index the index to summarize
+     */
+    public HgIndexStatistics(HgTableStatistics table, Map<?, ? extends Set<?>> index) {
+        this.table = table;
+        this.index = index;
+    }
+
+    /**
+     * Called by the generated hooks whenever a value is added to or
+     * removed from the index.
+     */
+    public void modified() {
+        modifications.increment();
+    }
+
+    /**
+     * @return the statistics of the table which owns the index
+     */
+    public HgTableStatistics getTableStatistics() {
+        return table;
+    }
+
+    /**
+     * @return the number of values in the index at the last summary
+     */
+    public long getRowCount() {
+        return summary().rows;
+    }
+
+    /**
+     * @return the number of keys with a non-empty bucket
+     */
+    public long getKeyCount() {
+        return summary().keys;
+    }
+
+    /**
+     * @return the size of the largest bucket
+     */
+    public int getMaxBucketSize() {
+        return summary().maxBucket;
+    }
+
+    /**
+     * @return the mean size of the non-empty buckets
+     */
+    public double getAverageBucketSize() {
+        Summary s = summary();
+        return s.keys == 0 ? 0 : (double) s.rows / s.keys;
+    }
+
+    /**
+     * Returns the bucket size distribution. Element i is the number of
+     * buckets with a size in [2^i, 2^(i + 1)).
+     *
+     * @return the number of buckets per power of two of their size
+     */
+    public long[] getBucketSizeDistribution() {
+        return summary().distribution.clone();
+    }
+
+    /**
+     * @return true if the index is ordered and a histogram is kept
+     */
+    public boolean hasHistogram() {
+        return index instanceof NavigableMap;
+    }
+
+    /**
+     * Estimates the fraction of rows whose key satisfies the relation
+     * with the given value, i.e. relation.test(key, value). Equality is
+     * looked up in the index, inequalities use the histogram of an
+     * ordered index.
+     *
+     * @param relation the relation of a query
+     * @param value the value the keys are compared with
+     * @return a selectivity between 0 and 1
+     */
+    public double estimateSelectivity(HgBiPredicate<?, ?> relation, Object value) {
+        Summary s = summary();
+        if (s.rows == 0) {
+            return 0;
+        }
+
+        if (relation == HgRelation.EQ || relation == HgRelation.NE) {
+            Set<?> bucket = index.get(value);
+            double eq = bucket == null ? 0 : Math.min(1, (double) bucket.size() / s.rows);
+            return relation == HgRelation.EQ ? eq : 1 - eq;
+        } else if (value == null) {
+            return DEFAULT_SELECTIVITY;
+        } else if (relation == HgRelation.LT || relation == HgRelation.LE) {
+            return estimateRangeSelectivity(null, false, value, relation == HgRelation.LE);
+        } else if (relation == HgRelation.GT || relation == HgRelation.GE) {
+            return estimateRangeSelectivity(value, relation == HgRelation.GE, null, false);
+        }
+
+        return DEFAULT_SELECTIVITY;
+    }
+
+    /**
+     * Estimates the fraction of rows whose key lies within a range,
+     * using the histogram of an ordered index.
+     *
+     * @param lo the lower bound, or null if unbounded
+     * @param loInclusive true if keys equal to lo are in the range
+     * @param hi the upper bound, or null if unbounded
+     * @param hiInclusive true if keys equal to hi are in the range
+     * @return a selectivity between 0 and 1
+     */
+    public double estimateRangeSelectivity(Object lo, boolean loInclusive, Object hi, boolean hiInclusive) {
+        Summary s = summary();
+        if (s.rows == 0) {
+            return 0;
+        } else if (s.bounds == null) {
+            return lo != null && hi != null ? DEFAULT_SELECTIVITY * DEFAULT_SELECTIVITY : DEFAULT_SELECTIVITY;
+        }
+
+        double below = hi == null ? s.rows : s.countBelow(hi, hiInclusive);
+        double under = lo == null ? 0 : s.countBelow(lo, !loInclusive);
+        return Math.max(0, below - under) / s.rows;
+    }
+
+    /**
+     * Estimates the number of rows of the table whose key satisfies the
+     * relation with the given value.
+     *
+     * @param relation the relation of a query
+     * @param value the value the keys are compared with
+     * @return the estimated number of rows
+     * @see #estimateSelectivity(HgBiPredicate, Object)
+     */
+    public long estimateCount(HgBiPredicate<?, ?> relation, Object value) {
+        return Math.round(estimateSelectivity(relation, value) * table.getRowCount());
+    }
+
+    private Summary summary() {
+        Summary s = summary;
+        if (s == null || isStale(s, modifications.sum())) {
+            s = refresh();
+        }
+        return s;
+    }
+
+    private static boolean isStale(Summary s, long modifications) {
+        return modifications - s.modifications > Math.max(MIN_STALE, (long) (s.rows * STALE_FRACTION));
+    }
+
+    private synchronized Summary refresh() {
+        long current = modifications.sum();
+        Summary s = summary;
+        if (s == null || isStale(s, current)) {
+            s = new Summary(index, current);
+            summary = s;
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        Summary s = summary();
+        return String.format("rows: %d, keys: %d, max bucket: %d", s.rows, s.keys, s.maxBucket);
+    }
+
+    private static final class Summary {
+        final long modifications;
+        long rows, keys;
+        int maxBucket;
+        final long[] distribution = new long[Integer.SIZE];
+
+        /*
+         * Equi-depth histogram: bounds[i] is the largest key of bucket i,
+         * cumulative[i] the number of rows with a key up to and including
+         * bounds[i], and boundRows[i] the number of rows with key bounds[i].
+         */
+        Object min;
+        Object[] bounds;
+        long[] cumulative, boundRows;
+        Comparator<Object> comparator;
+
+        @SuppressWarnings("unchecked") // comparator of a NavigableMap
+        Summary(Map<?, ? extends Set<?>> index, long modifications) {
+            this.modifications = modifications;
+
+            boolean ordered = index instanceof NavigableMap;
+            List<Object> keyList = new ArrayList<>();
+            long[] sizes = new long[16];
+
+            for (Map.Entry<?, ? extends Set<?>> e : index.entrySet()) {
+                int size = e.getValue().size();
+                if (size == 0) {
+                    continue;
+                }
+
+                if (ordered) {
+                    if (keyList.size() == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, sizes.length * 2);
+                    }
+                    sizes[keyList.size()] = size;
+                    keyList.add(e.getKey());
+                }
+
+                ++keys;
+                rows += size;
+                maxBucket = Math.max(maxBucket, size);
+                ++distribution[31 - Integer.numberOfLeadingZeros(size)];
+            }
+
+            if (ordered && keys > 0) {
+                comparator = (Comparator<Object>) ((NavigableMap<?, ?>) index).comparator();
+                buildHistogram(keyList, sizes);
+            }
+        }
+
+        private void buildHistogram(List<Object> keyList, long[] sizes) {
+            int n = (int) Math.min(HISTOGRAM_BUCKETS, keys);
+            bounds = new Object[n];
+            cumulative = new long[n];
+            boundRows = new long[n];
+            min = keyList.get(0);
+
+            long sum = 0;
+            int b = 0;
+            for (int i = 0; i < keyList.size() && b < n; ++i) {
+                sum += sizes[i];
+                // close bucket b once it holds its share of the rows
+                if (sum * n >= (b + 1) * rows || i == keyList.size() - 1) {
+                    bounds[b] = keyList.get(i);
+                    cumulative[b] = sum;
+                    boundRows[b] = sizes[i];
+                    ++b;
+                }
+            }
+
+            if (b < n) {
+                bounds = Arrays.copyOf(bounds, b);
+                cumulative = Arrays.copyOf(cumulative, b);
+                boundRows = Arrays.copyOf(boundRows, b);
+            }
+        }
+
+        @SuppressWarnings("unchecked") // keys of an ordered index are Comparable
+        private int compare(Object a, Object b) {
+            return comparator != null ? comparator.compare(a, b) : ((Comparable<Object>) a).compareTo(b);
+        }
+
+        /**
+         * Estimates the number of rows with a key below the value, or
+         * below or equal to it if inclusive is set.
+         */
+        double countBelow(Object value, boolean inclusive) {
+            if (compare(value, min) < 0) {
+                return 0;
+            }
+
+            // first bound at or above value
+            int lo = 0, hi = bounds.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(bounds[mid], value) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            if (lo == bounds.length) {
+                return rows;
+            } else if (compare(bounds[lo], value) == 0) {
+                return inclusive ? cumulative[lo] : cumulative[lo] - boundRows[lo];
+            }
+
+            // value is strictly inside bucket lo, below its bound
+            long before = lo == 0 ? 0 : cumulative[lo - 1];
+            long inside = cumulative[lo] - boundRows[lo] - before;
+            Object from = lo == 0 ? min : bounds[lo - 1];
+            return before + inside * interpolate(from, bounds[lo], value);
+        }
+
+        /**
+         * Position of value between from and to, assuming numeric keys
+         * are spread uniformly and anything else lies halfway.
+         */
+        private double interpolate(Object from, Object to, Object value) {
+            if (comparator == null && from instanceof Number
+                    && to instanceof Number && value instanceof Number) {
+                double f = ((Number) from).doubleValue();
+                double t = ((Number) to).doubleValue();
+                double v = ((Number) value).doubleValue();
+                if (t > f) {
+                    return Math.max(0, Math.min(1, (v - f) / (t - f)));
+                }
+            }
+            return 0.5;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.HgTupleStream.HgTuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The result of a join of whole tables, which is kept up to date by the
+ * hooks of the tables instead of being joined again for every read:
+ *
+ * <code>
+ * HgJoinView view = HgDB.materialize(
+ *     new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()));
+ * for (HgTuple t : view.stream()) { ... }
+ * </code>
+ *
+ * When a row is inserted into one of the tables, only the tuples which
+ * contain it are joined, by binding the row to each of the slots of its
+ * table in turn and joining it with the indexes of the other tables.
+ * When a row is removed, the tuples which contain it are found in the
+ * index of the view by row. An update of a value is a removal and an
+ * insertion of the row. Reads iterate over an array of the tuples, which
+ * is built again by the first read after a change.
+ *
+ * The changes of a view may be pushed to an {@link HgSubscriber}, see
+ * {@link HgDB#subscribe(HgSubscriber, JoinPredicate...)}.
+ *
+ * Views follow the latest writes, like {@link HgTableStatistics}, and not
+ * the version read by an {@link HgSnapshot}. A view must be closed once
+ * it is no longer needed, or the tables keep maintaining it.
+ *
+ * @see HgDB#materialize
+ */
+public class HgJoinView implements AutoCloseable {
+    private final JoinPredicate[] predicates;
+    private final ValueExtractableSeed<?>[][] seeds;
+    private final TableID<?>[] ids;
+    private final Class<?>[] classes;
+    private final HgTableStatistics[] tables;
+    private final Listener[] listeners;
+    private final HgSubscriber<HgTuple> subscriber;
+
+    /*
+     * The stream which owns the tuples of the view, whose slots are ids
+     */
+    private final HgTupleStream owner;
+    private final Set<HgTuple> tuples = new LinkedHashSet<>();
+    private final Map<Object, List<HgTuple>>[] index;
+    private boolean closed;
+
+    /*
+     * The tuples as of the last read, or null if they have changed since
+     */
+    private HgTuple[] snapshot;
+
+    /**
+     * @param predicates one or more JoinPredicates between streams over
+     *                   whole tables, such as OrderTable.on.ono()
+     * @throws IllegalArgumentException if a stream is not over a whole
+     *                                  generated table
+     * @throws IllegalStateException if predicates do not unify
+     */
+    public HgJoinView(JoinPredicate... predicates) {
+        this(null, predicates);
+    }
+
+    /**
+     * @param subscriber receives the tuples which are added to or removed
+     *                   from the view after it has been built, or null
+     * @param predicates one or more JoinPredicates between streams over
+     *                   whole tables
+     * @see HgDB#subscribe(HgSubscriber, JoinPredicate...)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    HgJoinView(HgSubscriber<HgTuple> subscriber, JoinPredicate... predicates) {
+        this.subscriber = subscriber;
+        this.predicates = predicates.clone();
+        this.seeds = new ValueExtractableSeed<?>[predicates.length][];
+
+        Map<TableID<?>, Class<?>> slots = new LinkedHashMap<>();
+        for (int i = 0; i < predicates.length; ++i) {
+            seeds[i] = new ValueExtractableSeed<?>[]{seed(predicates[i].streamA), seed(predicates[i].streamB)};
+            for (ValueExtractableSeed<?> seed : seeds[i]) {
+                slots.put(seed.getTableId(), seed.getContainerClass());
+            }
+        }
+
+        this.owner = new HgTupleStream(slots.keySet(), Collections.<TableID<?>>emptySet()) {
+            @Override
+            public boolean hasNext() {
+                return false;
+            }
+
+            @Override
+            public HgTuple next() {
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void reset() {
+            }
+
+            @Override
+            public boolean isIndexed() {
+                return false;
+            }
+        };
+
+        this.ids = owner.slotIds();
+        this.classes = new Class<?>[ids.length];
+        this.index = new Map[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            classes[i] = slots.get(ids[i]);
+            index[i] = new IdentityHashMap<>();
+        }
+
+        Set<HgTableStatistics> distinct = new LinkedHashSet<>();
+        for (TableID<?> id : ids) {
+            distinct.add(id.getStatistics());
+        }
+        this.tables = distinct.toArray(new HgTableStatistics[distinct.size()]);
+        this.listeners = new Listener[tables.length];
+
+        synchronized (this) {
+            for (int i = 0; i < tables.length; ++i) {
+                listeners[i] = new Listener(tables[i]);
+                tables[i].addListener(listeners[i]);
+            }
+
+            for (HgTuple t : HgDB.join(bind(-1, null))) {
+                add(t);
+            }
+        }
+    }
+
+    private static ValueExtractableSeed<?> seed(HgTupleStream stream) {
+        ValueExtractable fe = stream.getFieldExtractor();
+        if (!stream.isUnfiltered() || !(fe instanceof ValueExtractableSeed)
+                || fe.getTableId().getStatistics() == null) {
+            throw new IllegalArgumentException("Views can only join whole generated tables!");
+        }
+        return (ValueExtractableSeed<?>) fe;
+    }
+
+    /**
+     * @return the number of tuples in the view
+     */
+    public synchronized int size() {
+        return tuples.size();
+    }
+
+    /**
+     * @return a stream over the tuples of the view as they are now
+     */
+    public synchronized HgTupleStream stream() {
+        if (snapshot == null) {
+            snapshot = tuples.toArray(new HgTuple[tuples.size()]);
+        }
+        return new ViewStream(snapshot);
+    }
+
+    /**
+     * @param id a table of the view
+     * @param row a row of the table
+     * @param <T> the type of the rows of the table
+     * @return a stream over the tuples of the view which contain row
+     */
+    public synchronized <T> HgTupleStream lookup(TableID<T> id, T row) {
+        int slot = owner.slotOf(id);
+        if (slot < 0) {
+            throw new IllegalArgumentException("ID not present in view.");
+        }
+
+        List<HgTuple> matches = index[slot].get(row);
+        return new ViewStream(matches == null ? new HgTuple[0] : matches.toArray(new HgTuple[matches.size()]));
+    }
+
+    /**
+     * Stops the maintenance of the view and releases its tuples.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            for (int i = 0; i < tables.length; ++i) {
+                tables[i].removeListener(listeners[i]);
+            }
+            tuples.clear();
+            snapshot = null;
+            for (Map<Object, List<HgTuple>> rows : index) {
+                rows.clear();
+            }
+        }
+    }
+
+    /**
+     * Builds new predicates like those of the view, over whole tables,
+     * except that the streams of the given slot hold only row.
+     *
+     * @param slot the slot to bind, or -1 for none
+     */
+    private JoinPredicate[] bind(int slot, Object row) {
+        JoinPredicate[] result = new JoinPredicate[predicates.length];
+        for (int i = 0; i < predicates.length; ++i) {
+            result[i] = new JoinPredicate(
+                    input(seeds[i][0], slot, row), input(seeds[i][1], slot, row), predicates[i].relation);
+        }
+        return result;
+    }
+
+    private HgTupleStream input(ValueExtractableSeed<?> seed, int slot, Object row) {
+        if (slot >= 0 && seed.getTableId().equals(ids[slot])) {
+            return HgTupleStream.createJoinInput(
+                    seed, new HgQueryResultStream<>(Collections.singletonList(row)), true);
+        }
+        return seed.getDefaultStream().joinOn(seed);
+    }
+
+    private synchronized void inserted(HgTableStatistics table, Object row) {
+        if (closed) {
+            return;
+        }
+
+        // the row may be reported twice, e.g. by an update of two values
+        removed(table, row);
+
+        for (int slot = 0; slot < ids.length; ++slot) {
+            if (ids[slot].getStatistics() != table || !classes[slot].isInstance(row)) {
+                continue;
+            }
+
+            for (HgTuple t : HgDB.join(bind(slot, row))) {
+                // tuples with row in an earlier slot were added for that slot
+                boolean seen = false;
+                for (int earlier = 0; earlier < slot && !seen; ++earlier) {
+                    seen = ids[earlier].getStatistics() == table && t.get(ids[earlier]) == row;
+                }
+                if (!seen) {
+                    HgTuple added = add(t);
+                    if (subscriber != null) {
+                        subscriber.inserted(added);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void removed(HgTableStatistics table, Object row) {
+        for (int slot = 0; slot < ids.length; ++slot) {
+            if (ids[slot].getStatistics() != table) {
+                continue;
+            }
+
+            List<HgTuple> matches = index[slot].remove(row);
+            if (matches == null) {
+                continue;
+            }
+
+            snapshot = null;
+            for (HgTuple t : matches) {
+                if (!tuples.remove(t)) {
+                    continue;
+                }
+                if (subscriber != null) {
+                    subscriber.removed(t);
+                }
+
+                for (int other = 0; other < ids.length; ++other) {
+                    if (other == slot) {
+                        continue;
+                    }
+
+                    Object entry = t.get(ids[other]);
+                    List<HgTuple> bucket = index[other].get(entry);
+                    if (bucket != null) {
+                        bucket.remove(t);
+                        if (bucket.isEmpty()) {
+                            index[other].remove(entry);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a copy of a joined tuple to the view and its index.
+     *
+     * @return the copy
+     */
+    private HgTuple add(HgTuple joined) {
+        Object[] rows = new Object[ids.length];
+        for (int slot = 0; slot < ids.length; ++slot) {
+            rows[slot] = joined.get(ids[slot]);
+        }
+
+        HgTuple t = owner.tuple(rows);
+        tuples.add(t);
+        snapshot = null;
+        for (int slot = 0; slot < ids.length; ++slot) {
+            index[slot].computeIfAbsent(rows[slot], k -> new ArrayList<>(1)).add(t);
+        }
+        return t;
+    }
+
+    private final class Listener implements HgTableListener {
+        private final HgTableStatistics table;
+
+        Listener(HgTableStatistics table) {
+            this.table = table;
+        }
+
+        @Override
+        public void inserted(Object row) {
+            HgJoinView.this.inserted(table, row);
+        }
+
+        @Override
+        public void removed(Object row) {
+            HgJoinView.this.removed(table, row);
+        }
+    }
+
+    /**
+     * A stream over an array of tuples of the view, which is not changed
+     * once the stream has been created.
+     */
+    private final class ViewStream extends HgTupleStream {
+        private final HgTuple[] rows;
+        private int position;
+
+        ViewStream(HgTuple[] rows) {
+            super(owner.getContainedIds(), Collections.<TableID<?>>emptySet());
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < rows.length;
+        }
+
+        @Override
+        public HgTuple next() {
+            return rows[position++];
+        }
+
+        @Override
+        public void reset() {
+            position = 0;
+        }
+
+        @Override
+        public boolean isIndexed() {
+            return false;
+        }
+
+        @Override
+        public long getExactSizeIfKnown() {
+            return rows.length;
+        }
+    }
+}
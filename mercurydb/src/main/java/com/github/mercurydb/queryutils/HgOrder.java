@@ -0,0 +1,45 @@
+package com.github.mercurydb.queryutils;
+
+/**
+ * The sort order of a stream: a value, which must be Comparable, and a
+ * direction. Null values sort first in ascending order. The value of a
+ * tuple is extracted from the instance of the table of the value.
+ *
+ * @see HgStream#top(HgOrder, long)
+ * @see HgDB#top
+ */
+public final class HgOrder {
+    public final ValueExtractable value;
+    public final boolean descending;
+
+    private HgOrder(ValueExtractable value, boolean descending) {
+        this.value = value;
+        this.descending = descending;
+    }
+
+    /**
+     * @param value the value to sort by
+     * @return ascending order of the value
+     */
+    public static HgOrder asc(ValueExtractable value) {
+        return new HgOrder(value, false);
+    }
+
+    /**
+     * @param value the value to sort by
+     * @return descending order of the value
+     */
+    public static HgOrder desc(ValueExtractable value) {
+        return new HgOrder(value, true);
+    }
+
+    /**
+     * @param row a row or an HgTuple
+     * @return the instance of the table of the value
+     */
+    Object instance(Object row) {
+        return row instanceof HgTupleStream.HgTuple
+                ? ((HgTupleStream.HgTuple) row).get(value.getTableId())
+                : row;
+    }
+}
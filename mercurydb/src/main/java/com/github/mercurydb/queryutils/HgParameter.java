@@ -0,0 +1,56 @@
+package com.github.mercurydb.queryutils;
+
+/**
+ * A placeholder for the constant of a relation in a prepared query:
+ *
+ * <code>
+ * HgPreparedQuery&lt;Odetail&gt; q = HgDB.prepare(
+ *     HgParameter.of(OdetailTable.eq.ono(1020)),
+ *     OdetailTable.lt.qty(5));
+ * HgStream&lt;Odetail&gt; rows = q.execute(1021);
+ * </code>
+ *
+ * The constant of the wrapped relation is a sample, with which the query
+ * is planned. Each execution binds a new constant in its place.
+ *
+ * @param <T> the type of the rows
+ * @param <F> the type of the constant
+ * @see HgPreparedQuery
+ */
+public class HgParameter<T, F> extends AbstractValueExtractablePredicate<T, F> {
+    public final ValueExtractableRelation<T, F> relation;
+
+    private HgParameter(ValueExtractableRelation<T, F> relation) {
+        super(relation);
+        this.relation = relation;
+    }
+
+    /**
+     * @param relation a relation whose constant is a sample value
+     * @param <T> the type of the rows
+     * @param <F> the type of the constant
+     * @return a parameter which binds the constant of the relation
+     */
+    public static <T, F> HgParameter<T, F> of(ValueExtractableRelation<T, F> relation) {
+        return new HgParameter<>(relation);
+    }
+
+    @Override
+    public boolean test(F value) {
+        return relation.test(value);
+    }
+
+    @Override
+    public boolean testInstance(Object instance) {
+        return relation.testInstance(instance);
+    }
+
+    /**
+     * @param value the constant of this execution
+     * @return the relation with the constant
+     */
+    @SuppressWarnings("unchecked") // checked by the key type or the relation
+    ValueExtractableRelation<T, F> bind(Object value) {
+        return relation.bind((F) value);
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A join whose order is planned once by {@link JoinPlanner} and which
+ * is executed many times. Each execution builds the joiners in the
+ * planned order without searching the join orders again.
+ *
+ * The joiners of every execution read the same input streams, so the
+ * result of an execution must be consumed before the next execution, as
+ * with a JDBC statement. Once the number of rows of any joined table has
+ * changed by more than the replan threshold, the next execution plans
+ * the join again.
+ *
+ * While the {@link HgQueryCache} is enabled, the tuples of an execution
+ * are cached until one of the joined tables changes, and executions
+ * return streams over the cached tuples.
+ *
+ * @see HgDB#prepareJoin
+ * @see HgPreparedQuery
+ */
+public class HgPreparedJoin {
+    private final JoinPredicate[] predicates;
+    private final HgTableStatistics[] statistics;
+    private final boolean cacheable;
+    private volatile double replanThreshold = HgPreparedQuery.DEFAULT_REPLAN_THRESHOLD;
+    private volatile Plan plan;
+    private int planCount;
+
+    /*
+     * The predicate of the last result, which covers every joined table
+     */
+    private volatile JoinPredicate resultPredicate;
+
+    private static final class Plan {
+        final List<JoinPredicate> order;
+        final long[] rowCounts;
+
+        Plan(List<JoinPredicate> order, long[] rowCounts) {
+            this.order = order;
+            this.rowCounts = rowCounts;
+        }
+    }
+
+    /**
+     * @param predicates One or more JoinPredicates
+     * @throws IllegalStateException  if predicates do not unify
+     */
+    public HgPreparedJoin(JoinPredicate... predicates) {
+        this.predicates = predicates.clone();
+
+        Set<HgTableStatistics> tables = new LinkedHashSet<>();
+        for (JoinPredicate predicate : predicates) {
+            for (TableID<?> id : predicate.streamA.getContainedIds()) {
+                tables.add(id.getStatistics());
+            }
+            for (TableID<?> id : predicate.streamB.getContainedIds()) {
+                tables.add(id.getStatistics());
+            }
+        }
+        // a result which reads a table without statistics can not be validated
+        this.cacheable = !tables.remove(null);
+        this.statistics = tables.toArray(new HgTableStatistics[tables.size()]);
+
+        // fail now rather than at the first execution
+        currentPlan();
+    }
+
+    /**
+     * @return the number of times this join has been planned
+     */
+    public synchronized int getPlanCount() {
+        return planCount;
+    }
+
+    /**
+     * @return the predicates in the planned order
+     */
+    public List<JoinPredicate> getOrder() {
+        return new ArrayList<>(currentPlan().order);
+    }
+
+    /**
+     * @param threshold the change in the number of rows of a table, as
+     *                  a fraction of the number of rows at planning time,
+     *                  beyond which the join is planned again
+     * @see HgPreparedQuery#setReplanThreshold(double)
+     */
+    public void setReplanThreshold(double threshold) {
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("Replan threshold must not be negative!");
+        }
+        this.replanThreshold = threshold;
+    }
+
+    /**
+     * Plans the join again at its next execution.
+     */
+    public void replan() {
+        plan = null;
+    }
+
+    /**
+     * @return the joined tuples
+     */
+    public HgPolyTupleStream execute() {
+        HgQueryCache cache = HgDB.getQueryCache();
+        if (cache != null && cacheable) {
+            List<HgTupleStream.HgTuple> tuples = cache.rows(this, statistics, this::run);
+            if (tuples != null) {
+                return new CachedResult(resultPredicate, tuples);
+            }
+        }
+
+        return run();
+    }
+
+    private HgPolyTupleStream run() {
+        HgPolyTupleStream result = HgDB.join(currentPlan().order);
+        resultPredicate = result._predicate;
+        return result;
+    }
+
+    private Plan currentPlan() {
+        Plan current = plan;
+        if (current == null || drifted(current)) {
+            synchronized (this) {
+                current = plan;
+                if (current == null || drifted(current)) {
+                    long[] rowCounts = new long[statistics.length];
+                    for (int i = 0; i < statistics.length; ++i) {
+                        rowCounts[i] = statistics[i].getRowCount();
+                    }
+                    current = plan = new Plan(HgDB.plan(predicates), rowCounts);
+                    ++planCount;
+                }
+            }
+        }
+        return current;
+    }
+
+    private boolean drifted(Plan plan) {
+        for (int i = 0; i < statistics.length; ++i) {
+            long planned = plan.rowCounts[i];
+            if (Math.abs(statistics[i].getRowCount() - planned) > replanThreshold * Math.max(planned, 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A stream over the cached tuples of an execution.
+     */
+    private static final class CachedResult extends HgPolyTupleStream {
+        private final List<HgTuple> tuples;
+        private int position;
+
+        CachedResult(JoinPredicate predicate, List<HgTuple> tuples) {
+            super(predicate);
+            this.tuples = tuples;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < tuples.size();
+        }
+
+        @Override
+        public HgTuple next() {
+            return tuples.get(position++);
+        }
+
+        @Override
+        public void reset() {
+            position = 0;
+        }
+
+        @Override
+        public long getExactSizeIfKnown() {
+            return tuples.size();
+        }
+    }
+}
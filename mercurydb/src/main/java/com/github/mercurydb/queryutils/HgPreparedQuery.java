@@ -0,0 +1,247 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single table query which is planned once and executed many times
+ * with different constants, which are bound to its {@link HgParameter}s:
+ *
+ * <code>
+ * HgPreparedQuery&lt;Odetail&gt; q = HgDB.prepare(
+ *     HgParameter.of(OdetailTable.ge.ono(1020)),
+ *     HgParameter.of(OdetailTable.lt.qty(5)));
+ * for (Odetail o : q.execute(1021, 3)) { ... }
+ * </code>
+ *
+ * The plan is made like that of {@link HgDB#query}, with the sample
+ * constants of the parameters, and keeps the index from which the query
+ * starts. An execution binds the constants to the seeds of the relations
+ * and starts from the same index, without estimating the rows of every
+ * predicate again. The predicates which no index answers are tested by
+ * an {@link HgCompiledFilter}. If the sample constants cannot all hold,
+ * or the bound predicates fuse into a query which cannot start from the
+ * index of the plan, the query is planned with the bound constants
+ * instead.
+ *
+ * Once the number of rows in the table has changed by more than the
+ * replan threshold, as a fraction of the number of rows when the plan
+ * was made, the next execution plans the query again.
+ *
+ * While the {@link HgQueryCache} is enabled, the rows of an execution are
+ * cached by the values of its parameters until the table changes.
+ *
+ * @param <T> the type of the rows
+ * @see HgDB#prepare
+ */
+public class HgPreparedQuery<T> {
+    public static final double DEFAULT_REPLAN_THRESHOLD = 0.25;
+
+    private final AbstractValueExtractablePredicate<T, ?>[] predicates;
+    private final int[] parameters;
+    private final HgTableStatistics statistics;
+    private final HgTableStatistics[] tables;
+    private volatile double replanThreshold = DEFAULT_REPLAN_THRESHOLD;
+    private volatile Plan plan;
+    private int planCount;
+
+    private static final class Plan {
+        /**
+         * The index which the query starts from, or null for a scan.
+         */
+        final Map<Object, ?> driver;
+        final long rowCount;
+
+        Plan(Map<Object, ?> driver, long rowCount) {
+            this.driver = driver;
+            this.rowCount = rowCount;
+        }
+
+        /**
+         * @return the position of the predicate which starts from the
+         * driver, or -1 if the query scans the table
+         */
+        int driverOf(AbstractValueExtractablePredicate<?, ?>[] fused) {
+            if (driver != null) {
+                for (int i = 0; i < fused.length; ++i) {
+                    if (fused[i].getIndex() == driver && HgDB.isIndexDriven(fused[i])) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return true if the fused predicates of an execution can start
+         * from the driver, or the plan is a scan
+         */
+        boolean fits(AbstractValueExtractablePredicate<?, ?>[] fused) {
+            return driver == null || driverOf(fused) >= 0;
+        }
+    }
+
+    /**
+     * @param predicates the predicates of the query, of which the
+     *                   HgParameters are bound by each execution
+     */
+    public HgPreparedQuery(AbstractValueExtractablePredicate<T, ?>[] predicates) {
+        if (predicates.length == 0) {
+            throw new IllegalArgumentException("A prepared query needs at least one predicate!");
+        }
+
+        this.predicates = predicates.clone();
+        this.statistics = predicates[0].getTableId().getStatistics();
+        this.tables = new HgTableStatistics[]{statistics};
+
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < predicates.length; ++i) {
+            if (predicates[i] instanceof HgParameter) {
+                positions.add(i);
+            }
+        }
+        this.parameters = positions.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return the number of values which execute() binds
+     */
+    public int getParameterCount() {
+        return parameters.length;
+    }
+
+    /**
+     * @return the number of times this query has been planned
+     */
+    public synchronized int getPlanCount() {
+        return planCount;
+    }
+
+    /**
+     * @param threshold the change in the number of rows of the table, as
+     *                  a fraction of the number of rows at planning time,
+     *                  beyond which the query is planned again
+     */
+    public void setReplanThreshold(double threshold) {
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("Replan threshold must not be negative!");
+        }
+        this.replanThreshold = threshold;
+    }
+
+    /**
+     * Plans the query again at its next execution.
+     */
+    public void replan() {
+        plan = null;
+    }
+
+    /**
+     * @param values the constants of the parameters, in their order
+     * @return a stream over the rows which satisfy every predicate
+     */
+    public HgStream<T> execute(Object... values) {
+        if (values.length != parameters.length) {
+            throw new IllegalArgumentException(
+                    "Expected " + parameters.length + " parameters, got " + values.length + "!");
+        }
+
+        HgQueryCache cache = HgDB.getQueryCache();
+        if (cache != null && statistics != null) {
+            Object[] key = new Object[values.length + 1];
+            key[0] = this;
+            System.arraycopy(values, 0, key, 1, values.length);
+
+            List<T> rows = cache.rows(Arrays.asList(key), tables, () -> run(values));
+            if (rows != null) {
+                return new HgQueryResultStream<>(rows);
+            }
+        }
+
+        return run(values);
+    }
+
+    @SuppressWarnings("unchecked") // parameters of a query on T
+    private HgStream<T> run(Object[] values) {
+        AbstractValueExtractablePredicate<T, ?>[] bound = predicates.clone();
+        for (int i = 0; i < parameters.length; ++i) {
+            bound[parameters[i]] = ((HgParameter<T, ?>) predicates[parameters[i]]).bind(values[i]);
+        }
+
+        bound = HgDB.fuse(bound);
+        if (bound == null) {
+            return new HgQueryResultStream<>(Collections.<T>emptyList());
+        }
+
+        int i = currentPlan(bound).driverOf(bound);
+        if (i >= 0) {
+            AbstractValueExtractablePredicate<T, ?> first = bound[i];
+            System.arraycopy(bound, 0, bound, 1, i);
+            bound[0] = first;
+            return HgDB.execute(bound, true, true);
+        }
+
+        return HgDB.execute(bound, false, true);
+    }
+
+    /**
+     * @param bound the fused predicates of an execution
+     * @return a plan which the execution can start from
+     */
+    private Plan currentPlan(AbstractValueExtractablePredicate<T, ?>[] bound) {
+        Plan current = plan;
+        if (current == null || drifted(current) || !current.fits(bound)) {
+            synchronized (this) {
+                current = plan;
+                if (current == null || drifted(current)) {
+                    current = makePlan(samples());
+                }
+                if (current == null || !current.fits(bound)) {
+                    current = makePlan(bound);
+                }
+                if (current != plan) {
+                    plan = current;
+                    ++planCount;
+                }
+            }
+        }
+        return current;
+    }
+
+    private boolean drifted(Plan plan) {
+        return statistics != null && Math.abs(statistics.getRowCount() - plan.rowCount)
+                > replanThreshold * Math.max(plan.rowCount, 1);
+    }
+
+    /**
+     * @return the fused predicates with the sample constants of the
+     * parameters, or null if they cannot all hold
+     */
+    private AbstractValueExtractablePredicate<T, ?>[] samples() {
+        AbstractValueExtractablePredicate<T, ?>[] samples = predicates.clone();
+        for (int position : parameters) {
+            samples[position] = ((HgParameter<T, ?>) samples[position]).relation;
+        }
+        return HgDB.fuse(samples);
+    }
+
+    /**
+     * Plans the query from fused predicates.
+     *
+     * @return the plan, or null if fused is null, in which case there is
+     * no estimate to go by
+     */
+    private Plan makePlan(AbstractValueExtractablePredicate<T, ?>[] fused) {
+        if (fused == null) {
+            return null;
+        }
+
+        long rowCount = statistics == null ? 0 : statistics.getRowCount();
+        fused = fused.clone();
+        HgDB.sortByPriority(fused);
+        return new Plan(HgDB.isIndexDriven(fused[0]) ? fused[0].getIndex() : null, rowCount);
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of the results of prepared queries and joins, which
+ * is enabled by {@link HgDB#setQueryCacheSize(int)}. Results are keyed by
+ * the prepared query or join and the values of its parameters, and are
+ * kept as a list of rows until the least recently used one is evicted.
+ *
+ * Every result remembers the versions of the tables it was read from,
+ * see {@link HgTableStatistics#getVersion()}. The generated hooks change
+ * the version of a table after each insert, remove and update of a row,
+ * so a result is served only while none of its tables has changed since
+ * it was read. As for the indexes, values must only change in methods
+ * annotated with @HgUpdate.
+ *
+ * Snapshot tables cache a result only if no write was open while it
+ * was read, and a thread with an open {@link HgSnapshot} bypasses the
+ * cache, since its reads are older than the versions of the tables.
+ *
+ * @see HgPreparedQuery#execute(Object...)
+ * @see HgPreparedJoin#execute()
+ */
+public final class HgQueryCache {
+    private final int maxEntries;
+    private final LinkedHashMap<Object, Result> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final class Result {
+        final HgTableStatistics[] tables;
+        final long[] versions;
+        final List<?> rows;
+
+        Result(HgTableStatistics[] tables, long[] versions, List<?> rows) {
+            this.tables = tables;
+            this.versions = versions;
+            this.rows = rows;
+        }
+
+        boolean isCurrent() {
+            for (int i = 0; i < tables.length; ++i) {
+                if (tables[i].getVersion() != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param maxEntries the number of results beyond which the least
+     *                   recently used one is evicted
+     */
+    @SuppressWarnings("serial") // the map of entries is never serialized
+    HgQueryCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("A query cache must hold at least one result!");
+        }
+
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Object, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Result> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the number of results beyond which the least recently used
+     * one is evicted
+     */
+    public int getMaxSize() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the number of cached results, which may include stale ones
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of lookups which were served from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups which ran the query
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes every cached result.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the cached rows of a query, or runs it and caches its rows.
+     *
+     * @param key the prepared query or join and the values of its parameters
+     * @param tables the statistics of every table the query reads
+     * @param query runs the query
+     * @param <R> the type of the rows
+     * @return the rows of the query, which must not be modified, or null
+     * if this thread may not use the cache, in which case the query has
+     * not been run
+     */
+    @SuppressWarnings("unchecked") // the rows of a key are always of the same type
+    <R> List<R> rows(Object key, HgTableStatistics[] tables, Supplier<? extends Iterator<R>> query) {
+        if (HgSnapshot.isPinned()) {
+            return null;
+        }
+
+        Result result;
+        synchronized (this) {
+            result = entries.get(key);
+        }
+        if (result != null && result.isCurrent()) {
+            hits.increment();
+            return (List<R>) result.rows;
+        }
+        misses.increment();
+
+        // read the clock before the versions, so that a write which
+        // changes a table after its version was read is noticed below
+        long clock = HgVersionClock.lastVersion();
+        boolean quiescent = clock == HgVersionClock.stableVersion();
+
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; ++i) {
+            versions[i] = tables[i].getVersion();
+        }
+
+        List<R> rows = new ArrayList<>();
+        for (Iterator<R> it = query.get(); it.hasNext(); ) {
+            rows.add(it.next());
+        }
+        rows = Collections.unmodifiableList(rows);
+
+        if (quiescent && HgVersionClock.lastVersion() == clock) {
+            synchronized (this) {
+                entries.put(key, new Result(tables, versions, rows));
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries: %d, hits: %d, misses: %d", entries.size(), getHitCount(), getMissCount());
+    }
+}
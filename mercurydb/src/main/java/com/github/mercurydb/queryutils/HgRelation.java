@@ -1,7 +1,5 @@
 package com.github.mercurydb.queryutils;
 
-import com.google.common.collect.Iterables;
-
 import java.util.*;
 
 public abstract class HgRelation implements HgBiPredicate<Object, Object> {
@@ -10,7 +8,38 @@ public abstract class HgRelation implements HgBiPredicate<Object, Object> {
 
     abstract public HgRelation reversedRelation();
 
+    /**
+     * Tests two values of the same primitive type, encoded by
+     * {@link com.github.mercurydb.queryutils.indexes.PrimitiveKey}. The
+     * encoding preserves equality and order, so the result is that of
+     * test() on the boxed values. Joiners use this when both sides are a
+     * PrimitiveValueExtractable.
+     *
+     * @param k1 the encoded left hand side
+     * @param k2 the encoded right hand side
+     * @return the result of the relation
+     */
+    public boolean testKeys(long k1, long k2) {
+        throw new UnsupportedOperationException("Relation does not support encoded keys!");
+    }
+
+    /**
+     * @param relation a relation
+     * @return true if the relation is EQ, NE, LT, LE, GT or GE, which
+     * implement testKeys()
+     */
+    public static boolean comparesKeys(HgBiPredicate<?, ?> relation) {
+        return relation == EQ || relation == NE
+                || relation == LT || relation == LE
+                || relation == GT || relation == GE;
+    }
+
     public static final HgRelation EQ = new HgRelation() {
+        @Override
+        public boolean testKeys(long k1, long k2) {
+            return k1 == k2;
+        }
+
         @Override
         public boolean test(Object o1, Object o2) {
             return o1.equals(o2);
@@ -28,6 +57,11 @@ public abstract class HgRelation implements HgBiPredicate<Object, Object> {
     };
 
     public static final HgRelation NE = new HgRelation() {
+        @Override
+        public boolean testKeys(long k1, long k2) {
+            return k1 != k2;
+        }
+
         @Override
         public Iterable<Object> getFromIndex(Map<Object, ? extends Collection<Object>> index, Object value) {
             Set<Object> keySet = index.keySet();
@@ -40,7 +74,7 @@ public abstract class HgRelation implements HgBiPredicate<Object, Object> {
                 }
             }
 
-            return Iterables.concat(iterables);
+            return new HgBucketIterable<>(iterables);
         }
 
         @Override
@@ -56,11 +90,16 @@ public abstract class HgRelation implements HgBiPredicate<Object, Object> {
 
     public static final HgRelation LT = new HgRelation() {
         @Override
-        @SuppressWarnings("unchecked") // cast to TreeMap
+        public boolean testKeys(long k1, long k2) {
+            return k1 < k2;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") // cast to NavigableMap
         public Iterable<Object> getFromIndex(Map<Object, ? extends Collection<Object>> index, Object value) {
-            if (index instanceof TreeMap) {
-                TreeMap<Object, ? extends Collection<Object>> tIndex = (TreeMap) index;
-                return Iterables.concat(tIndex.headMap(value, false).values());
+            if (index instanceof NavigableMap) {
+                NavigableMap<Object, ? extends Collection<Object>> tIndex = (NavigableMap) index;
+                return new HgBucketIterable<>(tIndex.headMap(value, false).values());
             }
 
             throw new IllegalArgumentException("index must be ordered to use inequality relations!");
@@ -85,11 +124,16 @@ public abstract class HgRelation implements HgBiPredicate<Object, Object> {
 
     public static final HgRelation LE = new HgRelation() {
         @Override
-        @SuppressWarnings("unchecked") // cast to TreeMap
+        public boolean testKeys(long k1, long k2) {
+            return k1 <= k2;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") // cast to NavigableMap
         public Iterable<Object> getFromIndex(Map<Object, ? extends Collection<Object>> index, Object value) {
-            if (index instanceof TreeMap) {
-                TreeMap<Object, ? extends Collection<Object>> tIndex = (TreeMap) index;
-                return Iterables.concat(tIndex.headMap(value, true).values());
+            if (index instanceof NavigableMap) {
+                NavigableMap<Object, ? extends Collection<Object>> tIndex = (NavigableMap) index;
+                return new HgBucketIterable<>(tIndex.headMap(value, true).values());
             }
 
             throw new IllegalArgumentException("index must be ordered to use inequality relations!");
@@ -113,11 +157,16 @@ public abstract class HgRelation implements HgBiPredicate<Object, Object> {
 
     public static final HgRelation GT = new HgRelation() {
         @Override
-        @SuppressWarnings("unchecked") // cast to TreeMap
+        public boolean testKeys(long k1, long k2) {
+            return k1 > k2;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") // cast to NavigableMap
         public Iterable<Object> getFromIndex(Map<Object, ? extends Collection<Object>> index, Object value) {
-            if (index instanceof TreeMap) {
-                TreeMap<Object, ? extends Collection<Object>> tIndex = (TreeMap) index;
-                return Iterables.concat(tIndex.tailMap(value, false).values());
+            if (index instanceof NavigableMap) {
+                NavigableMap<Object, ? extends Collection<Object>> tIndex = (NavigableMap) index;
+                return new HgBucketIterable<>(tIndex.tailMap(value, false).values());
             }
 
             throw new IllegalArgumentException("index must be ordered to use inequality relations!");
@@ -141,11 +190,16 @@ public abstract class HgRelation implements HgBiPredicate<Object, Object> {
 
     public static final HgRelation GE = new HgRelation() {
         @Override
-        @SuppressWarnings("unchecked") // cast to TreeMap
+        public boolean testKeys(long k1, long k2) {
+            return k1 >= k2;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") // cast to NavigableMap
         public Iterable<Object> getFromIndex(Map<Object, ? extends Collection<Object>> index, Object value) {
-            if (index instanceof TreeMap) {
-                TreeMap<Object, ? extends Collection<Object>> tIndex = (TreeMap) index;
-                return Iterables.concat(tIndex.tailMap(value, true).values());
+            if (index instanceof NavigableMap) {
+                NavigableMap<Object, ? extends Collection<Object>> tIndex = (NavigableMap) index;
+                return new HgBucketIterable<>(tIndex.tailMap(value, true).values());
             }
 
             throw new IllegalArgumentException("index must be ordered to use inequality relations!");
@@ -0,0 +1,96 @@
+package com.github.mercurydb.queryutils;
+
+/**
+ * A pinned read version of snapshot tables. While a snapshot is open
+ * on a thread, every query and stream created by that thread reads the
+ * tables as they were when the snapshot was pinned, no matter how many
+ * writes are published in the mean time. Use it with try-with-resources:
+ * <code>
+ * try (HgSnapshot snapshot = HgSnapshot.pin()) {
+ *     for (HgTuple t : HgDB.join(...)) {
+ *         ...
+ *     }
+ * }
+ * </code>
+ * Queries and joins do not pin a snapshot by themselves. Without one,
+ * each iteration of an index bucket reads at the version which was
+ * stable when it started, so the buckets of one query or join may be
+ * read at different versions, and versions they need may be discarded
+ * while they run. Writes made by the pinning thread are not visible to
+ * its own snapshot.
+ *
+ * A snapshot versions which rows are in the tables and in which index
+ * buckets, not the fields of the rows, so a getter called on a row
+ * returns its latest value.
+ *
+ * Snapshots only apply to tables generated with --snapshot.
+ *
+ * @see HgVersionClock
+ */
+public final class HgSnapshot implements AutoCloseable {
+    private static final ThreadLocal<HgSnapshot> current = new ThreadLocal<>();
+
+    private final long version;
+    private final HgSnapshot previous;
+
+    private HgSnapshot(long version, HgSnapshot previous) {
+        this.version = version;
+        this.previous = previous;
+    }
+
+    /**
+     * Pins a snapshot on this thread. Nested snapshots share the
+     * version of the outermost one.
+     *
+     * @return the new snapshot, which must be closed on this thread
+     */
+    public static HgSnapshot pin() {
+        HgSnapshot outer = current.get();
+        long version;
+        if (outer == null) {
+            version = HgVersionClock.pin();
+        } else {
+            version = outer.version;
+            HgVersionClock.pin(version);
+        }
+
+        HgSnapshot snapshot = new HgSnapshot(version, outer);
+        current.set(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @return the version which reads on this thread currently see
+     */
+    public static long readVersion() {
+        HgSnapshot snapshot = current.get();
+        return snapshot == null ? HgVersionClock.stableVersion() : snapshot.version;
+    }
+
+    /**
+     * @return true if a snapshot is open on this thread
+     */
+    static boolean isPinned() {
+        return current.get() != null;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Unpins this snapshot.
+     *
+     * @throws IllegalStateException if this is not the innermost open
+     *                               snapshot of the calling thread
+     */
+    @Override
+    public void close() {
+        if (current.get() != this) {
+            throw new IllegalStateException("Snapshots must be closed in reverse order on the thread that pinned them");
+        }
+
+        current.set(previous);
+        HgVersionClock.unpin(version);
+    }
+}
@@ -0,0 +1,247 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Spliterators which let parallel streams split query results along
+ * the structure of the tables: filters split with their source,
+ * concatenated tables split between the tables, and index buckets
+ * split between buckets such that both halves hold about the same
+ * number of rows.
+ */
+final class HgSpliterators {
+    private HgSpliterators() {
+    }
+
+    static <T> Spliterator<T> filter(Spliterator<T> source, Predicate<? super T> predicate) {
+        return new Filter<>(source, predicate);
+    }
+
+    static <T> Spliterator<T> concat(List<Spliterator<T>> parts) {
+        return parts.size() == 1 ? parts.get(0) : new Concat<>(parts, 0, parts.size());
+    }
+
+    @SuppressWarnings("unchecked") // the array only ever holds buckets
+    static <T> Spliterator<T> buckets(Collection<? extends Collection<T>> buckets) {
+        Collection<T>[] array = (Collection<T>[]) buckets.toArray(new Collection<?>[buckets.size()]);
+        long[] prefix = new long[array.length + 1];
+        for (int i = 0; i < array.length; ++i) {
+            prefix[i + 1] = prefix[i] + array[i].size();
+        }
+
+        // all buckets of an index are of the same type
+        boolean sized = array.length == 0 || array[0].spliterator().hasCharacteristics(Spliterator.SIZED);
+        return new Buckets<>(array, prefix, 0, array.length, sized);
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static final class Filter<T> implements Spliterator<T>, Consumer<T> {
+        private final Spliterator<T> source;
+        private final Predicate<? super T> predicate;
+        private T item;
+
+        Filter(Spliterator<T> source, Predicate<? super T> predicate) {
+            this.source = source;
+            this.predicate = predicate;
+        }
+
+        @Override
+        public void accept(T t) {
+            item = t;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (source.tryAdvance(this)) {
+                T t = item;
+                item = null;
+                if (predicate.test(t)) {
+                    action.accept(t);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            source.forEachRemaining(t -> {
+                if (predicate.test(t)) {
+                    action.accept(t);
+                }
+            });
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<T> split = source.trySplit();
+            return split == null ? null : new Filter<>(split, predicate);
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return source.characteristics() & ~(SIZED | SUBSIZED);
+        }
+    }
+
+    private static final class Concat<T> implements Spliterator<T> {
+        private final List<Spliterator<T>> parts;
+        private int index;
+        private final int fence;
+
+        Concat(List<Spliterator<T>> parts, int index, int fence) {
+            this.parts = parts;
+            this.index = index;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            for (; index < fence; ++index) {
+                if (parts.get(index).tryAdvance(action)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            for (; index < fence; ++index) {
+                parts.get(index).forEachRemaining(action);
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int remaining = fence - index;
+            if (remaining == 1) {
+                return parts.get(index).trySplit();
+            } else if (remaining == 2) {
+                return parts.get(index++);
+            } else if (remaining > 2) {
+                int mid = (index + fence) >>> 1;
+                Spliterator<T> prefix = new Concat<>(parts, index, mid);
+                index = mid;
+                return prefix;
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = 0;
+            for (int i = index; i < fence; ++i) {
+                size = saturatedAdd(size, parts.get(i).estimateSize());
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            int characteristics = SIZED | NONNULL | CONCURRENT | IMMUTABLE;
+            for (int i = index; i < fence; ++i) {
+                characteristics &= parts.get(i).characteristics();
+            }
+            return characteristics;
+        }
+    }
+
+    /**
+     * Iterates buckets [index, fence) after the partly consumed bucket
+     * current, if any. prefix holds the running total of bucket sizes
+     * so that splits can balance rows rather than buckets.
+     */
+    private static final class Buckets<T> implements Spliterator<T> {
+        private final Collection<T>[] buckets;
+        private final long[] prefix;
+        private final boolean sized;
+        private int index;
+        private final int fence;
+        private Spliterator<T> current;
+
+        Buckets(Collection<T>[] buckets, long[] prefix, int index, int fence, boolean sized) {
+            this.buckets = buckets;
+            this.prefix = prefix;
+            this.index = index;
+            this.fence = fence;
+            this.sized = sized;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (true) {
+                if (current == null) {
+                    if (index >= fence) {
+                        return false;
+                    }
+                    current = buckets[index++].spliterator();
+                }
+                if (current.tryAdvance(action)) {
+                    return true;
+                }
+                current = null;
+            }
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            if (current != null) {
+                current.forEachRemaining(action);
+                current = null;
+            }
+            for (; index < fence; ++index) {
+                buckets[index].forEach(action);
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (fence - index >= 2) {
+                // split where the running total crosses half of the rows
+                long half = (prefix[index] + prefix[fence]) >>> 1;
+                int lo = index + 1, hi = fence - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (prefix[mid] < half) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                Spliterator<T> split = new Buckets<>(buckets, prefix, index, lo, sized);
+                index = lo;
+                return split;
+            } else if (current == null && index < fence) {
+                current = buckets[index++].spliterator();
+            }
+
+            return current == null ? null : current.trySplit();
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = prefix[fence] - prefix[index];
+            return current == null ? size : saturatedAdd(size, current.estimateSize());
+        }
+
+        @Override
+        public int characteristics() {
+            boolean exact = sized && (current == null || current.hasCharacteristics(SIZED));
+            return exact ? SIZED : 0;
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package com.github.mercurydb.queryutils;
 
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * // TODO documentation
@@ -10,6 +15,29 @@ import java.util.Iterator;
 public abstract class HgStream<T> implements Iterator<T>, Iterable<T>, Joinable {
     abstract public void reset();
 
+    /**
+     * Returns a java.util.stream.Stream over this stream. A parallel
+     * stream splits the underlying tables and index buckets and runs
+     * filters on the common fork-join pool. Note that this resets this
+     * stream, and that it must not be iterated while the returned stream
+     * is in use.
+     *
+     * @param parallel true for a parallel stream
+     * @return a Stream over the elements of this stream
+     */
+    public Stream<T> toJavaStream(boolean parallel) {
+        reset();
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * @return a parallel java.util.stream.Stream over this stream
+     * @see #toJavaStream(boolean)
+     */
+    public Stream<T> parallel() {
+        return toJavaStream(true);
+    }
+
     @SafeVarargs
     public final <F> HgStream<T> filter(final AbstractValueExtractablePredicate<T, F>... preds) {
         return new HgStream<T>() {
@@ -22,16 +50,7 @@ public abstract class HgStream<T> implements Iterator<T>, Iterable<T>, Joinable
             public boolean hasNext() {
                 while (stream.hasNext()) {
                     next = stream.next();
-                    boolean pass = true;
-
-                    for (AbstractValueExtractablePredicate<T, F> pred : preds) {
-                        if (!pred.test((F) pred.extractValue(next))) {
-                            pass = false;
-                            break;
-                        }
-                    }
-
-                    if (pass) {
+                    if (passes(next)) {
                         return true;
                     }
                 }
@@ -39,6 +58,21 @@ public abstract class HgStream<T> implements Iterator<T>, Iterable<T>, Joinable
                 return false;
             }
 
+            private boolean passes(T instance) {
+                for (AbstractValueExtractablePredicate<T, F> pred : preds) {
+                    if (!pred.testInstance(instance)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+
+            @Override
+            public Spliterator<T> spliterator() {
+                return HgSpliterators.filter(stream.spliterator(), this::passes);
+            }
+
             @Override
             public T next() {
                 return next;
@@ -56,6 +90,68 @@ public abstract class HgStream<T> implements Iterator<T>, Iterable<T>, Joinable
         };
     }
 
+    /**
+     * @param maxSize the maximum number of elements
+     * @return a stream over the first maxSize elements of this stream
+     */
+    public HgStream<T> limit(final long maxSize) {
+        return new HgStream<T>() {
+            private final HgStream<T> stream = HgStream.this;
+            private long count;
+
+            @Override
+            public boolean hasNext() {
+                return count < maxSize && stream.hasNext();
+            }
+
+            @Override
+            public T next() {
+                ++count;
+                return stream.next();
+            }
+
+            @Override
+            public void reset() {
+                stream.reset();
+                count = 0;
+            }
+
+            @Override
+            public Spliterator<T> spliterator() {
+                // the first elements must be taken in order
+                return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED);
+            }
+
+            @Override
+            public HgTupleStream joinOn(ValueExtractable fe) {
+                return HgTupleStream.createJoinInput(fe, this, true);
+            }
+        };
+    }
+
+    /**
+     * Returns the first k elements of this stream in the given order.
+     * Only k elements are kept while this stream is consumed, so that
+     * a small k costs a single comparison for most elements.
+     *
+     * @param order the order of the elements
+     * @param k the number of elements to return
+     * @return a stream over the first k elements in order
+     * @see HgDB#top
+     */
+    public HgStream<T> top(HgOrder order, long k) {
+        return new HgQueryResultStream<>(new HgTopK<T>(order, k).addAll(this).toList());
+    }
+
+    /**
+     * @param order the order of the elements
+     * @return a stream over all elements of this stream in order
+     * @see #top(HgOrder, long)
+     */
+    public HgStream<T> sorted(HgOrder order) {
+        return top(order, Long.MAX_VALUE);
+    }
+
     public HgStream<T> concat(final HgStream<? extends T> stream) {
         return new HgStream<T>() {
             HgStream<? extends T> a = HgStream.this;
@@ -89,6 +185,14 @@ public abstract class HgStream<T> implements Iterator<T>, Iterable<T>, Joinable
                 return a.next();
             }
 
+            @Override
+            @SuppressWarnings("unchecked") // streams are read-only
+            public Spliterator<T> spliterator() {
+                return HgSpliterators.concat(Arrays.asList(
+                        (Spliterator<T>) a.spliterator(),
+                        (Spliterator<T>) b.spliterator()));
+            }
+
             @Override
             public HgTupleStream joinOn(ValueExtractable fe) {
                 return HgTupleStream.createJoinInput(fe, this, true);
@@ -0,0 +1,31 @@
+package com.github.mercurydb.queryutils;
+
+/**
+ * Receives the rows which start or stop matching a subscription, see
+ * {@link HgDB#subscribe(HgSubscriber, AbstractValueExtractablePredicate[])}.
+ *
+ * Subscribers are called by the thread which changes the table, once
+ * the change has been made, so they must neither block nor throw.
+ *
+ * @param <T> the type of the rows, or HgTuple for a join
+ */
+public interface HgSubscriber<T> {
+    /**
+     * @param row a row which matches after it was inserted, or after an
+     *            update of a value of a row which did not match before
+     */
+    void inserted(T row);
+
+    /**
+     * @param row a row which matched before it was removed, or before an
+     *            update of a value after which it no longer matches
+     */
+    void removed(T row);
+
+    /**
+     * @param row a row which matches both before and after an update of
+     *            one of its values
+     */
+    default void updated(T row) {
+    }
+}
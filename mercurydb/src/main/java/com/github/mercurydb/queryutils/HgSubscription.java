@@ -0,0 +1,102 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A subscription to the changes of the rows of one table which satisfy
+ * every predicate of the subscription. The hooks of the table route each
+ * change to the subscriptions it may match through
+ * {@link HgSubscriptionRouter}, which tests only those.
+ *
+ * @param <T> the type of the rows
+ * @see HgDB#subscribe(HgSubscriber, AbstractValueExtractablePredicate[])
+ */
+public final class HgSubscription<T> implements AutoCloseable {
+    private final AbstractValueExtractablePredicate<T, ?>[] predicates;
+    private final HgSubscriber<T> subscriber;
+    private final HgSubscriptionRouter router;
+    private volatile boolean closed;
+
+    HgSubscription(HgSubscriber<T> subscriber, AbstractValueExtractablePredicate<T, ?>[] predicates) {
+        if (predicates.length == 0) {
+            throw new IllegalArgumentException("A subscription needs at least one predicate!");
+        }
+
+        HgTableStatistics table = predicates[0].getTableId().getStatistics();
+        if (table == null) {
+            throw new IllegalArgumentException("Subscriptions can only be made to generated tables!");
+        }
+
+        this.predicates = predicates.clone();
+        this.subscriber = subscriber;
+        this.router = HgSubscriptionRouter.add(table, this);
+    }
+
+    /**
+     * @return the predicates of the subscription
+     */
+    public List<AbstractValueExtractablePredicate<T, ?>> getPredicates() {
+        return Arrays.asList(predicates.clone());
+    }
+
+    AbstractValueExtractablePredicate<T, ?>[] predicates() {
+        return predicates;
+    }
+
+    /**
+     * @return true once the subscription has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops the changes from being pushed to the subscriber.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            router.remove(this);
+        }
+    }
+
+    /**
+     * @return true if the row satisfies every predicate
+     */
+    boolean matches(Object row) {
+        for (AbstractValueExtractablePredicate<T, ?> predicate : predicates) {
+            if (!predicate.testInstance(row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked") // rows of the table of the predicates
+    void inserted(Object row) {
+        if (!closed) {
+            subscriber.inserted((T) row);
+        }
+    }
+
+    @SuppressWarnings("unchecked") // rows of the table of the predicates
+    void removed(Object row) {
+        if (!closed) {
+            subscriber.removed((T) row);
+        }
+    }
+
+    @SuppressWarnings("unchecked") // rows of the table of the predicates
+    void updated(Object row) {
+        if (!closed) {
+            subscriber.updated((T) row);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HgSubscription" + Arrays.toString(predicates);
+    }
+}
@@ -0,0 +1,417 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Routes the changes of one table to the subscriptions they may match,
+ * like an index of the subscriptions:
+ *
+ * Subscriptions with an equality on a value are kept in a hash map by
+ * the constant of the equality, and a change is routed to those under
+ * the value of its row. Subscriptions with a lower bound on a Comparable
+ * value are kept in an array sorted by that bound, together with the
+ * largest upper bound of the subscriptions up to each position, like an
+ * interval tree flattened into an array: a change is routed by scanning
+ * down from the last lower bound below the value of its row, until no
+ * earlier subscription reaches up to the value. Subscriptions with only
+ * an upper bound are kept in a sorted map by that bound. All other
+ * subscriptions see every change. Only the routed subscriptions test
+ * their predicates.
+ *
+ * The routes are rebuilt when a subscription is added or closed, which
+ * is rare, and read without locking by the writing threads.
+ */
+final class HgSubscriptionRouter implements HgTableListener {
+    private static final Map<HgTableStatistics, HgSubscriptionRouter> routers = new IdentityHashMap<>();
+
+    private final HgTableStatistics table;
+
+    /*
+     * The subscriptions of all routers are only changed while holding the
+     * lock of the class
+     */
+    private final List<HgSubscription<?>> subscriptions = new ArrayList<>();
+    private volatile Routes routes = new Routes(new EqRoute[0], new RangeRoute[0], new HgSubscription<?>[0]);
+
+    /*
+     * The rows whose values are being updated, with the subscriptions
+     * which they matched before
+     */
+    private final Map<Object, Update> updates = new IdentityHashMap<>();
+
+    private HgSubscriptionRouter(HgTableStatistics table) {
+        this.table = table;
+    }
+
+    /**
+     * Adds a subscription to the router of the table, which is created
+     * and registered as a listener of the table by the first subscription.
+     *
+     * @return the router of the table
+     */
+    static synchronized HgSubscriptionRouter add(HgTableStatistics table, HgSubscription<?> subscription) {
+        HgSubscriptionRouter router = routers.get(table);
+        if (router == null) {
+            router = new HgSubscriptionRouter(table);
+            table.addListener(router);
+            routers.put(table, router);
+        }
+
+        router.subscriptions.add(subscription);
+        router.routes = build(router.subscriptions);
+        return router;
+    }
+
+    /**
+     * Removes a subscription from this router. Once the last one is
+     * removed, the router is unregistered from its table, and the next
+     * subscription creates a new one.
+     */
+    void remove(HgSubscription<?> subscription) {
+        synchronized (HgSubscriptionRouter.class) {
+            subscriptions.remove(subscription);
+            routes = build(subscriptions);
+            if (subscriptions.isEmpty()) {
+                routers.remove(table);
+                table.removeListener(this);
+            }
+        }
+    }
+
+    @Override
+    public void inserted(Object row) {
+        for (HgSubscription<?> subscription : matching(row)) {
+            subscription.inserted(row);
+        }
+    }
+
+    @Override
+    public void removed(Object row) {
+        for (HgSubscription<?> subscription : matching(row)) {
+            subscription.removed(row);
+        }
+    }
+
+    @Override
+    public void updating(Object row) {
+        synchronized (updates) {
+            Update update = updates.get(row);
+            if (update != null) {
+                ++update.depth;
+                return;
+            }
+        }
+
+        Update update = new Update(matching(row));
+        synchronized (updates) {
+            updates.put(row, update);
+        }
+    }
+
+    @Override
+    public void updated(Object row) {
+        Update update;
+        synchronized (updates) {
+            update = updates.get(row);
+            if (update != null && --update.depth > 0) {
+                return;
+            }
+            updates.remove(row);
+        }
+
+        List<HgSubscription<?>> before = update == null ? new ArrayList<>() : update.before;
+        for (HgSubscription<?> subscription : matching(row)) {
+            if (before.remove(subscription)) {
+                subscription.updated(row);
+            } else {
+                subscription.inserted(row);
+            }
+        }
+        for (HgSubscription<?> subscription : before) {
+            subscription.removed(row);
+        }
+    }
+
+    /**
+     * @return the subscriptions which the row matches
+     */
+    @SuppressWarnings("unchecked") // values of one bounded field are Comparable with each other
+    private List<HgSubscription<?>> matching(Object row) {
+        Routes r = routes;
+        List<HgSubscription<?>> result = null;
+
+        for (EqRoute route : r.eq) {
+            List<HgSubscription<?>> candidates = route.byKey.get(route.value.extractValue(row));
+            if (candidates != null) {
+                result = test(candidates, row, result);
+            }
+        }
+
+        for (RangeRoute route : r.ranges) {
+            Comparable<Object> value = (Comparable<Object>) route.value.extractValue(row);
+            if (value == null) {
+                continue;
+            }
+
+            for (int i = route.floor(value); i >= 0; --i) {
+                Object reach = route.reach[i];
+                if (reach != null && value.compareTo(reach) > 0) {
+                    break;
+                }
+                result = test(route.byLower[i], row, result);
+            }
+
+            if (!route.byUpper.isEmpty()) {
+                for (List<HgSubscription<?>> candidates : route.byUpper.tailMap(value, true).values()) {
+                    result = test(candidates, row, result);
+                }
+            }
+        }
+
+        if (r.others.length > 0) {
+            result = test(Arrays.asList(r.others), row, result);
+        }
+
+        return result == null ? Collections.<HgSubscription<?>>emptyList() : result;
+    }
+
+    /**
+     * Adds the candidates which the row matches to result, which is
+     * created by the first match.
+     */
+    private static List<HgSubscription<?>> test(
+            Collection<HgSubscription<?>> candidates, Object row, List<HgSubscription<?>> result) {
+        for (HgSubscription<?> subscription : candidates) {
+            if (subscription.matches(row)) {
+                if (result == null) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(subscription);
+            }
+        }
+        return result;
+    }
+
+    private static Routes build(List<HgSubscription<?>> subscriptions) {
+        Map<String, EqRoute> eq = new LinkedHashMap<>();
+        Map<String, RangeRoute> ranges = new LinkedHashMap<>();
+        List<HgSubscription<?>> others = new ArrayList<>();
+
+        for (HgSubscription<?> subscription : subscriptions) {
+            ValueExtractableRelation<?, ?> route = routeOf(subscription.predicates());
+            if (route == null) {
+                others.add(subscription);
+            } else if (route.relation == HgRelation.EQ) {
+                eq.computeIfAbsent(route.getValueName(), k -> new EqRoute(route))
+                        .byKey.computeIfAbsent(route.value, k -> new ArrayList<>()).add(subscription);
+            } else {
+                RangeRoute range = ranges.computeIfAbsent(route.getValueName(), k -> new RangeRoute(route));
+                if (isLower(route)) {
+                    range.lowers.add(new Bounds(route.value, upperOf(subscription.predicates(), route), subscription));
+                } else {
+                    range.byUpper.computeIfAbsent(route.value, k -> new ArrayList<>()).add(subscription);
+                }
+            }
+        }
+
+        for (RangeRoute range : ranges.values()) {
+            range.sort();
+        }
+
+        return new Routes(
+                eq.values().toArray(new EqRoute[eq.size()]),
+                ranges.values().toArray(new RangeRoute[ranges.size()]),
+                others.toArray(new HgSubscription<?>[others.size()]));
+    }
+
+    /**
+     * Picks the predicate by which a subscription is routed: an equality
+     * if it has one, or else a lower or upper bound on a Comparable value.
+     *
+     * @return the predicate, or null if the subscription sees every change
+     */
+    private static ValueExtractableRelation<?, ?> routeOf(AbstractValueExtractablePredicate<?, ?>[] predicates) {
+        ValueExtractableRelation<?, ?> lower = null, upper = null;
+
+        for (AbstractValueExtractablePredicate<?, ?> predicate : predicates) {
+            ValueExtractableRelation<?, ?> fer = bound(predicate);
+            if (fer == null) {
+                continue;
+            } else if (fer.relation == HgRelation.EQ) {
+                return fer;
+            } else if (!(fer.value instanceof Comparable)) {
+                continue;
+            }
+
+            if (isLower(fer)) {
+                lower = lower == null ? fer : lower;
+            } else if (fer.relation == HgRelation.LT || fer.relation == HgRelation.LE) {
+                upper = upper == null ? fer : upper;
+            }
+        }
+
+        return lower != null ? lower : upper;
+    }
+
+    /**
+     * @return the constant of an upper bound on the value of lower, or
+     * null if the subscription has none
+     */
+    private static Object upperOf(
+            AbstractValueExtractablePredicate<?, ?>[] predicates, ValueExtractableRelation<?, ?> lower) {
+        for (AbstractValueExtractablePredicate<?, ?> predicate : predicates) {
+            ValueExtractableRelation<?, ?> fer = bound(predicate);
+            if (fer != null && (fer.relation == HgRelation.LT || fer.relation == HgRelation.LE)
+                    && fer.getValueName().equals(lower.getValueName())
+                    && fer.value.getClass() == lower.value.getClass()) {
+                return fer.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the predicate if it compares a named value to a constant
+     */
+    private static ValueExtractableRelation<?, ?> bound(AbstractValueExtractablePredicate<?, ?> predicate) {
+        if (!(predicate instanceof ValueExtractableRelation) || predicate.getValueName() == null) {
+            return null;
+        }
+        ValueExtractableRelation<?, ?> fer = (ValueExtractableRelation<?, ?>) predicate;
+        return fer.value == null ? null : fer;
+    }
+
+    private static boolean isLower(ValueExtractableRelation<?, ?> fer) {
+        return fer.relation == HgRelation.GT || fer.relation == HgRelation.GE;
+    }
+
+    private static final class Routes {
+        final EqRoute[] eq;
+        final RangeRoute[] ranges;
+        final HgSubscription<?>[] others;
+
+        Routes(EqRoute[] eq, RangeRoute[] ranges, HgSubscription<?>[] others) {
+            this.eq = eq;
+            this.ranges = ranges;
+            this.others = others;
+        }
+    }
+
+    /**
+     * The subscriptions with an equality on one value, by its constant.
+     */
+    private static final class EqRoute {
+        final ValueExtractable value;
+        final Map<Object, List<HgSubscription<?>>> byKey = new HashMap<>();
+
+        EqRoute(ValueExtractable value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The subscriptions with a bound on one value, by their lower bound
+     * or, if they have none, by their upper bound.
+     */
+    private static final class RangeRoute {
+        final ValueExtractable value;
+        final NavigableMap<Object, List<HgSubscription<?>>> byUpper = new TreeMap<>();
+        final List<Bounds> lowers = new ArrayList<>();
+
+        /*
+         * The distinct lower bounds in ascending order, the subscriptions
+         * with each of them, and the largest upper bound of those up to
+         * each position, or null if one of them has none
+         */
+        Object[] lower;
+        List<HgSubscription<?>>[] byLower;
+        Object[] reach;
+
+        RangeRoute(ValueExtractable value) {
+            this.value = value;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation, bounds of one value are Comparable
+        void sort() {
+            lowers.sort((a, b) -> ((Comparable<Object>) a.lower).compareTo(b.lower));
+
+            List<Object> distinct = new ArrayList<>();
+            List<List<HgSubscription<?>>> subscriptions = new ArrayList<>();
+            List<Object> reaches = new ArrayList<>();
+            Object max = null;
+            boolean unbounded = false;
+            for (Bounds bounds : lowers) {
+                if (bounds.upper == null) {
+                    unbounded = true;
+                    max = null;
+                } else if (!unbounded && (max == null || ((Comparable<Object>) bounds.upper).compareTo(max) > 0)) {
+                    max = bounds.upper;
+                }
+
+                int last = distinct.size() - 1;
+                if (last >= 0 && ((Comparable<Object>) distinct.get(last)).compareTo(bounds.lower) == 0) {
+                    subscriptions.get(last).add(bounds.subscription);
+                    reaches.set(last, max);
+                } else {
+                    distinct.add(bounds.lower);
+                    subscriptions.add(new ArrayList<>(Collections.singletonList(bounds.subscription)));
+                    reaches.add(max);
+                }
+            }
+
+            lower = distinct.toArray();
+            byLower = subscriptions.toArray(new List[subscriptions.size()]);
+            reach = reaches.toArray();
+            lowers.clear();
+        }
+
+        /**
+         * @return the position of the last lower bound which is not above
+         * value, or -1 if there is none
+         */
+        @SuppressWarnings("unchecked") // bounds of one value are Comparable
+        int floor(Comparable<Object> value) {
+            int low = 0, high = lower.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (value.compareTo(lower[mid]) < 0) {
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return high;
+        }
+    }
+
+    private static final class Bounds {
+        final Object lower;
+        final Object upper;
+        final HgSubscription<?> subscription;
+
+        Bounds(Object lower, Object upper, HgSubscription<?> subscription) {
+            this.lower = lower;
+            this.upper = upper;
+            this.subscription = subscription;
+        }
+    }
+
+    private static final class Update {
+        final List<HgSubscription<?>> before;
+        int depth = 1;
+
+        Update(List<HgSubscription<?>> before) {
+            this.before = before;
+        }
+    }
+}
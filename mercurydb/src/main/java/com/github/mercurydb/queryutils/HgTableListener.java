@@ -0,0 +1,41 @@
+package com.github.mercurydb.queryutils;
+
+/**
+ * Receives the changes to the rows of a generated table, see
+ * {@link HgTableStatistics#addListener(HgTableListener)}. An update of a
+ * value is reported to updating() before the value changes and to
+ * updated() afterwards, which by default are a removal and an insertion
+ * of the row. A method which updates several values reports each of
+ * them, nested within each other.
+ *
+ * Listeners are called by the thread which changes the table, once the
+ * table and its indexes have been changed, so they must not block.
+ *
+ * @see HgJoinView
+ * @see HgSubscription
+ */
+public interface HgTableListener {
+    /**
+     * @param row a row which was inserted
+     */
+    void inserted(Object row);
+
+    /**
+     * @param row a row which was removed
+     */
+    void removed(Object row);
+
+    /**
+     * @param row a row whose value is about to be updated
+     */
+    default void updating(Object row) {
+        removed(row);
+    }
+
+    /**
+     * @param row a row whose value was updated
+     */
+    default void updated(Object row) {
+        inserted(row);
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of one generated table, maintained by its insert and
+ * remove hooks. The row count includes instances of subclasses, just
+ * like the indexes of the table do.
+ *
+ * In snapshot mode the statistics follow the latest writes, not the
+ * version read by the current snapshot.
+ *
+ * The version of the table changes after every insert, remove and
+ * update of one of its rows, including the rows of subclass tables,
+ * which is how {@link HgQueryCache} finds out that a result is stale.
+ * The rows themselves are reported to the {@link HgTableListener}s of
+ * the table, except for the rows of weak tables which are collected.
+ *
+ * @see TableID#getStatistics()
+ * @see HgIndexStatistics
+ */
+public final class HgTableStatistics {
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder modifications = new LongAdder();
+    private final LongAdder versions = new LongAdder();
+    private final HgTableStatistics parent;
+    private volatile HgTableListener[] listeners = new HgTableListener[0];
+
+    public HgTableStatistics() {
+        this(null);
+    }
+
+    /**
+     * @param parent the statistics of the superclass table, whose
+     *               version changes along with this one, or null
+     */
+    public HgTableStatistics(HgTableStatistics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Called by the generated insert hook.
+     */
+    public void rowInserted() {
+        rows.increment();
+        modifications.increment();
+    }
+
+    /**
+     * Called by the generated remove hook.
+     */
+    public void rowRemoved() {
+        rows.decrement();
+        modifications.increment();
+    }
+
+    /**
+     * Called by weak tables once a row of this table has been collected
+     * and unlinked from the table. The row was also counted by the
+     * superclass tables, which are changed as well.
+     */
+    public void rowCollected() {
+        for (HgTableStatistics s = this; s != null; s = s.parent) {
+            s.rows.decrement();
+            s.modifications.increment();
+            s.versions.increment();
+        }
+    }
+
+    /**
+     * Called by the generated insert, remove and updateNewValue hooks
+     * once they have changed the table and its indexes.
+     */
+    public void changed() {
+        for (HgTableStatistics s = this; s != null; s = s.parent) {
+            s.versions.increment();
+        }
+    }
+
+    /**
+     * @param listener a listener to call after every change to the rows
+     *                 of the table
+     */
+    public synchronized void addListener(HgTableListener listener) {
+        HgTableListener[] next = Arrays.copyOf(listeners, listeners.length + 1);
+        next[listeners.length] = listener;
+        listeners = next;
+    }
+
+    /**
+     * @param listener a listener which was added before
+     */
+    public synchronized void removeListener(HgTableListener listener) {
+        List<HgTableListener> next = new ArrayList<>(Arrays.asList(listeners));
+        next.remove(listener);
+        listeners = next.toArray(new HgTableListener[next.size()]);
+    }
+
+    /**
+     * Called by the generated insert hook.
+     */
+    public void notifyInserted(Object row) {
+        for (HgTableListener listener : listeners) {
+            listener.inserted(row);
+        }
+    }
+
+    /**
+     * Called by the generated remove hook.
+     */
+    public void notifyRemoved(Object row) {
+        for (HgTableListener listener : listeners) {
+            listener.removed(row);
+        }
+    }
+
+    /**
+     * Called by the generated removeStaleValue hooks.
+     */
+    public void notifyUpdating(Object row) {
+        for (HgTableListener listener : listeners) {
+            listener.updating(row);
+        }
+    }
+
+    /**
+     * Called by the generated updateNewValue hooks.
+     */
+    public void notifyUpdated(Object row) {
+        for (HgTableListener listener : listeners) {
+            listener.updated(row);
+        }
+    }
+
+    /**
+     * @return the number of rows in the table
+     */
+    public long getRowCount() {
+        return Math.max(0, rows.sum());
+    }
+
+    /**
+     * @return the number of inserts and removes since the table was created
+     */
+    public long getModificationCount() {
+        return modifications.sum();
+    }
+
+    /**
+     * @return a number which changes whenever a row of the table does
+     * @see #changed()
+     */
+    public long getVersion() {
+        return versions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rows: %d", getRowCount());
+    }
+}
@@ -0,0 +1,183 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the first k rows of a stream in an HgOrder. The rows are kept
+ * in a binary heap with the last row in the order at its root, so that
+ * a row which comes after all k rows is dropped with one comparison.
+ * The sort key of every row is extracted once, and values of a
+ * PrimitiveValueExtractable are compared as encoded keys.
+ *
+ * @param <T> the type of the rows
+ */
+class HgTopK<T> {
+    private final HgOrder order;
+    private final PrimitiveValueExtractable primitive;
+    private final int k;
+
+    /*
+     * The heap occupies [0, size). Slot size holds the row which is
+     * being offered.
+     */
+    private long[] primitiveKeys;
+    private Object[] keys;
+    private Object[] rows;
+    private int size;
+
+    /**
+     * @param order the order of the rows
+     * @param k the number of rows to keep, Long.MAX_VALUE to keep all
+     */
+    HgTopK(HgOrder order, long k) {
+        this.order = order;
+        this.primitive = order.value instanceof PrimitiveValueExtractable
+                ? (PrimitiveValueExtractable) order.value : null;
+        this.k = (int) Math.min(k, Integer.MAX_VALUE - 8);
+
+        int capacity = Math.min(this.k, 16) + 1;
+        rows = new Object[capacity];
+        if (primitive != null) {
+            primitiveKeys = new long[capacity];
+        } else {
+            keys = new Object[capacity];
+        }
+    }
+
+    HgTopK<T> addAll(Iterable<T> stream) {
+        for (T row : stream) {
+            add(row);
+        }
+        return this;
+    }
+
+    void add(T row) {
+        if (k == 0) {
+            return;
+        } else if (size == rows.length - 1 && size < k) {
+            grow();
+        }
+
+        Object instance = order.instance(row);
+        if (primitive != null) {
+            primitiveKeys[size] = primitive.extractKey(instance);
+        } else {
+            keys[size] = order.value.extractValue(instance);
+        }
+
+        if (size < k) {
+            rows[size] = retain(row);
+            siftUp(size++);
+        } else if (compare(size, 0) < 0) {
+            rows[size] = retain(row);
+            move(size, 0);
+            siftDown(0);
+        }
+        rows[size] = null;
+    }
+
+    /**
+     * @return the row, or a copy of it if it is a reused tuple
+     */
+    private static Object retain(Object row) {
+        if (row instanceof HgTupleStream.HgTuple && ((HgTupleStream.HgTuple) row).isReused()) {
+            return ((HgTupleStream.HgTuple) row).copy();
+        }
+        return row;
+    }
+
+    /**
+     * @return the kept rows in order
+     */
+    @SuppressWarnings("unchecked") // only rows of type T are added
+    List<T> toList() {
+        T[] sorted = (T[]) new Object[size];
+        for (int n = size; n > 0; --n) {
+            // the root is the last row in the order
+            sorted[n - 1] = (T) rows[0];
+            move(n - 1, 0);
+            size = n - 1;
+            siftDown(0);
+        }
+        return Arrays.asList(sorted);
+    }
+
+    private void grow() {
+        int capacity = (int) Math.min((long) k + 1, rows.length * 2L);
+        rows = Arrays.copyOf(rows, capacity);
+        if (primitive != null) {
+            primitiveKeys = Arrays.copyOf(primitiveKeys, capacity);
+        } else {
+            keys = Arrays.copyOf(keys, capacity);
+        }
+    }
+
+    /**
+     * Compares two slots in the order.
+     */
+    @SuppressWarnings("unchecked") // sort keys must be Comparable
+    private int compare(int i, int j) {
+        int c;
+        if (primitive != null) {
+            c = Long.compare(primitiveKeys[i], primitiveKeys[j]);
+        } else if (keys[i] == null || keys[j] == null) {
+            c = keys[i] == null ? (keys[j] == null ? 0 : -1) : 1;
+        } else {
+            c = ((Comparable<Object>) keys[i]).compareTo(keys[j]);
+        }
+        return order.descending ? -c : c;
+    }
+
+    private void move(int from, int to) {
+        rows[to] = rows[from];
+        if (primitive != null) {
+            primitiveKeys[to] = primitiveKeys[from];
+        } else {
+            keys[to] = keys[from];
+        }
+    }
+
+    private void swap(int i, int j) {
+        Object row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+        if (primitive != null) {
+            long key = primitiveKeys[i];
+            primitiveKeys[i] = primitiveKeys[j];
+            primitiveKeys[j] = key;
+        } else {
+            Object key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(i, parent) <= 0) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            } else if (child + 1 < size && compare(child + 1, child) > 0) {
+                ++child;
+            }
+
+            if (compare(child, i) <= 0) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A block of tuples of an HgTupleStream, stored column by column: one
+ * array of row references per table of the stream, in the order of the
+ * tuple indexes of the stream. Batches are filled by
+ * {@link HgTupleStream#nextBatch(HgTupleBatch)}, so that the joiners
+ * filter, probe indexes and build joins a block at a time instead of
+ * allocating an HgTuple and making several virtual calls per tuple.
+ *
+ * A batch is created by {@link HgTupleStream#newBatch()} and may only be
+ * filled by the stream which created it. It is reused for every block.
+ */
+public final class HgTupleBatch {
+    private final HgTupleStream stream;
+    private final TableID<?>[] ids;
+    private final Object[][] columns;
+    private final int capacity;
+    private int size;
+
+    /**
+     * @param stream the stream whose tuple indexes are the columns
+     * @param capacity the maximum number of tuples
+     */
+    public HgTupleBatch(HgTupleStream stream, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Batch capacity must be positive!");
+        }
+
+        this.stream = stream;
+        this.capacity = capacity;
+        this.ids = stream.slotIds().clone();
+
+        this.columns = new Object[ids.length][capacity];
+    }
+
+    /**
+     * @return the stream whose tuples this batch holds
+     */
+    public HgTupleStream getStream() {
+        return stream;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Empties this batch. The references in the columns are cleared, so
+     * that a batch which is kept does not hold on to removed rows.
+     */
+    public void clear() {
+        for (Object[] column : columns) {
+            Arrays.fill(column, 0, size, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * @return the number of columns, which is the number of tables
+     */
+    public int columnCount() {
+        return ids.length;
+    }
+
+    /**
+     * @param column a column index
+     * @return the id of the table of the column
+     */
+    public TableID<?> getTableId(int column) {
+        return ids[column];
+    }
+
+    /**
+     * @param id the id of a table of the stream
+     * @return the index of the column of the table
+     */
+    public int columnIndex(TableID<?> id) {
+        int index = stream.slotOf(id);
+        if (index < 0) {
+            throw new IllegalArgumentException("ID not present in HgTupleStream instance.");
+        }
+        return index;
+    }
+
+    /**
+     * Returns the rows of one table. The array is the backing store of
+     * this batch, so that rows may be written to it directly after
+     * {@link #addRow()}. Only the first size() elements are valid.
+     *
+     * @param column a column index
+     * @return the rows of the table of the column
+     */
+    public Object[] column(int column) {
+        return columns[column];
+    }
+
+    /**
+     * @param id the id of a table of the stream
+     * @return the rows of the table
+     * @see #column(int)
+     */
+    public Object[] column(TableID<?> id) {
+        return columns[columnIndex(id)];
+    }
+
+    /**
+     * @param row a row index below size()
+     * @param id the id of a table of the stream
+     * @return the instance of the table in the row
+     */
+    public Object get(int row, TableID<?> id) {
+        return columns[columnIndex(id)][row];
+    }
+
+    /**
+     * Appends an empty row, whose entries must then be written to the
+     * columns.
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        if (isFull()) {
+            throw new IllegalStateException("Batch is full!");
+        }
+        return size++;
+    }
+
+    /**
+     * Appends the entries of a tuple which contains every table of this
+     * batch.
+     *
+     * @param tuple the tuple to append
+     */
+    public void add(HgTupleStream.HgTuple tuple) {
+        int row = addRow();
+        for (int c = 0; c < ids.length; ++c) {
+            columns[c][row] = tuple.get(ids[c]);
+        }
+    }
+
+    /**
+     * Appends a row of another batch of the same stream.
+     *
+     * @param from a batch with the same columns as this one
+     * @param row a row index of that batch
+     */
+    public void add(HgTupleBatch from, int row) {
+        int to = addRow();
+        for (int c = 0; c < columns.length; ++c) {
+            columns[c][to] = from.columns[c][row];
+        }
+    }
+
+    /**
+     * Removes every row for which keep is false, preserving the order of
+     * the others.
+     *
+     * @param keep tests a row index
+     */
+    public void retain(IntPredicate keep) {
+        int kept = 0;
+        for (int row = 0; row < size; ++row) {
+            if (keep.test(row)) {
+                if (kept != row) {
+                    for (Object[] column : columns) {
+                        column[kept] = column[row];
+                    }
+                }
+                ++kept;
+            }
+        }
+
+        for (Object[] column : columns) {
+            Arrays.fill(column, kept, size, null);
+        }
+        size = kept;
+    }
+
+    /**
+     * @param row a row index below size()
+     * @return a new tuple of the stream with the entries of the row
+     */
+    public HgTupleStream.HgTuple tuple(int row) {
+        return stream.new HgTuple(this, row);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int row = 0; row < size; ++row) {
+            sb.append(row == 0 ? "[" : ", [");
+            for (int c = 0; c < columns.length; ++c) {
+                sb.append(c == 0 ? "" : ", ").append(columns[c][row]);
+            }
+            sb.append(']');
+        }
+        return sb.append(']').toString();
+    }
+}
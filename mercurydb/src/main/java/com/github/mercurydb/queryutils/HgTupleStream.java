@@ -6,11 +6,37 @@ import java.util.*;
 public abstract class HgTupleStream
         extends HgStream<HgTupleStream.HgTuple> implements ValueExtractable {
 
+    /**
+     * Number of tuples in the batches returned by {@link #newBatch()}.
+     */
+    public static final int BATCH_SIZE = 1024;
+
     // TODO document these fields
     protected ValueExtractable _fwdFE;
     protected final Map<TableID<?>, Integer> _containedTypes;
     private int tupleIndexCounter = 0;
 
+    /*
+     * The contained ids by tuple index. Tuples are looked up by a linear
+     * scan of this array, which is faster than hashing for the few
+     * tables of a join.
+     */
+    private TableID<?>[] _slotIds = new TableID<?>[0];
+
+    /*
+     * Slot mappings from the tuples of other streams to the tuples of
+     * this one, see mergePlan.
+     */
+    private MergePlan[] _mergePlans = new MergePlan[0];
+    private static final int MAX_MERGE_PLANS = 8;
+
+    /*
+     * Set by reuseTuples(), in which case the tuples of next() are
+     * written to _reusedTuple.
+     */
+    private boolean _reuseTuples;
+    private HgTuple _reusedTuple;
+
     public HgTupleStream(HgTupleStream o)
     {
         this(o._fwdFE);
@@ -65,6 +91,22 @@ public abstract class HgTupleStream
             public boolean isIndexed() {
                 return owner.isIndexed();
             }
+
+            @Override
+            public HgTupleBatch newBatch() {
+                return owner.newBatch();
+            }
+
+            @Override
+            public boolean nextBatch(HgTupleBatch batch) {
+                while (owner.nextBatch(batch)) {
+                    batch.retain(row -> tPred.test(batch.tuple(row)));
+                    if (batch.size() > 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
         };
     }
 
@@ -83,6 +125,231 @@ public abstract class HgTupleStream
     private void addContainedType(TableID<?> id) {
         if (!_containedTypes.containsKey(id)) {
             _containedTypes.put(id, tupleIndexCounter++);
+            _slotIds = Arrays.copyOf(_slotIds, tupleIndexCounter);
+            _slotIds[tupleIndexCounter - 1] = id;
+        }
+    }
+
+    /**
+     * @param id a table id
+     * @return the index of the table in the tuples of this stream, or -1
+     * if the table is not contained
+     */
+    public int slotOf(TableID<?> id) {
+        TableID<?>[] ids = _slotIds;
+        for (int i = 0; i < ids.length; ++i) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        for (int i = 0; i < ids.length; ++i) {
+            if (ids[i].equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    TableID<?>[] slotIds() {
+        return _slotIds;
+    }
+
+    /**
+     * @return the number of tables in the tuples of this stream
+     */
+    public int getSlotCount() {
+        return _slotIds.length;
+    }
+
+    /**
+     * Resolves the index of a table in the tuples of this stream once,
+     * so that reading it from every tuple is a single array access.
+     *
+     * @param id a contained table id
+     * @param <T> the type of the rows of the table
+     * @return an accessor for the rows of the table
+     */
+    public <T> Slot<T> slot(TableID<T> id) {
+        int index = slotOf(id);
+        if (index < 0) {
+            throw new IllegalArgumentException("ID not present in HgTupleStream instance.");
+        }
+        return new Slot<>(this, id, index);
+    }
+
+    /**
+     * Makes next() return the same mutable tuple for every result, which
+     * is overwritten by the following call to next(), so that a large
+     * streaming join allocates nothing per result. A tuple which is kept
+     * beyond that must be copied with {@link HgTuple#copy()}. The
+     * joiners and the streams over tables support this; other streams
+     * keep returning new tuples.
+     *
+     * @return this stream
+     */
+    public HgTupleStream reuseTuples() {
+        this._reuseTuples = true;
+        return this;
+    }
+
+    /**
+     * @return true if next() may overwrite the tuple it returned last
+     * @see #reuseTuples()
+     */
+    public boolean isReusingTuples() {
+        return _reuseTuples;
+    }
+
+    /**
+     * @return the reused tuple if tuples are reused, or else a new tuple,
+     * whose entries are all to be overwritten
+     */
+    final HgTuple emptyTuple() {
+        if (!_reuseTuples) {
+            return new HgTuple();
+        } else if (_reusedTuple == null) {
+            _reusedTuple = new HgTuple();
+        }
+        return _reusedTuple;
+    }
+
+    /**
+     * Builds a result of a join of two tables.
+     *
+     * @param aSlot the slot of the first table
+     * @param a the row of the first table
+     * @param bSlot the slot of the second table
+     * @param b the row of the second table
+     * @return the reused tuple or a new one, see {@link #reuseTuples()}
+     */
+    protected final HgTuple tuple(int aSlot, Object a, int bSlot, Object b) {
+        HgTuple t = emptyTuple();
+        t._entries[aSlot] = a;
+        t._entries[bSlot] = b;
+        return t;
+    }
+
+    /**
+     * Builds a result of a join of two tuples.
+     *
+     * @param a a tuple of the first input
+     * @param b a tuple of the second input
+     * @return the reused tuple or a new one, see {@link #reuseTuples()}
+     */
+    protected final HgTuple tuple(HgTuple a, HgTuple b) {
+        if (a._entries.length + b._entries.length > _slotIds.length) {
+            throw new IllegalArgumentException("Cannot merge tuples which contain the same ids");
+        }
+        HgTuple t = emptyTuple();
+        t.merge(a);
+        t.merge(b);
+        return t;
+    }
+
+    /**
+     * Builds a tuple from a row of a batch with the same tables as this
+     * stream. The batch may have been created by another stream, such as
+     * the input of a filter, whose columns are then mapped to the slots
+     * of this one by table.
+     *
+     * @return the reused tuple or a new one, see {@link #reuseTuples()}
+     */
+    final HgTuple tuple(HgTupleBatch batch, int row) {
+        HgTuple t = emptyTuple();
+        if (batch.getStream() == this) {
+            for (int c = 0; c < t._entries.length; ++c) {
+                t._entries[c] = batch.column(c)[row];
+            }
+        } else {
+            int[] slots = mergePlan(batch.getStream());
+            for (int c = 0; c < slots.length; ++c) {
+                t._entries[slots[c]] = batch.column(c)[row];
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Builds a tuple from the rows of every slot.
+     *
+     * @param rows the rows, by the slots of this stream
+     * @return the reused tuple or a new one, see {@link #reuseTuples()}
+     */
+    final HgTuple tuple(Object[] rows) {
+        HgTuple t = emptyTuple();
+        System.arraycopy(rows, 0, t._entries, 0, t._entries.length);
+        return t;
+    }
+
+    /**
+     * Returns the mapping from the slots of the tuples of another stream
+     * to the slots of the tuples of this one. The mappings of the last
+     * few streams are kept, so that a join resolves the slots of its
+     * inputs once instead of once per tuple.
+     */
+    private int[] mergePlan(HgTupleStream from) {
+        MergePlan[] plans = _mergePlans;
+        for (MergePlan plan : plans) {
+            if (plan.from == from) {
+                return plan.slots;
+            }
+        }
+
+        int[] slots = new int[from._slotIds.length];
+        for (int i = 0; i < slots.length; ++i) {
+            slots[i] = slotOf(from._slotIds[i]);
+            if (slots[i] < 0) {
+                throw new IllegalArgumentException("ID not present in HgTupleStream instance.");
+            }
+        }
+
+        MergePlan[] next = plans.length < MAX_MERGE_PLANS
+                ? Arrays.copyOf(plans, plans.length + 1)
+                : Arrays.copyOfRange(plans, 1, plans.length + 1);
+        next[next.length - 1] = new MergePlan(from, slots);
+        _mergePlans = next;
+        return slots;
+    }
+
+    private static final class MergePlan {
+        final HgTupleStream from;
+        final int[] slots;
+
+        MergePlan(HgTupleStream from, int[] slots) {
+            this.from = from;
+            this.slots = slots;
+        }
+    }
+
+    /**
+     * Reads the rows of one table from the tuples of a stream, see
+     * {@link HgTupleStream#slot(TableID)}.
+     *
+     * @param <T> the type of the rows of the table
+     */
+    public static final class Slot<T> {
+        private final HgTupleStream stream;
+        private final TableID<T> id;
+        private final int index;
+
+        private Slot(HgTupleStream stream, TableID<T> id, int index) {
+            this.stream = stream;
+            this.id = id;
+            this.index = index;
+        }
+
+        public TableID<T> getTableId() {
+            return id;
+        }
+
+        /**
+         * @param t a tuple of the stream of this slot, or of any stream
+         * which contains the table
+         * @return the row of the table in the tuple
+         */
+        @SuppressWarnings("unchecked") // cast to T
+        public T get(HgTuple t) {
+            return t.getStream() == stream ? (T) t._entries[index] : t.get(id);
         }
     }
 
@@ -120,11 +387,63 @@ public abstract class HgTupleStream
     @Override
     abstract public boolean isIndexed();
 
+    /**
+     * Returns the number of tuples in this stream if it can be known
+     * without iterating it, e.g. for a stream over a table or over an
+     * index range. Used by the joiners to pick which side to build on.
+     *
+     * @return the exact number of tuples, or -1 if it is not known
+     */
+    public long getExactSizeIfKnown() {
+        return -1;
+    }
+
+    /**
+     * Returns true if this stream holds every row of one table, so that
+     * it may be replaced by a stream on another field of the same table.
+     *
+     * @return true if this is an unfiltered stream over a table
+     */
+    public boolean isUnfiltered() {
+        return false;
+    }
+
+    /**
+     * @return an empty batch for {@link #nextBatch(HgTupleBatch)}
+     */
+    public HgTupleBatch newBatch() {
+        return new HgTupleBatch(this, BATCH_SIZE);
+    }
+
+    /**
+     * Replaces the contents of the batch with the next tuples of this
+     * stream, as many as fit. This reads the same tuples as hasNext()
+     * and next(), and both may be mixed. The default adds the tuples of
+     * next() one by one; the joiners and the streams over tables fill
+     * the columns of the batch directly.
+     *
+     * @param batch a batch returned by {@link #newBatch()} of this stream
+     * @return false if there are no more tuples, in which case the
+     * batch is empty
+     */
+    public boolean nextBatch(HgTupleBatch batch) {
+        batch.clear();
+        while (!batch.isFull() && hasNext()) {
+            batch.add(next());
+        }
+        return batch.size() > 0;
+    }
+
     @Override
     public Map<Object, Set<Object>> getIndex() {
         return _fwdFE.getIndex();
     }
 
+    @Override
+    public HgIndexStatistics getStatistics() {
+        return _fwdFE.getStatistics();
+    }
+
     @Override
     public TableID<?> getTableId() {
         return _fwdFE.getTableId();
@@ -159,7 +478,9 @@ public abstract class HgTupleStream
 
             @Override
             public HgTuple next() {
-                return this.new HgTuple(stream.next());
+                HgTuple t = emptyTuple();
+                t._entries[0] = stream.next();
+                return t;
             }
 
             @Override
@@ -171,38 +492,98 @@ public abstract class HgTupleStream
             public boolean isIndexed() {
                 return !streamIsFiltered && fe.isIndexed();
             }
+
+            @Override
+            public long getExactSizeIfKnown() {
+                return stream.spliterator().getExactSizeIfKnown();
+            }
+
+            @Override
+            public boolean isUnfiltered() {
+                return !streamIsFiltered;
+            }
+
+            @Override
+            public boolean nextBatch(HgTupleBatch batch) {
+                batch.clear();
+                Object[] rows = batch.column(0);
+                while (!batch.isFull() && stream.hasNext()) {
+                    rows[batch.addRow()] = stream.next();
+                }
+                return batch.size() > 0;
+            }
         };
     }
 
+    /**
+     * One result of a stream: a row of every contained table, stored in
+     * an array by the tuple index of the table.
+     */
     public class HgTuple {
-        private ArrayList<Object> _entries = new ArrayList<>();
+        private final Object[] _entries;
+
+        private HgTuple() {
+            _entries = new Object[_slotIds.length];
+        }
 
         public HgTuple(Object o) {
-            _entries.add(o);
+            _entries = new Object[_slotIds.length];
+            _entries[0] = o;
         }
 
         public HgTuple(TableID<?> aid, Object a, TableID<?> bid, Object b) {
-            insertRecord(aid, a);
-            insertRecord(bid, b);
+            _entries = new Object[_slotIds.length];
+            _entries[indexOf(aid)] = a;
+            _entries[indexOf(bid)] = b;
         }
 
         public HgTuple(TableID<?> aid, Object a, HgTuple b) {
-            insertRecord(aid, a);
-            insertRecords(b);
+            if (b._entries.length >= _slotIds.length) {
+                throw new IllegalArgumentException("Cannot merge tuples which contain the same ids");
+            }
+            _entries = new Object[_slotIds.length];
+            merge(b);
+            _entries[indexOf(aid)] = a;
         }
 
-        public HgTuple(HgTuple a, HgTuple b) {
-            for (TableID<?> id : a.getStream()._containedTypes.keySet()) {
-                insertRecord(id, a.get(id));
+        HgTuple(HgTupleBatch batch, int row) {
+            _entries = new Object[_slotIds.length];
+            for (int c = 0; c < _entries.length; ++c) {
+                _entries[c] = batch.column(c)[row];
             }
+        }
 
-            insertRecords(b);
+        public HgTuple(HgTuple a, HgTuple b) {
+            if (a._entries.length + b._entries.length > _slotIds.length) {
+                throw new IllegalArgumentException("Cannot merge tuples which contain the same ids");
+            }
+            _entries = new Object[_slotIds.length];
+            merge(a);
+            merge(b);
         }
 
         public HgTupleStream getStream() {
             return HgTupleStream.this;
         }
 
+        /**
+         * @return a new tuple with the same entries, which is never reused
+         * @see HgTupleStream#reuseTuples()
+         */
+        public HgTuple copy() {
+            HgTuple t = new HgTuple();
+            System.arraycopy(_entries, 0, t._entries, 0, _entries.length);
+            return t;
+        }
+
+        /**
+         * @return true if this tuple is overwritten by the next result of
+         * its stream
+         */
+        public boolean isReused() {
+            return this == _reusedTuple;
+        }
+
 //        @Override
 //        public boolean equals(Object o) {
 //            if (o instanceof HgTuple) {
@@ -220,35 +601,28 @@ public abstract class HgTupleStream
 //            return false;
 //        }
 
-        private void insertRecords(HgTuple t) {
-            for (TableID<?> id : t.getStream()._containedTypes.keySet()) {
-                int index = _containedTypes.get(id);
-                if (index < _entries.size() && _entries.get(index) != null) {
-                    throw new IllegalArgumentException("Cannot merge tuples which contain the same ids");
-                }
-                insertRecord(id, t.get(id));
+        /**
+         * Copies the entries of a tuple of another stream into this one.
+         */
+        private void merge(HgTuple t) {
+            int[] slots = mergePlan(t.getStream());
+            Object[] entries = t._entries;
+            for (int i = 0; i < entries.length; ++i) {
+                _entries[slots[i]] = entries[i];
             }
         }
 
-        private void insertRecord(TableID<?> s, Object o) {
-            // fetch the tuple index from the contained types with the given id
-            int tupleIndex = _containedTypes.get(s);
-
-            // ensure we have the capacity
-            _entries.ensureCapacity(tupleIndex + 1);
-            while (_entries.size() < tupleIndex + 1) {
-                _entries.add(null);
+        private int indexOf(TableID<?> id) {
+            int index = slotOf(id);
+            if (index < 0) {
+                throw new IllegalArgumentException("ID not present in HgTupleStream instance.");
             }
-
-            _entries.set(tupleIndex, o);
+            return index;
         }
 
         @SuppressWarnings("unchecked") // cast to T
         public <T> T get(TableID<T> id) {
-            if (!_containedTypes.containsKey(id)) {
-                throw new IllegalArgumentException("ID not present in HgTupleStream instance.");
-            }
-            return (T) _entries.get(_containedTypes.get(id));
+            return (T) _entries[indexOf(id)];
         }
 
         public Object extractJoinedField() {
@@ -260,7 +634,7 @@ public abstract class HgTupleStream
         }
 
         public String toString() {
-            return _entries.toString();
+            return Arrays.toString(_entries);
         }
     }
 }
@@ -0,0 +1,160 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The global version clock of snapshot tables. Every write to the
+ * tables (an insert, a remove or an update of an indexed value) is
+ * stamped with a new version, and a write only becomes visible once
+ * it and every write with a smaller version have ended. Readers read
+ * at the stable version, so they never see a write in part.
+ *
+ * Writes nest per thread. The generated tables begin a write in
+ * insert, removeFromTable and removeStaleValue*, and end it in the
+ * matching finally block or in updateNewValue*. All changes made
+ * while a thread's outermost write is open share its version.
+ *
+ * Because writes are published in order, a write which is never
+ * ended stalls every later writer. Do not block on other writers
+ * inside an @HgUpdate method.
+ *
+ * @see HgSnapshot
+ * @see HgVersionedSet
+ */
+public final class HgVersionClock {
+    /**
+     * The last version handed out to a writer.
+     */
+    private static final AtomicLong clock = new AtomicLong();
+
+    /**
+     * The last published version. Every version up to and including
+     * this one has ended.
+     */
+    private static final AtomicLong stable = new AtomicLong();
+
+    /**
+     * The largest oldest-reader version which has been used to prune
+     * versions. Readers pinning a version below this have to retry.
+     */
+    private static final AtomicLong pruneHorizon = new AtomicLong();
+
+    /**
+     * Pinned read versions with the number of snapshots pinning them.
+     */
+    private static final ConcurrentSkipListMap<Long, Integer> pinned = new ConcurrentSkipListMap<>();
+
+    private static final ThreadLocal<Write> writes = ThreadLocal.withInitial(Write::new);
+
+    private static final class Write {
+        int depth;
+        long version;
+    }
+
+    private HgVersionClock() {
+    }
+
+    /**
+     * Begins a write, or joins the write which this thread already has
+     * open.
+     *
+     * @return the version of the write
+     */
+    public static long beginWrite() {
+        Write write = writes.get();
+        if (write.depth++ == 0) {
+            write.version = clock.incrementAndGet();
+        }
+        return write.version;
+    }
+
+    /**
+     * Ends the innermost write of this thread. Ending the outermost
+     * write publishes it, after waiting for all earlier writes to be
+     * published.
+     *
+     * @throws IllegalStateException if this thread has no open write
+     */
+    public static void endWrite() {
+        Write write = writes.get();
+        if (write.depth == 0) {
+            throw new IllegalStateException("endWrite() without beginWrite()");
+        }
+
+        if (--write.depth == 0) {
+            long previous = write.version - 1;
+            while (stable.get() != previous) {
+                Thread.yield();
+            }
+            stable.set(write.version);
+        }
+    }
+
+    /**
+     * @return the latest version which is visible to readers
+     */
+    public static long stableVersion() {
+        return stable.get();
+    }
+
+    /**
+     * @return the last version handed out to a writer, which equals the
+     * stable version while no write is open
+     */
+    static long lastVersion() {
+        return clock.get();
+    }
+
+    /**
+     * Registers a reader at the current stable version.
+     *
+     * @return the pinned version
+     */
+    static long pin() {
+        while (true) {
+            long version = stable.get();
+            pin(version);
+            // a concurrent prune may have missed this pin, see prunableVersion()
+            if (pruneHorizon.get() <= version) {
+                return version;
+            }
+            unpin(version);
+        }
+    }
+
+    static void pin(long version) {
+        pinned.merge(version, 1, Integer::sum);
+    }
+
+    static void unpin(long version) {
+        pinned.computeIfPresent(version, (v, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Returns the version below which no reader can look. Versions
+     * which ended at or before this version may be discarded.
+     *
+     * @return the oldest version that may still be read
+     */
+    static long prunableVersion() {
+        long oldest = oldestReadVersion();
+
+        // Publish the horizon before checking the pins again. A reader
+        // which pinned an older version in between either shows up in
+        // the second check or sees the new horizon and retries.
+        long horizon;
+        do {
+            horizon = pruneHorizon.get();
+        } while (horizon < oldest && !pruneHorizon.compareAndSet(horizon, oldest));
+
+        return Math.min(oldest, oldestReadVersion());
+    }
+
+    private static long oldestReadVersion() {
+        long oldest = stable.get();
+        Map.Entry<Long, Integer> first = pinned.firstEntry();
+        return first == null ? oldest : Math.min(oldest, first.getKey());
+    }
+}
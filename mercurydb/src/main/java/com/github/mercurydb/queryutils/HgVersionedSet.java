@@ -0,0 +1,338 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.HgConcurrentIdentitySet.IdentityKey;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A thread-safe identity Set with multi-version membership, used for
+ * the rows and index buckets of snapshot tables. For each element the
+ * set keeps the version intervals during which it was a member.
+ * Writes stamp intervals with the version of the current write (see
+ * {@link HgVersionClock}), reads only see the members at their read
+ * version (see {@link HgSnapshot}).
+ *
+ * Intervals which no reader can see anymore are discarded by an
+ * occasional sweep, whose cost is amortized over the removes.
+ *
+ * add() and remove() act on the latest state, while contains(), size()
+ * and iteration act on the read version. Null elements are not permitted.
+ *
+ * @param <E> the type of the elements
+ */
+public class HgVersionedSet<E> extends AbstractSet<E> {
+    private static final long OPEN = Long.MAX_VALUE;
+
+    private static final int MIN_SWEEP = 16;
+
+    private final ConcurrentHashMap<IdentityKey, Versions<E>> map = new ConcurrentHashMap<>();
+
+    /**
+     * Approximate number of closed intervals, which are garbage once
+     * no reader can see them.
+     */
+    private final AtomicInteger garbage = new AtomicInteger();
+    private volatile int sweepThreshold = MIN_SWEEP;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * Membership intervals of one element as pairs of begin (inclusive)
+     * and end (exclusive) versions, oldest first. Only the last interval
+     * can be open. The array is replaced on every change so that readers
+     * need no lock.
+     */
+    private static final class Versions<E> {
+        final E element;
+        volatile long[] intervals = new long[0];
+
+        /**
+         * Set once this has been removed from the map. Guarded by this.
+         */
+        boolean discarded;
+
+        Versions(E element) {
+            this.element = element;
+        }
+
+        boolean isVisible(long version) {
+            long[] iv = intervals;
+            for (int i = 0; i < iv.length; i += 2) {
+                if (iv[i] <= version && version < iv[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isOpen() {
+            long[] iv = intervals;
+            return iv.length > 0 && iv[iv.length - 1] == OPEN;
+        }
+
+        // must hold the lock
+        boolean open(long version) {
+            long[] iv = intervals;
+            int n = iv.length;
+            if (n > 0 && iv[n - 1] == OPEN) {
+                return false;
+            }
+
+            long[] result;
+            if (n > 0 && iv[n - 1] == version) {
+                // removed and added again within one write
+                result = iv.clone();
+            } else {
+                result = Arrays.copyOf(iv, n + 2);
+                result[n] = version;
+            }
+            result[result.length - 1] = OPEN;
+            intervals = result;
+            return true;
+        }
+
+        // must hold the lock
+        boolean close(long version) {
+            long[] iv = intervals;
+            int n = iv.length;
+            if (n == 0 || iv[n - 1] != OPEN) {
+                return false;
+            }
+
+            long[] result;
+            if (iv[n - 2] == version) {
+                // added and removed within one write
+                result = Arrays.copyOf(iv, n - 2);
+            } else {
+                result = iv.clone();
+                result[n - 1] = version;
+            }
+            intervals = result;
+            return true;
+        }
+
+        /**
+         * Drops the intervals which ended at or before oldest. Must hold the lock.
+         *
+         * @return the number of closed intervals left
+         */
+        int prune(long oldest) {
+            long[] iv = intervals;
+            int dead = 0;
+            while (dead < iv.length && iv[dead + 1] <= oldest) {
+                dead += 2;
+            }
+            if (dead > 0) {
+                intervals = Arrays.copyOfRange(iv, dead, iv.length);
+            }
+
+            int closed = (iv.length - dead) / 2;
+            return isOpen() ? closed - 1 : closed;
+        }
+    }
+
+    @Override
+    public boolean add(E e) {
+        IdentityKey key = new IdentityKey(e);
+        long version = HgVersionClock.beginWrite();
+        try {
+            while (true) {
+                Versions<E> versions = map.computeIfAbsent(key, k -> new Versions<>(e));
+                synchronized (versions) {
+                    if (!versions.discarded) {
+                        return versions.open(version);
+                    }
+                }
+            }
+        } finally {
+            HgVersionClock.endWrite();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        IdentityKey key = new IdentityKey(o);
+        Versions<E> versions = map.get(key);
+        if (versions == null) {
+            return false;
+        }
+
+        boolean removed;
+        long version = HgVersionClock.beginWrite();
+        try {
+            synchronized (versions) {
+                removed = !versions.discarded && versions.close(version);
+                if (removed && versions.intervals.length == 0) {
+                    discard(key, versions);
+                }
+            }
+        } finally {
+            HgVersionClock.endWrite();
+        }
+
+        if (removed && garbage.incrementAndGet() >= sweepThreshold) {
+            sweep();
+        }
+        return removed;
+    }
+
+    // must hold the lock on versions
+    private void discard(IdentityKey key, Versions<E> versions) {
+        versions.discarded = true;
+        map.remove(key, versions);
+    }
+
+    private void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long oldest = HgVersionClock.prunableVersion();
+            int remaining = 0;
+            for (Map.Entry<IdentityKey, Versions<E>> entry : map.entrySet()) {
+                Versions<E> versions = entry.getValue();
+                synchronized (versions) {
+                    if (versions.discarded) {
+                        continue;
+                    }
+                    remaining += versions.prune(oldest);
+                    if (versions.intervals.length == 0) {
+                        discard(entry.getKey(), versions);
+                    }
+                }
+            }
+
+            // removes which ran during the sweep may be lost from the count
+            garbage.set(remaining);
+            sweepThreshold = remaining + Math.max(MIN_SWEEP, map.size() / 2);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Versions<E> versions = map.get(new IdentityKey(o));
+        return versions != null && versions.isVisible(HgSnapshot.readVersion());
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final long version = HgSnapshot.readVersion();
+        final Iterator<Versions<E>> it = map.values().iterator();
+
+        return new Iterator<E>() {
+            private E next = advance();
+            private E last;
+
+            private E advance() {
+                while (it.hasNext()) {
+                    Versions<E> versions = it.next();
+                    if (versions.isVisible(version)) {
+                        return versions.element;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = advance();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                HgVersionedSet.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        return new VersionSpliterator<>(map.values().spliterator(), HgSnapshot.readVersion());
+    }
+
+    /**
+     * Splits like the backing map, and reads at the version which was
+     * current on the thread that created the root spliterator.
+     */
+    private static final class VersionSpliterator<E> implements Spliterator<E>, Consumer<Versions<E>> {
+        private final Spliterator<Versions<E>> source;
+        private final long version;
+        private Versions<E> item;
+
+        VersionSpliterator(Spliterator<Versions<E>> source, long version) {
+            this.source = source;
+            this.version = version;
+        }
+
+        @Override
+        public void accept(Versions<E> versions) {
+            item = versions;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            while (source.tryAdvance(this)) {
+                Versions<E> versions = item;
+                item = null;
+                if (versions.isVisible(version)) {
+                    action.accept(versions.element);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<E> trySplit() {
+            Spliterator<Versions<E>> split = source.trySplit();
+            return split == null ? null : new VersionSpliterator<>(split, version);
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return CONCURRENT | DISTINCT | NONNULL;
+        }
+    }
+
+    @Override
+    public int size() {
+        long version = HgSnapshot.readVersion();
+        int size = 0;
+        for (Versions<E> versions : map.values()) {
+            if (versions.isVisible(version)) {
+                ++size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.mercurydb.queryutils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * A Set which compares its elements by identity and holds them through
+ * weak references, so that it does not keep them reachable. This is
+ * what weak tables use to hold their rows and the buckets of their
+ * indexes.
+ *
+ * The references of a set are registered with a ReferenceQueue, which
+ * is usually shared by all sets of one table. Elements which have been
+ * collected are skipped by iterators and by contains(), but they are
+ * only unlinked from their set, and the callback of the set is only
+ * called, once {@link #expunge(ReferenceQueue)} polls their references
+ * from the queue. Until then size() still counts them. Weak tables
+ * expunge at the start of every write, which like any write must not
+ * happen while the table is being iterated.
+ *
+ * Elements which are removed explicitly are never queued. Sets are not
+ * thread-safe, and null elements are not permitted.
+ *
+ * @param <E> the type of the elements
+ */
+public final class HgWeakIdentitySet<E> extends AbstractSet<E> {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final ReferenceQueue<Object> queue;
+    private final Consumer<? super HgWeakIdentitySet<E>> collected;
+    private Ref[] buckets = new Ref[INITIAL_CAPACITY];
+    private int size;
+    private int modifications;
+
+    private static final class Ref extends WeakReference<Object> {
+        final int hash;
+        final HgWeakIdentitySet<?> owner;
+        Ref next;
+
+        Ref(Object referent, int hash, HgWeakIdentitySet<?> owner, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = hash;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * @param queue     the queue of the references to the elements
+     * @param collected called with this set whenever a collected element
+     *                  has been unlinked from it by expunge, or null
+     */
+    public HgWeakIdentitySet(ReferenceQueue<Object> queue, Consumer<? super HgWeakIdentitySet<E>> collected) {
+        this.queue = queue;
+        this.collected = collected;
+    }
+
+    /**
+     * Unlinks the collected elements of all sets whose references are
+     * registered with queue from their sets.
+     *
+     * @param queue the queue of the references of one or more sets
+     * @return the number of elements which were unlinked
+     */
+    public static int expunge(ReferenceQueue<Object> queue) {
+        int count = 0;
+        for (Reference<?> ref; (ref = queue.poll()) != null; ) {
+            Ref r = (Ref) ref;
+            if (r.owner.unlink(r)) {
+                ++count;
+                r.owner.notifyCollected();
+            }
+        }
+        return count;
+    }
+
+    private void notifyCollected() {
+        if (collected != null) {
+            collected.accept(this);
+        }
+    }
+
+    private static int hash(Object o) {
+        int h = System.identityHashCode(o);
+        // identity hashes are spread badly in the low bits
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        int hash = hash(e);
+        int i = hash & (buckets.length - 1);
+        for (Ref r = buckets[i]; r != null; r = r.next) {
+            if (r.get() == e) {
+                return false;
+            }
+        }
+
+        Ref r = new Ref(e, hash, this, queue);
+        r.next = buckets[i];
+        buckets[i] = r;
+        ++modifications;
+        if (++size > buckets.length * 3 / 4) {
+            resize();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+
+        int i = hash(o) & (buckets.length - 1);
+        for (Ref r = buckets[i], previous = null; r != null; previous = r, r = r.next) {
+            if (r.get() == o) {
+                unlink(i, previous, r);
+                // a cleared reference is not queued
+                r.clear();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+
+        for (Ref r = buckets[hash(o) & (buckets.length - 1)]; r != null; r = r.next) {
+            if (r.get() == o) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean unlink(Ref ref) {
+        int i = ref.hash & (buckets.length - 1);
+        for (Ref r = buckets[i], previous = null; r != null; previous = r, r = r.next) {
+            if (r == ref) {
+                unlink(i, previous, r);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void unlink(int bucket, Ref previous, Ref r) {
+        if (previous == null) {
+            buckets[bucket] = r.next;
+        } else {
+            previous.next = r.next;
+        }
+        --size;
+        ++modifications;
+    }
+
+    private void resize() {
+        Ref[] next = new Ref[buckets.length * 2];
+        for (Ref r : buckets) {
+            while (r != null) {
+                Ref following = r.next;
+                int i = r.hash & (next.length - 1);
+                r.next = next[i];
+                next[i] = r;
+                r = following;
+            }
+        }
+        buckets = next;
+    }
+
+    /**
+     * @return the number of elements, including collected elements which
+     * have not been expunged yet
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (Ref r : buckets) {
+            for (; r != null; r = r.next) {
+                r.clear();
+            }
+        }
+        buckets = new Ref[INITIAL_CAPACITY];
+        size = 0;
+        ++modifications;
+    }
+
+    /**
+     * @return an iterator over the elements which have not been
+     * collected, which holds on to the element it returns next
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private final int expected = modifications;
+            private int bucket = -1;
+            private Ref ref;
+            private Object next;
+
+            {
+                advance();
+            }
+
+            private void advance() {
+                next = null;
+                while (next == null) {
+                    if (ref != null) {
+                        ref = ref.next;
+                    }
+                    while (ref == null) {
+                        if (++bucket >= buckets.length) {
+                            return;
+                        }
+                        ref = buckets[bucket];
+                    }
+                    next = ref.get();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked") // only elements of type E are added
+            public E next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                } else if (modifications != expected) {
+                    throw new ConcurrentModificationException();
+                }
+
+                E result = (E) next;
+                advance();
+                return result;
+            }
+        };
+    }
+}
@@ -2,20 +2,30 @@ package com.github.mercurydb.queryutils;
 
 import com.google.common.collect.Iterables;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
 
 @SuppressWarnings("unused")
 abstract public class HgWrappedIterableStream<T> extends HgStream<T> {
     private Iterable<T> streamSeed;
     private Iterator<T> stream;
 
+    /**
+     * The concatenated seeds, kept apart so that they can be split
+     */
+    private final List<Iterable<? extends T>> seeds = new ArrayList<>();
+
     public HgWrappedIterableStream(Iterable<T> streamSeed) {
         this.streamSeed = streamSeed;
+        seeds.add(streamSeed);
         stream = streamSeed.iterator();
     }
 
     public HgWrappedIterableStream<T> concat(HgWrappedIterableStream<? extends T> or) {
         streamSeed = Iterables.concat(streamSeed, or.streamSeed);
+        seeds.addAll(or.seeds);
         stream = streamSeed.iterator();
         return this;
     }
@@ -38,4 +48,14 @@ abstract public class HgWrappedIterableStream<T> extends HgStream<T> {
     public void reset() {
         stream = streamSeed.iterator();
     }
+
+    @Override
+    @SuppressWarnings("unchecked") // seeds are read-only
+    public Spliterator<T> spliterator() {
+        List<Spliterator<T>> parts = new ArrayList<>(seeds.size());
+        for (Iterable<? extends T> seed : seeds) {
+            parts.add((Spliterator<T>) seed.spliterator());
+        }
+        return HgSpliterators.concat(parts);
+    }
 }
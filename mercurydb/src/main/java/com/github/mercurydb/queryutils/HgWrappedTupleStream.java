@@ -14,6 +14,16 @@ public class HgWrappedTupleStream extends HgTupleStream {
         return _fwdStream.isIndexed();
     }
 
+    @Override
+    public long getExactSizeIfKnown() {
+        return _fwdStream.getExactSizeIfKnown();
+    }
+
+    @Override
+    public boolean isUnfiltered() {
+        return _fwdStream.isUnfiltered();
+    }
+
     @Override
     public void reset() {
         _fwdStream.reset();
@@ -28,4 +38,14 @@ public class HgWrappedTupleStream extends HgTupleStream {
     public HgTuple next() {
         return _fwdStream.next();
     }
+
+    @Override
+    public HgTupleBatch newBatch() {
+        return _fwdStream.newBatch();
+    }
+
+    @Override
+    public boolean nextBatch(HgTupleBatch batch) {
+        return _fwdStream.nextBatch(batch);
+    }
 }
@@ -0,0 +1,308 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.joiners.JoinSortMerge;
+
+import java.util.*;
+
+/**
+ * Chooses the order in which {@link HgDB#join(JoinPredicate...)}
+ * applies its predicates. Plans are left-deep: the first predicate
+ * joins two streams, and every following predicate joins the result
+ * with one more stream, or filters it if both of its streams are
+ * already part of the result.
+ *
+ * Every order is costed with cardinality estimates of the streams and
+ * the selectivity of the predicates, following the joiner which
+ * {@link HgDB#join(JoinPredicate)} will pick for each step. Up to
+ * {@link #MAX_EXHAUSTIVE} predicates, the cheapest order is found with
+ * dynamic programming over the sets of applied predicates. Above that,
+ * the cheapest next step is taken greedily.
+ */
+public class JoinPlanner {
+    /**
+     * Largest number of predicates which are planned exhaustively.
+     */
+    public static final int MAX_EXHAUSTIVE = 12;
+
+    /**
+     * Assumed number of tuples in a stream whose size is not known.
+     */
+    static final double DEFAULT_CARDINALITY = 1000;
+
+    /**
+     * Assumed fraction of pairs which satisfy an inequality relation.
+     */
+    static final double RANGE_SELECTIVITY = 1.0 / 3;
+
+    /**
+     * Assumed fraction of pairs which satisfy a relation which is not
+     * an HgRelation, e.g. a lambda or HgRelation.IN.
+     */
+    static final double DEFAULT_SELECTIVITY = 0.1;
+
+    private final JoinPredicate[] preds;
+    private final Set<TableID<?>>[] aIds, bIds;
+    private final double[] aSize, bSize, aKeys, bKeys, selectivity;
+    private final boolean[] aIndexed, bIndexed, isHgRelation, isMergeable;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    private JoinPlanner(JoinPredicate[] preds) {
+        int n = preds.length;
+        this.preds = preds;
+        aIds = new Set[n];
+        bIds = new Set[n];
+        aSize = new double[n];
+        bSize = new double[n];
+        aKeys = new double[n];
+        bKeys = new double[n];
+        selectivity = new double[n];
+        aIndexed = new boolean[n];
+        bIndexed = new boolean[n];
+        isHgRelation = new boolean[n];
+        isMergeable = new boolean[n];
+
+        for (int i = 0; i < n; ++i) {
+            JoinPredicate p = preds[i];
+            aIds[i] = p.streamA.getContainedIds();
+            bIds[i] = p.streamB.getContainedIds();
+            aSize[i] = estimateSize(p.streamA);
+            bSize[i] = estimateSize(p.streamB);
+            aKeys[i] = estimateDistinct(p.streamA, aSize[i]);
+            bKeys[i] = estimateDistinct(p.streamB, bSize[i]);
+            aIndexed[i] = HgDB.isStreamAndIndexCompatible(p.streamA, p.relation);
+            bIndexed[i] = HgDB.isStreamAndIndexCompatible(p.streamB, p.relation);
+            isHgRelation[i] = p.relation instanceof HgRelation;
+            isMergeable[i] = JoinSortMerge.isCompatible(p);
+            selectivity[i] = estimateSelectivity(p, aKeys[i], bKeys[i]);
+        }
+    }
+
+    /**
+     * Orders the given predicates for execution.
+     *
+     * @param preds one or more JoinPredicates
+     * @return the predicates in the order in which they should be joined
+     * @throws IllegalStateException if the predicates do not unify
+     */
+    public static List<JoinPredicate> order(JoinPredicate... preds) {
+        if (preds.length == 1) {
+            return Collections.singletonList(preds[0]);
+        }
+
+        JoinPlanner planner = new JoinPlanner(preds);
+        int[] order = preds.length <= MAX_EXHAUSTIVE ? planner.exhaustive() : planner.greedy();
+
+        List<JoinPredicate> result = new ArrayList<>(order.length);
+        for (int i : order) {
+            result.add(preds[i]);
+        }
+        return result;
+    }
+
+    private static double estimateSize(HgTupleStream stream) {
+        long size = stream.getExactSizeIfKnown();
+        return size < 0 ? DEFAULT_CARDINALITY : Math.max(1, size);
+    }
+
+    /**
+     * Estimates the number of distinct join keys in a stream. This is
+     * the number of non-empty index buckets when the stream is indexed.
+     * Otherwise every tuple is assumed to have its own key.
+     */
+    private static double estimateDistinct(HgTupleStream stream, double size) {
+        if (!stream.isIndexed() || stream.getIndex() == null) {
+            return size;
+        }
+
+        HgIndexStatistics statistics = stream.getStatistics();
+        long keys = statistics != null ? statistics.getKeyCount() : stream.getIndex().size();
+        return Math.max(1, Math.min(size, keys));
+    }
+
+    private static double estimateSelectivity(JoinPredicate p, double aKeys, double bKeys) {
+        if (p.relation == HgRelation.EQ || p.relation == HgRelation.NE) {
+            double distinct = Math.max(aKeys, bKeys);
+            return p.relation == HgRelation.EQ ? 1 / distinct : 1 - 1 / distinct;
+        } else if (p.relation instanceof HgRelation) {
+            return RANGE_SELECTIVITY;
+        }
+        return DEFAULT_SELECTIVITY;
+    }
+
+    /**
+     * The cost and the resulting cardinality of applying one predicate.
+     */
+    private static final class Step {
+        final double cost, cardinality;
+
+        Step(double cost, double cardinality) {
+            this.cost = cost;
+            this.cardinality = cardinality;
+        }
+    }
+
+    /**
+     * Costs predicate i as the first join.
+     */
+    private Step first(int i) {
+        double out = aSize[i] * bSize[i] * selectivity[i];
+        double cost;
+        if (isMergeable[i]) {
+            cost = aKeys[i] + bKeys[i] + out;
+        } else if (aIndexed[i]) {
+            cost = bSize[i] + out;
+        } else if (bIndexed[i]) {
+            cost = aSize[i] + out;
+        } else if (isHgRelation[i]) {
+            cost = aSize[i] + bSize[i] + out;
+        } else {
+            cost = aSize[i] * bSize[i];
+        }
+        return new Step(cost, out);
+    }
+
+    /**
+     * Costs predicate i on a result containing ids with the given
+     * cardinality, or returns null if it does not connect to the result.
+     */
+    private Step next(int i, Set<TableID<?>> ids, double cardinality) {
+        boolean aIn = ids.containsAll(aIds[i]);
+        boolean bIn = ids.containsAll(bIds[i]);
+
+        if (aIn && bIn) {
+            // JoinFilter
+            return new Step(cardinality, cardinality * selectivity[i]);
+        } else if (!aIn && !bIn) {
+            return null;
+        }
+
+        double size = aIn ? bSize[i] : aSize[i];
+        boolean indexed = aIn ? bIndexed[i] : aIndexed[i];
+        double out = cardinality * size * selectivity[i];
+        double cost;
+        if (indexed) {
+            cost = cardinality + out;
+        } else if (isHgRelation[i]) {
+            cost = cardinality + size + out;
+        } else {
+            cost = cardinality * size;
+        }
+        return new Step(cost, out);
+    }
+
+    private Set<TableID<?>> idsOf(int mask) {
+        Set<TableID<?>> ids = new HashSet<>();
+        for (int i = 0; i < preds.length; ++i) {
+            if ((mask & (1 << i)) != 0) {
+                ids.addAll(aIds[i]);
+                ids.addAll(bIds[i]);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Dynamic programming over the sets of applied predicates. Under
+     * the usual independence assumption the cardinality of a set does
+     * not depend on the order its predicates were applied in, so only
+     * the cheapest order of each set needs to be kept.
+     */
+    private int[] exhaustive() {
+        int n = preds.length;
+        int full = (1 << n) - 1;
+        double[] cost = new double[full + 1];
+        double[] cardinality = new double[full + 1];
+        int[] last = new int[full + 1];
+        Arrays.fill(cost, Double.POSITIVE_INFINITY);
+
+        for (int i = 0; i < n; ++i) {
+            Step step = first(i);
+            cost[1 << i] = step.cost;
+            cardinality[1 << i] = step.cardinality;
+            last[1 << i] = i;
+        }
+
+        // masks only grow, so iterating in numeric order visits subsets first
+        for (int mask = 1; mask < full; ++mask) {
+            if (cost[mask] == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+
+            Set<TableID<?>> ids = idsOf(mask);
+            for (int i = 0; i < n; ++i) {
+                int next = mask | (1 << i);
+                if (next == mask) {
+                    continue;
+                }
+
+                Step step = next(i, ids, cardinality[mask]);
+                if (step != null && cost[mask] + step.cost < cost[next]) {
+                    cost[next] = cost[mask] + step.cost;
+                    cardinality[next] = step.cardinality;
+                    last[next] = i;
+                }
+            }
+        }
+
+        if (cost[full] == Double.POSITIVE_INFINITY) {
+            throw new IllegalStateException("Predicates do not unify!");
+        }
+
+        int[] order = new int[n];
+        for (int mask = full, k = n - 1; k >= 0; --k) {
+            order[k] = last[mask];
+            mask &= ~(1 << last[mask]);
+        }
+        return order;
+    }
+
+    /**
+     * Starts with the cheapest first join and then repeatedly applies
+     * the cheapest connected predicate.
+     */
+    private int[] greedy() {
+        int n = preds.length;
+        int[] order = new int[n];
+        boolean[] applied = new boolean[n];
+
+        Step best = null;
+        for (int i = 0; i < n; ++i) {
+            Step step = first(i);
+            if (best == null || step.cost < best.cost) {
+                best = step;
+                order[0] = i;
+            }
+        }
+
+        applied[order[0]] = true;
+        double cardinality = best.cardinality;
+        Set<TableID<?>> ids = new HashSet<>(aIds[order[0]]);
+        ids.addAll(bIds[order[0]]);
+
+        for (int k = 1; k < n; ++k) {
+            best = null;
+            for (int i = 0; i < n; ++i) {
+                if (applied[i]) {
+                    continue;
+                }
+
+                Step step = next(i, ids, cardinality);
+                if (step != null && (best == null || step.cost < best.cost)) {
+                    best = step;
+                    order[k] = i;
+                }
+            }
+
+            if (best == null) {
+                throw new IllegalStateException("Predicates do not unify!");
+            }
+
+            applied[order[k]] = true;
+            cardinality = best.cardinality;
+            ids.addAll(aIds[order[k]]);
+            ids.addAll(bIds[order[k]]);
+        }
+
+        return order;
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.indexes.PrimitiveKey;
+
+/**
+ * A ValueExtractable for int, long and double values which can
+ * also extract its value as an encoded primitive key. Joiners use
+ * this to probe primitive indexes without boxing the join key.
+ *
+ * @see com.github.mercurydb.queryutils.indexes.PrimitiveIndex
+ */
+public interface PrimitiveValueExtractable extends ValueExtractable {
+    /**
+     * @return the type of the extracted keys
+     */
+    public PrimitiveKey getKeyType();
+
+    /**
+     * Extracts the value from an instance of the type returned
+     * by getContainerClass(), encoded with getKeyType().
+     *
+     * @param o The object to extract a value from.
+     * @return The encoded value of the field being extracted.
+     */
+    public long extractKey(Object o);
+}
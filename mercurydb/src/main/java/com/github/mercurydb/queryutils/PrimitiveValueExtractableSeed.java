@@ -0,0 +1,22 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.indexes.PrimitiveKey;
+
+/**
+ * Seed for int, long and double values. Generated tables
+ * implement extractKey() without boxing next to extractValue().
+ */
+public abstract class PrimitiveValueExtractableSeed<T> extends ValueExtractableSeed<T>
+        implements PrimitiveValueExtractable {
+    private final PrimitiveKey _keyType;
+
+    public PrimitiveValueExtractableSeed(TableID<T> id, PrimitiveKey keyType) {
+        super(id);
+        this._keyType = keyType;
+    }
+
+    @Override
+    public PrimitiveKey getKeyType() {
+        return _keyType;
+    }
+}
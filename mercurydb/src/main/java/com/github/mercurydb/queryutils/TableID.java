@@ -1,5 +1,7 @@
 package com.github.mercurydb.queryutils;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class TableID<T> {
     /**
      * This value may wrap around, but we have built in machinery to prevent
@@ -14,8 +16,11 @@ public class TableID<T> {
      * total is probably smaller than this number, based on expected
      * limitations of the compiler and physical memory of a modern machine
      * [CITATION NEEDED].
+     * <p/>
+     * The counter is atomic so that aliases can be created by concurrent
+     * queries without a lock.
      */
-    private static long counter = 0;
+    private static final AtomicLong counter = new AtomicLong();
 
     /**
      * For efficiency reasons in accounting for unique TableIDs throughout a
@@ -30,14 +35,14 @@ public class TableID<T> {
      * alias has been created. When the first alias is created, set this to false,
      * and never allow any names to be created anymore (instead throw an exception).
      */
-    private static boolean allowNames = true;
+    private static volatile boolean allowNames = true;
 
     /**
      * Initially 0, this value will be updated when the first alias is created
      * and never changed. Whenever the counter wraps around, it will be reset
      * to this value.
      */
-    private static long firstAliasID = 0;
+    private static volatile long firstAliasID = 0;
 
     /**
      * This is the ID value for this instance of a TableID. If this TableID is a
@@ -49,11 +54,24 @@ public class TableID<T> {
     public final long id;
 
     /**
-     * Create a new TableID with the current value of the static counter, and
-     * increment the counter for the next instance.
+     * Statistics of the table this TableID names, or null if unknown.
+     * Aliases share the statistics of the table they were created for.
+     */
+    private final HgTableStatistics statistics;
+
+    /**
+     * Create a new TableID with a value taken from the static counter.
+     */
+    private TableID(long id, HgTableStatistics statistics) {
+        this.id = id;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return the statistics of the table, or null if none are kept
      */
-    private TableID() {
-        id = counter++;
+    public HgTableStatistics getStatistics() {
+        return statistics;
     }
 
     /**
@@ -71,6 +89,14 @@ public class TableID<T> {
         return false;
     }
 
+    /**
+     * @return a hash of the id value, consistent with equals.
+     */
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
     /**
      * Utility method to cast the objects retrieved from an HgTuple back to
      * the appropriate type which is captured by the generic type, T of this
@@ -107,15 +133,27 @@ public class TableID<T> {
      * @return a new TableID name representing the type T.
      */
     public static <T> TableID<T> createName() {
+        return createName(null);
+    }
+
+    /**
+     * Create a name for a table which keeps statistics.
+     *
+     * @param statistics the statistics of the table, may be null
+     * @param <T> The type to represent.
+     * @return a new TableID name representing the type T.
+     * @see #createName()
+     */
+    public static synchronized <T> TableID<T> createName(HgTableStatistics statistics) {
         if (!allowNames) {
             throw new NameCreationDisallowedException();
         }
 
-        if (counter == Long.MIN_VALUE) {
+        if (counter.get() == Long.MIN_VALUE) {
             throw new OutOfNamesException();
         }
 
-        return new TableID<>();
+        return new TableID<>(counter.getAndIncrement(), statistics);
     }
 
     /**
@@ -125,16 +163,29 @@ public class TableID<T> {
      * @return a new TableID alias representing the type T.
      */
     public static <T> TableID<T> createAlias() {
+        return createAlias(null);
+    }
+
+    /**
+     * Create an alias for a table which keeps statistics.
+     *
+     * @param statistics the statistics of the table, may be null
+     * @param <T> The type to represent.
+     * @return a new TableID alias representing the type T.
+     */
+    public static <T> TableID<T> createAlias(HgTableStatistics statistics) {
         if (allowNames) {
             sealNames();
         }
 
-        // when we wrap all the way back around to 0, we need to skip over the permanent names.
-        if (counter == 0) {
-            counter = firstAliasID;
-        }
+        long current, id;
+        do {
+            current = counter.get();
+            // when we wrap all the way back around to 0, we need to skip over the permanent names.
+            id = current == 0 ? firstAliasID : current;
+        } while (!counter.compareAndSet(current, id + 1));
 
-        return new TableID<>();
+        return new TableID<>(id, statistics);
     }
 
     /**
@@ -167,9 +218,11 @@ public class TableID<T> {
      * will be the value of the first alias, and is the smallest value
      * guaranteed to never be reserved by a permanent name.
      */
-    private static void sealNames() {
-        allowNames = false;
-        firstAliasID = counter;
+    private static synchronized void sealNames() {
+        if (allowNames) {
+            firstAliasID = counter.get();
+            allowNames = false;
+        }
     }
 
     @Override
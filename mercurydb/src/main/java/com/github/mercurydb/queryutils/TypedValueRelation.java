@@ -0,0 +1,108 @@
+package com.github.mercurydb.queryutils;
+
+/**
+ * A relation of an int, long, double or String value with a constant.
+ * Generated tables subclass this once per value and implement
+ * testInstance() with the typed getter of the value, so that filters
+ * neither call an extractor, box the value nor dispatch equals() or
+ * compareTo() on Object.
+ *
+ * Primitive values are compared as keys encoded by
+ * {@link com.github.mercurydb.queryutils.indexes.PrimitiveKey},
+ * with the same result as the boxed comparison. The comparison is a
+ * switch on the relation rather than a call to
+ * {@link HgRelation#testKeys(long, long)}, which keeps the call sites of
+ * every generated subclass free of virtual calls.
+ *
+ * @param <T> the type of the rows
+ * @param <F> the type of the value
+ */
+public abstract class TypedValueRelation<T, F> extends ValueExtractableRelation<T, F> {
+    private static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+    private final int op;
+    private final long key;
+    private final String string;
+
+    /**
+     * @param fe the value, which must be a PrimitiveValueExtractable
+     *           unless the value is a String
+     * @param relation one of EQ, NE, LT, LE, GT and GE
+     * @param value the constant, which must not be null
+     */
+    protected TypedValueRelation(ValueExtractableSeed<T> fe, HgRelation relation, F value) {
+        super(fe, relation, value);
+        this.op = opOf(relation);
+
+        if (value instanceof String) {
+            this.key = 0;
+            this.string = (String) value;
+        } else {
+            this.key = ((PrimitiveValueExtractable) fe).getKeyType().encodeObject(value);
+            this.string = null;
+        }
+    }
+
+    private static int opOf(HgRelation relation) {
+        if (relation == HgRelation.EQ) {
+            return EQ;
+        } else if (relation == HgRelation.NE) {
+            return NE;
+        } else if (relation == HgRelation.LT) {
+            return LT;
+        } else if (relation == HgRelation.LE) {
+            return LE;
+        } else if (relation == HgRelation.GT) {
+            return GT;
+        } else if (relation == HgRelation.GE) {
+            return GE;
+        }
+
+        throw new IllegalArgumentException("Typed relations must be EQ, NE, LT, LE, GT or GE!");
+    }
+
+    @Override
+    public abstract boolean testInstance(Object instance);
+
+    /**
+     * @param k an encoded value of the rows
+     * @return the relation of the value with the constant
+     */
+    protected final boolean testKey(long k) {
+        switch (op) {
+            case EQ:
+                return k == key;
+            case NE:
+                return k != key;
+            case LT:
+                return k < key;
+            case LE:
+                return k <= key;
+            case GT:
+                return k > key;
+            default:
+                return k >= key;
+        }
+    }
+
+    /**
+     * @param s a String value of the rows
+     * @return the relation of the value with the constant
+     */
+    protected final boolean testString(String s) {
+        switch (op) {
+            case EQ:
+                return s.equals(string);
+            case NE:
+                return !s.equals(string);
+            case LT:
+                return s.compareTo(string) < 0;
+            case LE:
+                return s.compareTo(string) <= 0;
+            case GT:
+                return s.compareTo(string) > 0;
+            default:
+                return s.compareTo(string) >= 0;
+        }
+    }
+}
@@ -43,6 +43,11 @@ public interface ValueExtractable {
      */
     public Map<Object, Set<Object>> getIndex();
 
+    /**
+     * @return statistics of the index of this field, or null if no index is present
+     */
+    public HgIndexStatistics getStatistics();
+
     /**
      * Returns the id generated by the HgDB bootstrap process. This
      * is the ID in the tables. ID should be packaged into
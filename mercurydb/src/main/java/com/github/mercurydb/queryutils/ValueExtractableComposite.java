@@ -0,0 +1,65 @@
+package com.github.mercurydb.queryutils;
+
+import com.github.mercurydb.queryutils.indexes.CompositeIndex;
+import com.github.mercurydb.queryutils.indexes.CompositeKey;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts the CompositeKey of several values of one table. HgDB uses
+ * it in place of equalities on all values of a composite index, in
+ * queries and in joins. Without an index it extracts the matching key
+ * from the other side of a join.
+ *
+ * @param <T> the type of the rows
+ */
+class ValueExtractableComposite<T> extends ValueExtractableSeed<T> {
+    private final List<? extends ValueExtractableSeed<T>> components;
+    private final CompositeIndex composite;
+
+    /**
+     * @param components the seeds of the values, in key order
+     * @param composite the composite index, or null to only extract keys
+     */
+    ValueExtractableComposite(List<? extends ValueExtractableSeed<T>> components, CompositeIndex composite) {
+        super(components.get(0).getTableId());
+        this.components = components;
+        this.composite = composite;
+    }
+
+    @Override
+    public Class<?> getContainerClass() {
+        return components.get(0).getContainerClass();
+    }
+
+    @Override
+    public Object extractValue(Object o) {
+        Object[] values = new Object[components.size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = components.get(i).extractValue(o);
+        }
+        return CompositeKey.of(values);
+    }
+
+    @Override
+    public boolean isIndexed() {
+        return composite != null;
+    }
+
+    @Override
+    public Map<Object, Set<Object>> getIndex() {
+        return composite == null ? null : composite.getIndex();
+    }
+
+    @Override
+    public HgIndexStatistics getStatistics() {
+        return composite == null ? null : composite.getStatistics();
+    }
+
+    @Override
+    public HgStream<T> getDefaultStream() {
+        return components.get(0).getDefaultStream();
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.mercurydb.queryutils;
+
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * A range of values of one field with an ordered index. HgDB.query
+ * fuses the bounds of several relations on the same field into one of
+ * these, so that a single sub-range of the index is scanned instead of
+ * scanning the range of one relation and filtering it with the others.
+ *
+ * @param <T> the type of the rows
+ */
+class ValueExtractableRange<T> extends AbstractValueExtractablePredicate<T, Object> {
+    final Object lo, hi;
+    final boolean loInclusive, hiInclusive;
+
+    /**
+     * @param fe the field, which must have an ordered index
+     * @param lo the lower bound, or null if unbounded
+     * @param loInclusive true if lo is in the range
+     * @param hi the upper bound, or null if unbounded
+     * @param hiInclusive true if hi is in the range
+     */
+    ValueExtractableRange(ValueExtractableSeed<T> fe, Object lo, boolean loInclusive, Object hi, boolean hiInclusive) {
+        super(fe);
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // values of an ordered field are Comparable
+    public boolean test(Object value) {
+        Comparable<Object> v = (Comparable<Object>) value;
+        if (lo != null) {
+            int c = v.compareTo(lo);
+            if (c < 0 || (c == 0 && !loInclusive)) {
+                return false;
+            }
+        }
+
+        if (hi != null) {
+            int c = v.compareTo(hi);
+            if (c > 0 || (c == 0 && !hiInclusive)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the rows in the range, read from the index
+     */
+    Iterable<Object> getFromIndex() {
+        return new HgBucketIterable<>(subIndex().values());
+    }
+
+    /**
+     * @return the part of the index within the range
+     */
+    NavigableMap<Object, Set<Object>> subIndex() {
+        NavigableMap<Object, Set<Object>> index = (NavigableMap<Object, Set<Object>>) getIndex();
+        if (lo != null && hi != null) {
+            index = index.subMap(lo, loInclusive, hi, hiInclusive);
+        } else if (lo != null) {
+            index = index.tailMap(lo, loInclusive);
+        } else if (hi != null) {
+            index = index.headMap(hi, hiInclusive);
+        }
+
+        return index;
+    }
+
+    /**
+     * @param rows the number of rows in the table
+     * @return the estimated number of rows in the range
+     */
+    double estimateCount(double rows) {
+        HgIndexStatistics statistics = getStatistics();
+        if (statistics == null) {
+            return Math.nextDown(rows);
+        }
+
+        return Math.min(rows, statistics.estimateRangeSelectivity(lo, loInclusive, hi, hiInclusive)
+                * statistics.getTableStatistics().getRowCount());
+    }
+}
@@ -16,4 +16,14 @@ public class ValueExtractableRelation<T, F> extends AbstractValueExtractablePred
     public boolean test(F o) {
         return relation.test(o, value);
     }
+
+    /**
+     * @param value another constant
+     * @return a relation of the same value and kind with the constant
+     * @see HgPreparedQuery
+     */
+    @SuppressWarnings("unchecked") // _fwdFE is the seed of this relation
+    public ValueExtractableRelation<T, F> bind(F value) {
+        return new ValueExtractableRelation<>(_fwdFE, relation, value);
+    }
 }
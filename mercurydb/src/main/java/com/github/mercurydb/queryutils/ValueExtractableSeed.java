@@ -1,5 +1,10 @@
 package com.github.mercurydb.queryutils;
 
+import com.github.mercurydb.queryutils.indexes.CompositeIndex;
+
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This is the beginning. This class exists so that the query methods
  * have access to the streams from the tables. There is one additional method
@@ -15,6 +20,22 @@ public abstract class ValueExtractableSeed<T> implements ValueExtractable {
 
     abstract public HgStream<T> getDefaultStream();
 
+    /**
+     * @return the name of the @HgValue this seed extracts, or null if
+     * it does not extract a single value
+     */
+    public String getValueName() {
+        return null;
+    }
+
+    /**
+     * @return the composite indexes of the table whose key includes the
+     * value this seed extracts
+     */
+    public List<CompositeIndex> getCompositeIndexes() {
+        return Collections.emptyList();
+    }
+
     @Override
     public TableID<T> getTableId() {
         return _id;
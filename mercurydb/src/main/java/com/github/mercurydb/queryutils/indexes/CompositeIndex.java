@@ -0,0 +1,63 @@
+package com.github.mercurydb.queryutils.indexes;
+
+import com.github.mercurydb.queryutils.HgIndexStatistics;
+
+import java.util.*;
+
+/**
+ * Describes a composite index of a generated table: the names of the
+ * values in its key, the index itself, which maps CompositeKeys to the
+ * rows with those values, and its statistics.
+ *
+ * @see com.github.mercurydb.annotations.HgCompositeIndex
+ */
+public final class CompositeIndex {
+    private final List<String> values;
+    private final Map<Object, Set<Object>> index;
+    private final HgIndexStatistics statistics;
+
+    /**
+     * @param index the index maintained by the generated table
+     * @param statistics the statistics of the index
+     * @param values the names of the values in the key, in key order
+     */
+    @SuppressWarnings("unchecked") // rows are read as Objects, like other indexes
+    public CompositeIndex(Map<CompositeKey, ? extends Set<?>> index, HgIndexStatistics statistics, String... values) {
+        this.values = Collections.unmodifiableList(Arrays.asList(values));
+        this.index = (Map<Object, Set<Object>>) (Map<?, ?>) index;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return the names of the values in the key, in key order
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the index from CompositeKeys to rows
+     */
+    public Map<Object, Set<Object>> getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the statistics of the index
+     */
+    public HgIndexStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return true if the keys are ordered
+     */
+    public boolean isOrdered() {
+        return index instanceof NavigableMap;
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.mercurydb.queryutils.indexes;
+
+import java.util.Arrays;
+
+/**
+ * The key of a composite index: the values of several fields of one
+ * row, in the order in which the index declares them. Keys are equal
+ * if all of their values are equal, and are ordered by their first
+ * value, then by their second value and so on, with null values first.
+ */
+public final class CompositeKey implements Comparable<CompositeKey> {
+    private final Object[] values;
+    private final int hash;
+
+    private CompositeKey(Object[] values) {
+        this.values = values;
+        this.hash = Arrays.hashCode(values);
+    }
+
+    /**
+     * @param values the values of the fields of the key, in index order
+     * @return the key
+     */
+    public static CompositeKey of(Object... values) {
+        return new CompositeKey(values);
+    }
+
+    /**
+     * @return the number of values in this key
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @param i the position of the value in the key
+     * @return the value at position i
+     */
+    public Object get(int i) {
+        return values[i];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CompositeKey && Arrays.equals(values, ((CompositeKey) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // values of an ordered composite index are Comparable
+    public int compareTo(CompositeKey o) {
+        int n = Math.min(values.length, o.values.length);
+        for (int i = 0; i < n; ++i) {
+            Object a = values[i], b = o.values[i];
+            if (a == b) {
+                continue;
+            } else if (a == null) {
+                return -1;
+            } else if (b == null) {
+                return 1;
+            }
+
+            int c = ((Comparable<Object>) a).compareTo(b);
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return Integer.compare(values.length, o.values.length);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,260 @@
+package com.github.mercurydb.queryutils.indexes;
+
+import java.util.*;
+
+/**
+ * Unordered index over primitive keys. This is an open addressing hash
+ * map with linear probing which keeps its keys in a long[] and its
+ * buckets in an Object[], so there is neither a boxed key nor an entry
+ * object per distinct key.
+ *
+ * Buckets are never null, so an empty value slot marks a free slot.
+ * Removal uses backward shifting and therefore leaves no tombstones.
+ *
+ * @param <V> the type of the indexed objects
+ */
+public class PrimitiveHashIndex<V> extends AbstractMap<Object, Set<V>> implements PrimitiveIndex<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private final PrimitiveKey keyType;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    /**
+     * Incremented on every structural modification so that iterators
+     * can fail fast like java.util.HashMap's.
+     */
+    private int modCount;
+
+    public PrimitiveHashIndex(PrimitiveKey keyType) {
+        this.keyType = keyType;
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the slot of key, or -1 if key is not present
+     */
+    private int slotOf(long key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    @Override
+    public PrimitiveKey getKeyType() {
+        return keyType;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // values only ever holds buckets
+    public Set<V> getKey(long key) {
+        int slot = slotOf(key);
+        return slot < 0 ? null : (Set<V>) values[slot];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // values only ever holds buckets
+    public Set<V> putKey(long key, Set<V> bucket) {
+        if (bucket == null) {
+            throw new NullPointerException("Index buckets cannot be null");
+        }
+
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                Set<V> old = (Set<V>) values[slot];
+                values[slot] = bucket;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = bucket;
+        ++modCount;
+        if (++size > (values.length >> 1) + (values.length >> 2)) {
+            rehash(values.length << 1);
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // values only ever holds buckets
+    public Set<V> removeKey(long key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return null;
+        }
+
+        Set<V> old = (Set<V>) values[slot];
+        removeSlot(slot);
+        return old;
+    }
+
+    private void removeSlot(int slot) {
+        // shift back following entries which would otherwise become unreachable
+        int free = slot;
+        int next = (free + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        values[free] = null;
+        --size;
+        ++modCount;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        for (int i = 0; i < oldValues.length; ++i) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return keyType.accepts(key) && slotOf(keyType.encodeObject(key)) >= 0;
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        return keyType.accepts(key) ? getKey(keyType.encodeObject(key)) : null;
+    }
+
+    @Override
+    public Set<V> put(Object key, Set<V> value) {
+        return putKey(keyType.encodeObject(key), value);
+    }
+
+    @Override
+    public Set<V> remove(Object key) {
+        return keyType.accepts(key) ? removeKey(keyType.encodeObject(key)) : null;
+    }
+
+    @Override
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+        ++modCount;
+    }
+
+    @Override
+    public Collection<Set<V>> values() {
+        return new AbstractCollection<Set<V>>() {
+            @Override
+            public Iterator<Set<V>> iterator() {
+                return new SlotIterator<Set<V>>() {
+                    @Override
+                    @SuppressWarnings("unchecked") // values only ever holds buckets
+                    Set<V> get(int slot) {
+                        return (Set<V>) values[slot];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Object, Set<V>>> entrySet() {
+        return new AbstractSet<Entry<Object, Set<V>>>() {
+            @Override
+            public Iterator<Entry<Object, Set<V>>> iterator() {
+                return new SlotIterator<Entry<Object, Set<V>>>() {
+                    @Override
+                    @SuppressWarnings("unchecked") // values only ever holds buckets
+                    Entry<Object, Set<V>> get(int slot) {
+                        return new SimpleImmutableEntry<>(keyType.decode(keys[slot]), (Set<V>) values[slot]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Iterates over the occupied slots. Removal is not supported
+     * because backward shifting would move unvisited entries behind
+     * the cursor.
+     */
+    private abstract class SlotIterator<E> implements Iterator<E> {
+        private final int expectedModCount = modCount;
+        private int slot = advance(0);
+
+        private int advance(int from) {
+            while (from < values.length && values[from] == null) {
+                ++from;
+            }
+            return from;
+        }
+
+        abstract E get(int slot);
+
+        @Override
+        public boolean hasNext() {
+            return slot < values.length;
+        }
+
+        @Override
+        public E next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (slot >= values.length) {
+                throw new NoSuchElementException();
+            }
+
+            E result = get(slot);
+            slot = advance(slot + 1);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.mercurydb.queryutils.indexes;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index keyed by encoded primitive values. The Map view decodes
+ * and encodes boxed keys so that primitive indexes can be used
+ * anywhere a regular index is, while the generated table code and
+ * the joiners go through the encoded methods and never box.
+ *
+ * @param <V> the type of the indexed objects
+ * @see PrimitiveKey
+ */
+public interface PrimitiveIndex<V> extends Map<Object, Set<V>> {
+    /**
+     * @return the type of the keys in this index
+     */
+    public PrimitiveKey getKeyType();
+
+    /**
+     * @param key an encoded key
+     * @return the bucket for key, or null if there is none
+     */
+    public Set<V> getKey(long key);
+
+    /**
+     * @param key    an encoded key
+     * @param bucket the bucket to store, which must not be null
+     * @return the previous bucket for key, or null if there was none
+     */
+    public Set<V> putKey(long key, Set<V> bucket);
+
+    /**
+     * @param key an encoded key
+     * @return the removed bucket for key, or null if there was none
+     */
+    public Set<V> removeKey(long key);
+}
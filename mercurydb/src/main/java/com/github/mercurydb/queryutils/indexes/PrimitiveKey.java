@@ -0,0 +1,155 @@
+package com.github.mercurydb.queryutils.indexes;
+
+/**
+ * Primitive key types supported by the primitive indexes. Keys of
+ * every type are stored encoded as a long such that equality of the
+ * encoded keys matches equals() of the boxed keys and signed long
+ * order matches compareTo() of the boxed keys. This lets one index
+ * implementation serve int, long and double values without ever
+ * boxing them.
+ */
+public enum PrimitiveKey {
+    INT(Integer.class) {
+        @Override
+        public Object decode(long key) {
+            return (int) key;
+        }
+
+        @Override
+        public double decodeDouble(long key) {
+            return key;
+        }
+
+        @Override
+        long encodeBoxed(Object value) {
+            return (Integer) value;
+        }
+    },
+
+    LONG(Long.class) {
+        @Override
+        public Object decode(long key) {
+            return key;
+        }
+
+        @Override
+        public double decodeDouble(long key) {
+            return key;
+        }
+
+        @Override
+        long encodeBoxed(Object value) {
+            return (Long) value;
+        }
+    },
+
+    DOUBLE(Double.class) {
+        @Override
+        public Object decode(long key) {
+            return decodeDouble(key);
+        }
+
+        @Override
+        public double decodeDouble(long key) {
+            long bits = key ^ ((key >> 63) & Long.MAX_VALUE);
+            return Double.longBitsToDouble(bits);
+        }
+
+        @Override
+        long encodeBoxed(Object value) {
+            return encode((double) (Double) value);
+        }
+    };
+
+    private final Class<?> boxedClass;
+
+    PrimitiveKey(Class<?> boxedClass) {
+        this.boxedClass = boxedClass;
+    }
+
+    /**
+     * @param value a boxed key
+     * @return true if value can be encoded by this key type
+     */
+    public boolean accepts(Object value) {
+        return boxedClass.isInstance(value);
+    }
+
+    /**
+     * Encodes a boxed key. The caller must make sure that
+     * {@link #accepts(Object)} holds for the value.
+     *
+     * @param value a boxed key of this type
+     * @return the encoded key
+     */
+    public long encodeObject(Object value) {
+        if (!accepts(value)) {
+            throw new ClassCastException(value + " is not a key of type " + this);
+        }
+        return encodeBoxed(value);
+    }
+
+    /**
+     * @param key an encoded key of this type
+     * @return the boxed key
+     */
+    public abstract Object decode(long key);
+
+    /**
+     * Decodes a key without boxing it. Keys of type INT and LONG are
+     * their own value, so they can also be summed as encoded.
+     *
+     * @param key an encoded key of this type
+     * @return the value of the key as a double
+     */
+    public abstract double decodeDouble(long key);
+
+    /**
+     * @return true if encoded keys of this type are integral values
+     */
+    public boolean isIntegral() {
+        return this != DOUBLE;
+    }
+
+    abstract long encodeBoxed(Object value);
+
+    /**
+     * Returns the key type for a primitive type name as found in
+     * generated code, or null if there is no primitive index for it.
+     *
+     * @param typeName the primitive type name, e.g. "int"
+     * @return the key type or null
+     */
+    public static PrimitiveKey forTypeName(String typeName) {
+        switch (typeName) {
+            case "int":
+                return INT;
+            case "long":
+                return LONG;
+            case "double":
+                return DOUBLE;
+            default:
+                return null;
+        }
+    }
+
+    public static long encode(int value) {
+        return value;
+    }
+
+    public static long encode(long value) {
+        return value;
+    }
+
+    /**
+     * Encodes a double such that signed long order matches
+     * Double.compare(), i.e. -0.0 sorts before 0.0 and NaN last.
+     *
+     * @param value the double value
+     * @return the encoded key
+     */
+    public static long encode(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+}
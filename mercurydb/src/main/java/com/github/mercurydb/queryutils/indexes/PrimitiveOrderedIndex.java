@@ -0,0 +1,847 @@
+package com.github.mercurydb.queryutils.indexes;
+
+import java.util.*;
+
+/**
+ * Ordered index over primitive keys. Keys are kept sorted in blocks
+ * of long[] arrays with the buckets in parallel Object[] arrays, so
+ * there is neither a boxed key nor a tree node per distinct key.
+ * Lookups are a binary search over the first key of every block
+ * followed by a binary search inside one block.
+ *
+ * Instances are also used as the views returned by subMap, headMap,
+ * tailMap and descendingMap. Like TreeMap's, these views are backed
+ * by the same storage and therefore see later modifications.
+ *
+ * @param <V> the type of the indexed objects
+ */
+public class PrimitiveOrderedIndex<V> extends AbstractMap<Object, Set<V>>
+        implements NavigableMap<Object, Set<V>>, PrimitiveIndex<V> {
+
+    private static final long NONE = -1;
+
+    private final Store store;
+
+    // range of this view in ascending key order
+    private final boolean fromStart, toEnd;
+    private final long lo, hi;
+    private final boolean loInclusive, hiInclusive;
+
+    private final boolean descending;
+
+    public PrimitiveOrderedIndex(PrimitiveKey keyType) {
+        this(new Store(keyType), true, 0, true, true, 0, true, false);
+    }
+
+    private PrimitiveOrderedIndex(Store store,
+                                  boolean fromStart, long lo, boolean loInclusive,
+                                  boolean toEnd, long hi, boolean hiInclusive,
+                                  boolean descending) {
+        this.store = store;
+        this.fromStart = fromStart;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.toEnd = toEnd;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.descending = descending;
+    }
+
+    /*
+     * Range checks on encoded keys
+     */
+
+    private boolean tooLow(long key) {
+        return !fromStart && (key < lo || (key == lo && !loInclusive));
+    }
+
+    private boolean tooHigh(long key) {
+        return !toEnd && (key > hi || (key == hi && !hiInclusive));
+    }
+
+    private boolean inRange(long key) {
+        return !tooLow(key) && !tooHigh(key);
+    }
+
+    private boolean inClosedRange(long key) {
+        return (fromStart || key >= lo) && (toEnd || key <= hi);
+    }
+
+    private boolean inRange(long key, boolean inclusive) {
+        return inclusive ? inRange(key) : inClosedRange(key);
+    }
+
+    private boolean isView() {
+        return !fromStart || !toEnd;
+    }
+
+    /*
+     * Navigation in ascending order, restricted to the range of this view.
+     * All of these return a packed position or NONE.
+     */
+
+    private long absLowest() {
+        long pos = fromStart ? store.first() : store.ceiling(lo, loInclusive);
+        return pos == NONE || tooHigh(store.key(pos)) ? NONE : pos;
+    }
+
+    private long absHighest() {
+        long pos = toEnd ? store.last() : store.floor(hi, hiInclusive);
+        return pos == NONE || tooLow(store.key(pos)) ? NONE : pos;
+    }
+
+    private long absCeiling(long key, boolean inclusive) {
+        if (tooLow(key)) {
+            return absLowest();
+        }
+        long pos = store.ceiling(key, inclusive);
+        return pos == NONE || tooHigh(store.key(pos)) ? NONE : pos;
+    }
+
+    private long absFloor(long key, boolean inclusive) {
+        if (tooHigh(key)) {
+            return absHighest();
+        }
+        long pos = store.floor(key, inclusive);
+        return pos == NONE || tooLow(store.key(pos)) ? NONE : pos;
+    }
+
+    /*
+     * Navigation in the order of this view
+     */
+
+    private long firstPos() {
+        return descending ? absHighest() : absLowest();
+    }
+
+    private long lastPos() {
+        return descending ? absLowest() : absHighest();
+    }
+
+    private long ceilingPos(long key, boolean inclusive) {
+        return descending ? absFloor(key, inclusive) : absCeiling(key, inclusive);
+    }
+
+    private long floorPos(long key, boolean inclusive) {
+        return descending ? absCeiling(key, inclusive) : absFloor(key, inclusive);
+    }
+
+    private long nextPos(long pos) {
+        long next = descending ? store.prev(pos) : store.next(pos);
+        return next == NONE || !inRange(store.key(next)) ? NONE : next;
+    }
+
+    private long encode(Object key) {
+        return store.keyType.encodeObject(key);
+    }
+
+    private Entry<Object, Set<V>> entry(long pos) {
+        return pos == NONE ? null : new SimpleImmutableEntry<>(store.keyType.decode(store.key(pos)), bucket(pos));
+    }
+
+    private Object key(long pos) {
+        return pos == NONE ? null : store.keyType.decode(store.key(pos));
+    }
+
+    private Object keyOrThrow(long pos) {
+        if (pos == NONE) {
+            throw new NoSuchElementException();
+        }
+        return key(pos);
+    }
+
+    @SuppressWarnings("unchecked") // the store only ever holds buckets
+    private Set<V> bucket(long pos) {
+        return (Set<V>) store.value(pos);
+    }
+
+    /*
+     * PrimitiveIndex
+     */
+
+    @Override
+    public PrimitiveKey getKeyType() {
+        return store.keyType;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // the store only ever holds buckets
+    public Set<V> getKey(long key) {
+        return inRange(key) ? (Set<V>) store.get(key) : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // the store only ever holds buckets
+    public Set<V> putKey(long key, Set<V> bucket) {
+        if (bucket == null) {
+            throw new NullPointerException("Index buckets cannot be null");
+        }
+        if (!inRange(key)) {
+            throw new IllegalArgumentException("key out of range");
+        }
+        return (Set<V>) store.put(key, bucket);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // the store only ever holds buckets
+    public Set<V> removeKey(long key) {
+        return inRange(key) ? (Set<V>) store.remove(key) : null;
+    }
+
+    /*
+     * Map
+     */
+
+    @Override
+    public int size() {
+        if (!isView()) {
+            return store.size;
+        }
+
+        int count = 0;
+        for (long pos = firstPos(); pos != NONE; pos = nextPos(pos)) {
+            ++count;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return firstPos() == NONE;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        return store.keyType.accepts(key) ? getKey(encode(key)) : null;
+    }
+
+    @Override
+    public Set<V> put(Object key, Set<V> value) {
+        return putKey(encode(key), value);
+    }
+
+    @Override
+    public Set<V> remove(Object key) {
+        return store.keyType.accepts(key) ? removeKey(encode(key)) : null;
+    }
+
+    @Override
+    public void clear() {
+        if (isView()) {
+            super.clear();
+        } else {
+            store.clear();
+        }
+    }
+
+    @Override
+    public Collection<Set<V>> values() {
+        return new AbstractCollection<Set<V>>() {
+            @Override
+            public Iterator<Set<V>> iterator() {
+                return new PosIterator<Set<V>>() {
+                    @Override
+                    Set<V> get(long pos) {
+                        return bucket(pos);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return PrimitiveOrderedIndex.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return PrimitiveOrderedIndex.this.isEmpty();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Object, Set<V>>> entrySet() {
+        return new AbstractSet<Entry<Object, Set<V>>>() {
+            @Override
+            public Iterator<Entry<Object, Set<V>>> iterator() {
+                return new PosIterator<Entry<Object, Set<V>>>() {
+                    @Override
+                    Entry<Object, Set<V>> get(long pos) {
+                        return entry(pos);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return PrimitiveOrderedIndex.this.size();
+            }
+        };
+    }
+
+    @Override
+    public NavigableSet<Object> keySet() {
+        return navigableKeySet();
+    }
+
+    /*
+     * SortedMap and NavigableMap
+     */
+
+    @Override
+    public Comparator<? super Object> comparator() {
+        return descending ? Collections.reverseOrder() : null;
+    }
+
+    @Override
+    public Object firstKey() {
+        return keyOrThrow(firstPos());
+    }
+
+    @Override
+    public Object lastKey() {
+        return keyOrThrow(lastPos());
+    }
+
+    @Override
+    public Entry<Object, Set<V>> firstEntry() {
+        return entry(firstPos());
+    }
+
+    @Override
+    public Entry<Object, Set<V>> lastEntry() {
+        return entry(lastPos());
+    }
+
+    @Override
+    public Entry<Object, Set<V>> pollFirstEntry() {
+        return poll(firstPos());
+    }
+
+    @Override
+    public Entry<Object, Set<V>> pollLastEntry() {
+        return poll(lastPos());
+    }
+
+    private Entry<Object, Set<V>> poll(long pos) {
+        Entry<Object, Set<V>> result = entry(pos);
+        if (pos != NONE) {
+            store.remove(store.key(pos));
+        }
+        return result;
+    }
+
+    @Override
+    public Entry<Object, Set<V>> lowerEntry(Object key) {
+        return entry(floorPos(encode(key), false));
+    }
+
+    @Override
+    public Object lowerKey(Object key) {
+        return key(floorPos(encode(key), false));
+    }
+
+    @Override
+    public Entry<Object, Set<V>> floorEntry(Object key) {
+        return entry(floorPos(encode(key), true));
+    }
+
+    @Override
+    public Object floorKey(Object key) {
+        return key(floorPos(encode(key), true));
+    }
+
+    @Override
+    public Entry<Object, Set<V>> ceilingEntry(Object key) {
+        return entry(ceilingPos(encode(key), true));
+    }
+
+    @Override
+    public Object ceilingKey(Object key) {
+        return key(ceilingPos(encode(key), true));
+    }
+
+    @Override
+    public Entry<Object, Set<V>> higherEntry(Object key) {
+        return entry(ceilingPos(encode(key), false));
+    }
+
+    @Override
+    public Object higherKey(Object key) {
+        return key(ceilingPos(encode(key), false));
+    }
+
+    @Override
+    public PrimitiveOrderedIndex<V> descendingMap() {
+        return new PrimitiveOrderedIndex<>(store, fromStart, lo, loInclusive, toEnd, hi, hiInclusive, !descending);
+    }
+
+    @Override
+    public NavigableSet<Object> navigableKeySet() {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<Object> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public PrimitiveOrderedIndex<V> subMap(Object fromKey, boolean fromInclusive, Object toKey, boolean toInclusive) {
+        long from = encode(fromKey), to = encode(toKey);
+        if (descending ? from < to : from > to) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return descending
+                ? absSubMap(false, to, toInclusive, false, from, fromInclusive)
+                : absSubMap(false, from, fromInclusive, false, to, toInclusive);
+    }
+
+    @Override
+    public PrimitiveOrderedIndex<V> headMap(Object toKey, boolean inclusive) {
+        long to = encode(toKey);
+        return descending
+                ? absSubMap(false, to, inclusive, true, 0, true)
+                : absSubMap(true, 0, true, false, to, inclusive);
+    }
+
+    @Override
+    public PrimitiveOrderedIndex<V> tailMap(Object fromKey, boolean inclusive) {
+        long from = encode(fromKey);
+        return descending
+                ? absSubMap(true, 0, true, false, from, inclusive)
+                : absSubMap(false, from, inclusive, true, 0, true);
+    }
+
+    @Override
+    public SortedMap<Object, Set<V>> subMap(Object fromKey, Object toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<Object, Set<V>> headMap(Object toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<Object, Set<V>> tailMap(Object fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * Creates a view of the intersection of the given ascending range
+     * and the range of this view, keeping the direction of this view.
+     */
+    private PrimitiveOrderedIndex<V> absSubMap(boolean newFromStart, long newLo, boolean newLoInclusive,
+                                               boolean newToEnd, long newHi, boolean newHiInclusive) {
+        if (!newFromStart && !inRange(newLo, newLoInclusive)) {
+            throw new IllegalArgumentException("fromKey out of range");
+        }
+        if (!newToEnd && !inRange(newHi, newHiInclusive)) {
+            throw new IllegalArgumentException("toKey out of range");
+        }
+
+        if (newFromStart) {
+            newLo = lo;
+            newLoInclusive = loInclusive;
+        }
+        if (newToEnd) {
+            newHi = hi;
+            newHiInclusive = hiInclusive;
+        }
+
+        return new PrimitiveOrderedIndex<>(store,
+                newFromStart && fromStart, newLo, newLoInclusive,
+                newToEnd && toEnd, newHi, newHiInclusive,
+                descending);
+    }
+
+    /**
+     * Iterates over the positions of this view in its order.
+     */
+    private abstract class PosIterator<E> implements Iterator<E> {
+        private int expectedModCount = store.modCount;
+        private long next = firstPos();
+        private long lastReturned = NONE;
+
+        abstract E get(long pos);
+
+        @Override
+        public boolean hasNext() {
+            return next != NONE;
+        }
+
+        @Override
+        public E next() {
+            if (store.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next == NONE) {
+                throw new NoSuchElementException();
+            }
+
+            lastReturned = next;
+            next = nextPos(next);
+            return get(lastReturned);
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == NONE) {
+                throw new IllegalStateException();
+            }
+            if (store.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            // positions shift on removal, so find the next one again by key
+            long key = store.key(lastReturned);
+            store.remove(key);
+            if (next != NONE) {
+                next = ceilingPos(key, false);
+            }
+            lastReturned = NONE;
+            expectedModCount = store.modCount;
+        }
+    }
+
+    /**
+     * Navigable key set view of a PrimitiveOrderedIndex.
+     */
+    private class KeySet extends AbstractSet<Object> implements NavigableSet<Object> {
+        private final PrimitiveOrderedIndex<V> map = PrimitiveOrderedIndex.this;
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new PosIterator<Object>() {
+                @Override
+                Object get(long pos) {
+                    return key(pos);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return map.containsKey(o);
+        }
+
+        @Override
+        public Comparator<? super Object> comparator() {
+            return map.comparator();
+        }
+
+        @Override
+        public Object first() {
+            return map.firstKey();
+        }
+
+        @Override
+        public Object last() {
+            return map.lastKey();
+        }
+
+        @Override
+        public Object lower(Object o) {
+            return map.lowerKey(o);
+        }
+
+        @Override
+        public Object floor(Object o) {
+            return map.floorKey(o);
+        }
+
+        @Override
+        public Object ceiling(Object o) {
+            return map.ceilingKey(o);
+        }
+
+        @Override
+        public Object higher(Object o) {
+            return map.higherKey(o);
+        }
+
+        @Override
+        public Object pollFirst() {
+            Entry<Object, Set<V>> e = map.pollFirstEntry();
+            return e == null ? null : e.getKey();
+        }
+
+        @Override
+        public Object pollLast() {
+            Entry<Object, Set<V>> e = map.pollLastEntry();
+            return e == null ? null : e.getKey();
+        }
+
+        @Override
+        public NavigableSet<Object> descendingSet() {
+            return map.descendingKeySet();
+        }
+
+        @Override
+        public Iterator<Object> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<Object> subSet(Object fromElement, boolean fromInclusive,
+                                           Object toElement, boolean toInclusive) {
+            return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<Object> headSet(Object toElement, boolean inclusive) {
+            return map.headMap(toElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<Object> tailSet(Object fromElement, boolean inclusive) {
+            return map.tailMap(fromElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<Object> subSet(Object fromElement, Object toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<Object> headSet(Object toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<Object> tailSet(Object fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+
+    /**
+     * Sorted storage shared between an index and its views. Keys live
+     * in blocks of at most BLOCK_SIZE sorted keys. A position is the
+     * block number in the upper and the offset in the lower 32 bits.
+     */
+    private static final class Store {
+        private static final int BLOCK_SIZE = 128;
+
+        final PrimitiveKey keyType;
+
+        long[][] keys;
+        Object[][] values;
+        int[] sizes;
+        int blocks;
+        int size;
+        int modCount;
+
+        Store(PrimitiveKey keyType) {
+            this.keyType = keyType;
+            clear();
+        }
+
+        void clear() {
+            keys = new long[4][];
+            values = new Object[4][];
+            sizes = new int[4];
+            blocks = 0;
+            size = 0;
+            ++modCount;
+        }
+
+        static long pos(int block, int offset) {
+            return ((long) block << 32) | offset;
+        }
+
+        static int block(long pos) {
+            return (int) (pos >>> 32);
+        }
+
+        static int offset(long pos) {
+            return (int) pos;
+        }
+
+        long key(long pos) {
+            return keys[block(pos)][offset(pos)];
+        }
+
+        Object value(long pos) {
+            return values[block(pos)][offset(pos)];
+        }
+
+        /**
+         * @return the last block whose first key is <= key, or -1
+         */
+        int blockOf(long key) {
+            int low = 0, high = blocks - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid][0] <= key) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        Object get(long key) {
+            int b = blockOf(key);
+            if (b < 0) {
+                return null;
+            }
+            int i = Arrays.binarySearch(keys[b], 0, sizes[b], key);
+            return i < 0 ? null : values[b][i];
+        }
+
+        long first() {
+            return blocks == 0 ? NONE : pos(0, 0);
+        }
+
+        long last() {
+            return blocks == 0 ? NONE : pos(blocks - 1, sizes[blocks - 1] - 1);
+        }
+
+        long next(long pos) {
+            int b = block(pos), i = offset(pos) + 1;
+            if (i < sizes[b]) {
+                return pos(b, i);
+            }
+            return b + 1 < blocks ? pos(b + 1, 0) : NONE;
+        }
+
+        long prev(long pos) {
+            int b = block(pos), i = offset(pos) - 1;
+            if (i >= 0) {
+                return pos(b, i);
+            }
+            return b > 0 ? pos(b - 1, sizes[b - 1] - 1) : NONE;
+        }
+
+        long ceiling(long key, boolean inclusive) {
+            int b = blockOf(key);
+            if (b < 0) {
+                return first();
+            }
+            int i = Arrays.binarySearch(keys[b], 0, sizes[b], key);
+            if (i >= 0) {
+                return inclusive ? pos(b, i) : next(pos(b, i));
+            }
+            i = -i - 1;
+            return i < sizes[b] ? pos(b, i) : (b + 1 < blocks ? pos(b + 1, 0) : NONE);
+        }
+
+        long floor(long key, boolean inclusive) {
+            int b = blockOf(key);
+            if (b < 0) {
+                return NONE;
+            }
+            int i = Arrays.binarySearch(keys[b], 0, sizes[b], key);
+            if (i >= 0) {
+                return inclusive ? pos(b, i) : prev(pos(b, i));
+            }
+            // keys[b][0] < key, so the insertion point is at least 1
+            return pos(b, -i - 2);
+        }
+
+        Object put(long key, Object value) {
+            if (blocks == 0) {
+                insertBlock(0);
+            }
+
+            int b = Math.max(0, blockOf(key));
+            int i = Arrays.binarySearch(keys[b], 0, sizes[b], key);
+            if (i >= 0) {
+                Object old = values[b][i];
+                values[b][i] = value;
+                return old;
+            }
+            i = -i - 1;
+
+            if (sizes[b] == BLOCK_SIZE) {
+                // split the full block in half and retry in the right half
+                int half = BLOCK_SIZE / 2;
+                insertBlock(b + 1);
+                System.arraycopy(keys[b], half, keys[b + 1], 0, BLOCK_SIZE - half);
+                System.arraycopy(values[b], half, values[b + 1], 0, BLOCK_SIZE - half);
+                Arrays.fill(values[b], half, BLOCK_SIZE, null);
+                sizes[b] = half;
+                sizes[b + 1] = BLOCK_SIZE - half;
+                if (i > half) {
+                    b += 1;
+                    i -= half;
+                }
+            }
+
+            System.arraycopy(keys[b], i, keys[b], i + 1, sizes[b] - i);
+            System.arraycopy(values[b], i, values[b], i + 1, sizes[b] - i);
+            keys[b][i] = key;
+            values[b][i] = value;
+            ++sizes[b];
+            ++size;
+            ++modCount;
+            return null;
+        }
+
+        Object remove(long key) {
+            int b = blockOf(key);
+            if (b < 0) {
+                return null;
+            }
+            int i = Arrays.binarySearch(keys[b], 0, sizes[b], key);
+            if (i < 0) {
+                return null;
+            }
+
+            Object old = values[b][i];
+            int moved = sizes[b] - i - 1;
+            System.arraycopy(keys[b], i + 1, keys[b], i, moved);
+            System.arraycopy(values[b], i + 1, values[b], i, moved);
+            values[b][--sizes[b]] = null;
+            if (sizes[b] == 0) {
+                removeBlock(b);
+            }
+            --size;
+            ++modCount;
+            return old;
+        }
+
+        private void insertBlock(int b) {
+            if (blocks == keys.length) {
+                int capacity = blocks * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+
+            System.arraycopy(keys, b, keys, b + 1, blocks - b);
+            System.arraycopy(values, b, values, b + 1, blocks - b);
+            System.arraycopy(sizes, b, sizes, b + 1, blocks - b);
+            keys[b] = new long[BLOCK_SIZE];
+            values[b] = new Object[BLOCK_SIZE];
+            sizes[b] = 0;
+            ++blocks;
+        }
+
+        private void removeBlock(int b) {
+            System.arraycopy(keys, b + 1, keys, b, blocks - b - 1);
+            System.arraycopy(values, b + 1, values, b, blocks - b - 1);
+            System.arraycopy(sizes, b + 1, sizes, b, blocks - b - 1);
+            --blocks;
+            keys[blocks] = null;
+            values[blocks] = null;
+        }
+    }
+}
@@ -1,20 +1,28 @@
 package com.github.mercurydb.queryutils.joiners;
 
-import com.github.mercurydb.queryutils.HgPolyTupleStream;
+import com.github.mercurydb.queryutils.HgBatchedTupleStream;
+import com.github.mercurydb.queryutils.HgRelation;
+import com.github.mercurydb.queryutils.HgTupleBatch;
 import com.github.mercurydb.queryutils.HgTupleStream;
 import com.github.mercurydb.queryutils.JoinPredicate;
+import com.github.mercurydb.queryutils.PrimitiveValueExtractable;
+import com.github.mercurydb.queryutils.ValueExtractable;
 
 
 /**
  * Performs a filter join on two streams
  * where one's set of contained types is
  * a subset of the other's.
+ *
+ * The batches of the larger stream are filtered in place, so that
+ * its rows are never copied. Int, long and double values of the same
+ * type are compared as encoded keys, without boxing.
  */
-public class JoinFilter extends HgPolyTupleStream {
+public class JoinFilter extends HgBatchedTupleStream {
 
     private final HgTupleStream ap;
     private final HgTupleStream bp;
-    private HgTuple currA;
+    private final HgRelation keyRelation;
 
     public JoinFilter(JoinPredicate predicate) {
         super(predicate);
@@ -27,35 +35,45 @@ public class JoinFilter extends HgPolyTupleStream {
             ap = predicate.streamB;
             bp = predicate.streamA;
         }
-    }
 
-    @Override
-    public boolean hasNext() {
-        if (ap.hasNext()) {
-            currA = ap.next();
-            Object jkv1o = ap.extractFieldFromTuple(currA);
-            Object jkv2o = bp.extractFieldFromTuple(currA);
-
-            // TODO why does having these be equal mean hasNext() is true?
-            // TODO also if this logic is sound, reduce it into a single expression as IntelliJ recommends
-            if (_predicate.relation.test(jkv1o, jkv2o)) {
-                return true;
-            } else {
-                return hasNext();
-            }
+        ValueExtractable aFE = ap.getFieldExtractor(), bFE = bp.getFieldExtractor();
+        if (HgRelation.comparesKeys(predicate.relation)
+                && aFE instanceof PrimitiveValueExtractable
+                && bFE instanceof PrimitiveValueExtractable
+                && ((PrimitiveValueExtractable) aFE).getKeyType() == ((PrimitiveValueExtractable) bFE).getKeyType()) {
+            keyRelation = (HgRelation) predicate.relation;
+        } else {
+            keyRelation = null;
         }
-
-        return false;
     }
 
     @Override
-    public HgTuple next() {
-        return currA;
+    public HgTupleBatch newBatch() {
+        return ap.newBatch();
     }
 
     @Override
-    public void reset() {
-        super.reset();
-        currA = null;
+    protected boolean fillBatch(HgTupleBatch batch) {
+        Object[] aRows = batch.column(ap.getFieldExtractor().getTableId());
+        Object[] bRows = batch.column(bp.getFieldExtractor().getTableId());
+
+        while (ap.nextBatch(batch)) {
+            if (keyRelation != null) {
+                PrimitiveValueExtractable aKey = (PrimitiveValueExtractable) ap.getFieldExtractor();
+                PrimitiveValueExtractable bKey = (PrimitiveValueExtractable) bp.getFieldExtractor();
+                batch.retain(row -> keyRelation.testKeys(
+                        aKey.extractKey(aRows[row]),
+                        bKey.extractKey(bRows[row])));
+            } else {
+                batch.retain(row -> _predicate.relation.test(
+                        ap.extractValue(aRows[row]),
+                        bp.extractValue(bRows[row])));
+            }
+            if (batch.size() > 0) {
+                return true;
+            }
+        }
+
+        return false;
     }
 }
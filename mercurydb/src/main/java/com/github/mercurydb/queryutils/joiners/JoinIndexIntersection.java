@@ -21,9 +21,12 @@ public class JoinIndexIntersection extends HgPolyTupleStream {
     private Iterable<Object> aSeed;
 
     private HgRelation relation;
+    private final int aSlot, bSlot;
 
     public JoinIndexIntersection(JoinPredicate pred) {
         super(pred);
+        aSlot = slotOf(pred.streamA.getTableId());
+        bSlot = slotOf(pred.streamB.getTableId());
 
         if (pred.relation instanceof HgRelation) {
             relation = (HgRelation)pred.relation;
@@ -79,11 +82,7 @@ public class JoinIndexIntersection extends HgPolyTupleStream {
 
     @Override
     public HgTuple next() {
-        return this.new HgTuple(
-                _predicate.streamA.getTableId(),
-                currA,
-                _predicate.streamB.getTableId(),
-                currB);
+        return tuple(aSlot, currA, bSlot, currB);
     }
 
     @Override
@@ -1,26 +1,50 @@
 package com.github.mercurydb.queryutils.joiners;
 
 import com.github.mercurydb.queryutils.*;
+import com.github.mercurydb.queryutils.indexes.PrimitiveIndex;
 
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 
 /**
  * Joins two JoinStreams, one of which must
  * be indexed. Scans over the non-indexed stream
  * and uses the index on the indexed stream.
+ *
+ * The non-indexed stream is read a batch at a time, and the rows of
+ * every bucket are written to the output batch together with the
+ * row of the non-indexed stream which probed it. Buckets are copied
+ * into a reused array with forEach instead of creating an iterator
+ * per probe.
  */
-public class JoinIndexScan extends HgPolyTupleStream {
+public class JoinIndexScan extends HgBatchedTupleStream {
 
     protected final HgTupleStream ap;
     protected final HgTupleStream bp;
     protected final HgRelation relation;
 
-    protected HgTuple currB;
-    private Iterator<HgTuple> bInstances;
-    protected Iterator<Object> aInstances;
-
+    private HgTupleBatch bBatch;
+    private int bRow;
+    private Object[] bKeys;
+    private int[] outColumns;
+    private final int aColumn;
+
+    /*
+     * The rows of the bucket of the last probe, [aRow, aCount) are left
+     */
+    private Object[] aRows = new Object[16];
+    private int aRow, aCount;
+    private final Consumer<Object> collectA = this::collectA;
+
+    /*
+     * Set when both sides of an equi-join have the same primitive key
+     * type, in which case the index is probed with encoded keys.
+     */
+    private PrimitiveIndex<Object> aPrimitiveIndex;
+    private PrimitiveValueExtractable bPrimitiveKey;
 
     private static JoinPredicate fixAndCheckPredicate(JoinPredicate predicate) {
         if (!(HgDB.isStreamAndIndexCompatible(predicate.streamA, predicate.relation)) &&
@@ -38,37 +62,106 @@ public class JoinIndexScan extends HgPolyTupleStream {
         ap = _predicate.streamA;
         bp = _predicate.streamB;
         relation = (HgRelation)_predicate.relation;
+        aColumn = slotOf(ap.getTableId());
 
         setup();
     }
 
+    @SuppressWarnings("unchecked") // cast to PrimitiveIndex<Object>
     private void setup() {
-        bInstances = bp.iterator();
-        aInstances = Collections.emptyIterator();
+        bp.reset();
+        bBatch = null;
+        bRow = 0;
+        Arrays.fill(aRows, 0, aCount, null);
+        aRow = aCount = 0;
+
+        Map<Object, Set<Object>> aIndex = ap.getIndex();
+        ValueExtractable bFE = bp.getFieldExtractor();
+        if (relation == HgRelation.EQ
+                && aIndex instanceof PrimitiveIndex
+                && bFE instanceof PrimitiveValueExtractable
+                && ((PrimitiveIndex) aIndex).getKeyType() == ((PrimitiveValueExtractable) bFE).getKeyType()) {
+            aPrimitiveIndex = (PrimitiveIndex<Object>) aIndex;
+            bPrimitiveKey = (PrimitiveValueExtractable) bFE;
+        } else {
+            aPrimitiveIndex = null;
+            bPrimitiveKey = null;
+        }
+    }
+
+    /**
+     * Maps the columns of the batches of B to the columns of this join.
+     */
+    private void setupBatch() {
+        bBatch = bp.newBatch();
+        bKeys = bBatch.column(bp.getFieldExtractor().getTableId());
+        outColumns = new int[bBatch.columnCount()];
+        for (int c = 0; c < outColumns.length; ++c) {
+            outColumns[c] = slotOf(bBatch.getTableId(c));
+        }
     }
 
     @Override
-    public boolean hasNext() {
-        if (aInstances.hasNext()) {
-            return true;
-        } else {
-            while (bInstances.hasNext()) {
-                currB = bInstances.next();
-                Object currKey = bp.extractFieldFromTuple(currB);
-                Iterable<Object> aIterable = relation.getFromIndex(ap.getIndex(), currKey);
+    protected boolean fillBatch(HgTupleBatch out) {
+        out.clear();
+        if (bBatch == null) {
+            setupBatch();
+        }
+
+        while (!out.isFull()) {
+            if (aRow < aCount) {
+                // bRow was advanced past the row which probed the bucket
+                int b = bRow - 1;
+                do {
+                    int row = out.addRow();
+                    putA(out, row, aRows[aRow++]);
+                    for (int c = 0; c < outColumns.length; ++c) {
+                        out.column(outColumns[c])[row] = bBatch.column(c)[b];
+                    }
+                } while (!out.isFull() && aRow < aCount);
+            } else if (bRow < bBatch.size()) {
+                Iterable<Object> aIterable = probe(bKeys[bRow++]);
+                aRow = aCount = 0;
                 if (aIterable != null) {
-                    aInstances = aIterable.iterator();
-                    return hasNext();
+                    aIterable.forEach(collectA);
                 }
+            } else if (bp.nextBatch(bBatch)) {
+                bRow = 0;
+            } else {
+                break;
             }
         }
 
-        return false;
+        return out.size() > 0;
     }
 
-    @Override
-    public HgTuple next() {
-        return new HgTuple(ap.getTableId(), aInstances.next(), currB);
+    private void collectA(Object aInstance) {
+        if (aCount == aRows.length) {
+            aRows = Arrays.copyOf(aRows, aCount * 2);
+        }
+        aRows[aCount++] = aInstance;
+    }
+
+    /**
+     * @param bInstance the instance of the table of the join key of B
+     * @return the rows of A which match it, or null
+     */
+    private Iterable<Object> probe(Object bInstance) {
+        if (aPrimitiveIndex != null) {
+            return aPrimitiveIndex.getKey(bPrimitiveKey.extractKey(bInstance));
+        }
+        return relation.getFromIndex(ap.getIndex(), bp.extractValue(bInstance));
+    }
+
+    /**
+     * Writes a row of A to a row of the output batch.
+     *
+     * @param out the output batch
+     * @param row the row index in out
+     * @param aInstance a row of the index of A
+     */
+    protected void putA(HgTupleBatch out, int row, Object aInstance) {
+        out.column(aColumn)[row] = aInstance;
     }
 
     @Override
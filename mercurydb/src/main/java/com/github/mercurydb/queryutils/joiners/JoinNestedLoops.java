@@ -36,7 +36,7 @@ public class JoinNestedLoops extends HgPolyTupleStream {
 
     @Override
     public HgTuple next() {
-        return new HgTuple(currA, currB);
+        return tuple(currA, currB);
     }
 
     @Override
@@ -0,0 +1,194 @@
+package com.github.mercurydb.queryutils.joiners;
+
+import com.github.mercurydb.queryutils.HgPolyTupleStream;
+import com.github.mercurydb.queryutils.HgRelation;
+import com.github.mercurydb.queryutils.JoinPredicate;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Joins two JoinStreams, both of which must have an ordered
+ * index. Walks the keys of both indexes in lockstep instead of
+ * probing one index per tuple of the other stream, so that every
+ * key is visited once.
+ *
+ * For EQ, the buckets of equal keys are joined. For the inequality
+ * relations, the keys of B are walked in the direction in which the
+ * matching keys of A only grow. Every A key passed so far then matches
+ * the current B key, and the buckets of those keys are joined with the
+ * bucket of B.
+ */
+public class JoinSortMerge extends HgPolyTupleStream {
+
+    private final HgRelation relation;
+    private final boolean descending;
+    private final boolean strict;
+    private final int aSlot, bSlot;
+
+    private Iterator<Map.Entry<Object, Set<Object>>> aEntries;
+    private Iterator<Map.Entry<Object, Set<Object>>> bEntries;
+    private Map.Entry<Object, Set<Object>> aPeek;
+
+    /*
+     * Rows of the buckets of A which match the current key of B, and
+     * rows of the bucket of B. Buckets are copied into these reused
+     * arrays with forEach, so that no iterator is created per bucket.
+     */
+    private Object[] aRows = new Object[16];
+    private int aCount, aIndex;
+    private Object[] bRows = new Object[16];
+    private int bCount, bIndex;
+    private Object currB;
+    private final Consumer<Object> collectA = a -> {
+        if (aCount == aRows.length) {
+            aRows = Arrays.copyOf(aRows, aCount * 2);
+        }
+        aRows[aCount++] = a;
+    };
+    private final Consumer<Object> collectB = b -> {
+        if (bCount == bRows.length) {
+            bRows = Arrays.copyOf(bRows, bCount * 2);
+        }
+        bRows[bCount++] = b;
+    };
+
+    public JoinSortMerge(JoinPredicate pred) {
+        super(pred);
+
+        if (!isCompatible(pred)) {
+            throw new IllegalArgumentException("Both inputs must have an ordered index and the relation must be EQ, LT, LE, GT or GE!");
+        }
+
+        relation = (HgRelation) pred.relation;
+        aSlot = slotOf(pred.streamA.getTableId());
+        bSlot = slotOf(pred.streamB.getTableId());
+        descending = relation == HgRelation.GT || relation == HgRelation.GE;
+        strict = relation == HgRelation.LT || relation == HgRelation.GT;
+        setup();
+    }
+
+    /**
+     * @param pred a join predicate
+     * @return true if both streams of pred have an ordered index in
+     * natural order and its relation can be merged
+     */
+    public static boolean isCompatible(JoinPredicate pred) {
+        HgRelation r = pred.relation instanceof HgRelation ? (HgRelation) pred.relation : null;
+        return (r == HgRelation.EQ || r == HgRelation.LT || r == HgRelation.LE
+                || r == HgRelation.GT || r == HgRelation.GE)
+                && isNaturallyOrdered(pred.streamA.isIndexed(), pred.streamA.getIndex())
+                && isNaturallyOrdered(pred.streamB.isIndexed(), pred.streamB.getIndex());
+    }
+
+    private static boolean isNaturallyOrdered(boolean indexed, Map<Object, Set<Object>> index) {
+        return indexed && index instanceof NavigableMap
+                && ((NavigableMap<Object, Set<Object>>) index).comparator() == null;
+    }
+
+    private static Iterator<Map.Entry<Object, Set<Object>>> entries(Map<Object, Set<Object>> index, boolean descending) {
+        NavigableMap<Object, Set<Object>> map = (NavigableMap<Object, Set<Object>>) index;
+        return (descending ? map.descendingMap() : map).entrySet().iterator();
+    }
+
+    private void setup() {
+        aEntries = entries(_predicate.streamA.getIndex(), descending);
+        bEntries = entries(_predicate.streamB.getIndex(), descending);
+        aPeek = nextA();
+        Arrays.fill(aRows, 0, aCount, null);
+        Arrays.fill(bRows, 0, bCount, null);
+        aCount = aIndex = bCount = bIndex = 0;
+        currB = null;
+    }
+
+    private Map.Entry<Object, Set<Object>> nextA() {
+        while (aEntries.hasNext()) {
+            Map.Entry<Object, Set<Object>> e = aEntries.next();
+            if (!e.getValue().isEmpty()) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares in the direction of the walk.
+     */
+    @SuppressWarnings("unchecked") // keys of an ordered index are Comparable
+    private int compare(Object a, Object b) {
+        int c = ((Comparable<Object>) a).compareTo(b);
+        return descending ? -c : c;
+    }
+
+    /**
+     * Moves to the next key of B which has matching keys in A.
+     *
+     * @return false if no such key is left
+     */
+    private boolean advanceKey() {
+        while (bEntries.hasNext()) {
+            Map.Entry<Object, Set<Object>> b = bEntries.next();
+            if (b.getValue().isEmpty()) {
+                continue;
+            }
+
+            Object bKey = b.getKey();
+            if (relation == HgRelation.EQ) {
+                aCount = 0;
+                while (aPeek != null && compare(aPeek.getKey(), bKey) < 0) {
+                    aPeek = nextA();
+                }
+
+                if (aPeek == null) {
+                    return false;
+                } else if (compare(aPeek.getKey(), bKey) == 0) {
+                    aPeek.getValue().forEach(collectA);
+                    aPeek = nextA();
+                }
+            } else {
+                while (aPeek != null) {
+                    int c = compare(aPeek.getKey(), bKey);
+                    if (c > 0 || (strict && c == 0)) {
+                        break;
+                    }
+                    aPeek.getValue().forEach(collectA);
+                    aPeek = nextA();
+                }
+            }
+
+            if (aCount > 0) {
+                bCount = bIndex = 0;
+                b.getValue().forEach(collectB);
+                currB = null;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (true) {
+            if (currB != null && aIndex < aCount) {
+                return true;
+            } else if (bIndex < bCount) {
+                currB = bRows[bIndex++];
+                aIndex = 0;
+            } else if (!advanceKey()) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public HgTuple next() {
+        return tuple(aSlot, aRows[aIndex++], bSlot, currB);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        setup();
+    }
+}
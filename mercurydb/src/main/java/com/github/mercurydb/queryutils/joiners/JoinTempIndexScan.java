@@ -1,33 +1,66 @@
 package com.github.mercurydb.queryutils.joiners;
 
+import com.github.mercurydb.queryutils.HgCompactSet;
+import com.github.mercurydb.queryutils.HgIndexStatistics;
 import com.github.mercurydb.queryutils.HgRelation;
+import com.github.mercurydb.queryutils.HgTupleBatch;
 import com.github.mercurydb.queryutils.HgTupleStream;
 import com.github.mercurydb.queryutils.HgWrappedTupleStream;
 import com.github.mercurydb.queryutils.JoinPredicate;
+import com.github.mercurydb.queryutils.PrimitiveValueExtractable;
+import com.github.mercurydb.queryutils.TableID;
+import com.github.mercurydb.queryutils.ValueExtractable;
+import com.github.mercurydb.queryutils.indexes.PrimitiveHashIndex;
+import com.github.mercurydb.queryutils.indexes.PrimitiveIndex;
 
 import java.util.*;
 
+/**
+ * Joins two streams, neither of which is indexed, by building a
+ * temporary index over the smaller one and scanning the other.
+ * The sizes come from {@link HgTupleStream#getExactSizeIfKnown()}
+ * where possible. Otherwise the streams are counted in lockstep
+ * until the smaller one runs out, which costs at most twice the
+ * size of the smaller stream.
+ */
 public class JoinTempIndexScan extends JoinIndexScan {
+    private final HgTupleStream buildStream;
+    private final boolean swapped;
+    private final TableID<?>[] buildIds;
+    private final int[] buildColumns;
+
     private static JoinPredicate createIndexedPredicate(JoinPredicate predicate) {
+        HgTupleStream a = predicate.streamA;
+        ValueExtractable aFE = a.getFieldExtractor();
         final Map<Object, Set<Object>> aMap;
 
-        if (predicate.relation == HgRelation.EQ || predicate.relation == HgRelation.NE) {
-            aMap = new HashMap<>();
+        if (predicate.relation == HgRelation.EQ && aFE instanceof PrimitiveValueExtractable) {
+            // int, long and double keys are not boxed, and the scan probes the index with B's keys
+            aMap = buildPrimitiveIndex(a, (PrimitiveValueExtractable) aFE);
         } else {
-            aMap = new TreeMap<>();
-        }
+            if (predicate.relation == HgRelation.EQ || predicate.relation == HgRelation.NE) {
+                aMap = new HashMap<>();
+            } else {
+                aMap = new TreeMap<>();
+            }
 
-        // Inhale stream A into hash table
-        for (HgTupleStream.HgTuple aInstance : predicate.streamA) {
-            Object key = aInstance.extractJoinedField();
+            // Inhale stream A into hash table, a batch at a time
+            a.reset();
+            HgTupleBatch batch = a.newBatch();
+            Object[] keyRows = batch.column(aFE.getTableId());
+            while (a.nextBatch(batch)) {
+                for (int row = 0; row < batch.size(); ++row) {
+                    Object key = a.extractValue(keyRows[row]);
 
-            Set<Object> l = aMap.get(key);
-            if (l == null) {
-                l = new HashSet<>();
-            }
+                    Set<Object> l = aMap.get(key);
+                    if (l == null) {
+                        l = new HgCompactSet<>();
+                        aMap.put(key, l);
+                    }
 
-            l.add(aInstance);
-            aMap.put(key, l);
+                    l.add(batch.tuple(row));
+                }
+            }
         }
 
         HgTupleStream aIndexed = new HgWrappedTupleStream(predicate.streamA) {
@@ -40,17 +73,124 @@ public class JoinTempIndexScan extends JoinIndexScan {
             public Map<Object, Set<Object>> getIndex() {
                 return aMap;
             }
+
+            @Override
+            public HgIndexStatistics getStatistics() {
+                return null;
+            }
         };
 
         return new JoinPredicate(aIndexed, predicate.streamB, predicate.relation);
     }
 
+    private static PrimitiveIndex<Object> buildPrimitiveIndex(HgTupleStream a, PrimitiveValueExtractable aKey) {
+        PrimitiveIndex<Object> index = new PrimitiveHashIndex<>(aKey.getKeyType());
+
+        a.reset();
+        HgTupleBatch batch = a.newBatch();
+        Object[] keyRows = batch.column(aKey.getTableId());
+        while (a.nextBatch(batch)) {
+            for (int row = 0; row < batch.size(); ++row) {
+                long key = aKey.extractKey(keyRows[row]);
+
+                Set<Object> l = index.getKey(key);
+                if (l == null) {
+                    l = new HgCompactSet<>();
+                    index.putKey(key, l);
+                }
+
+                l.add(batch.tuple(row));
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * @return true if the temporary index should be built on streamB
+     */
+    private static boolean shouldSwap(JoinPredicate predicate) {
+        HgTupleStream a = predicate.streamA, b = predicate.streamB;
+        if (!(predicate.relation instanceof HgRelation) || a == b) {
+            return false;
+        }
+
+        long aSize = a.getExactSizeIfKnown();
+        long bSize = b.getExactSizeIfKnown();
+
+        if (aSize >= 0 && bSize >= 0) {
+            return bSize < aSize;
+        } else if (aSize >= 0) {
+            return count(b, aSize) < aSize;
+        } else if (bSize >= 0) {
+            return count(a, bSize + 1) > bSize;
+        }
+
+        // count both in lockstep until one runs out
+        a.reset();
+        b.reset();
+        while (true) {
+            // hasNext() may advance filtered streams, so only call it once per tuple
+            boolean aHasNext = a.hasNext();
+            boolean bHasNext = b.hasNext();
+            if (!aHasNext || !bHasNext) {
+                return aHasNext;
+            }
+            a.next();
+            b.next();
+        }
+    }
+
+    /**
+     * Counts the tuples in stream, but stops at limit.
+     */
+    private static long count(HgTupleStream stream, long limit) {
+        stream.reset();
+        long count = 0;
+        while (count < limit && stream.hasNext()) {
+            stream.next();
+            ++count;
+        }
+        return count;
+    }
+
     public JoinTempIndexScan(JoinPredicate pred) {
-        super(createIndexedPredicate(pred));
+        this(pred, shouldSwap(pred));
+    }
+
+    private JoinTempIndexScan(JoinPredicate pred, boolean swapped) {
+        super(createIndexedPredicate(swapped ? pred.swapLhsAndRhs() : pred));
+        this.swapped = swapped;
+        this.buildStream = swapped ? pred.streamB : pred.streamA;
+
+        Set<TableID<?>> ids = buildStream.getContainedIds();
+        this.buildIds = ids.toArray(new TableID<?>[ids.size()]);
+        this.buildColumns = new int[buildIds.length];
+        for (int i = 0; i < buildIds.length; ++i) {
+            buildColumns[i] = slotOf(buildIds[i]);
+        }
+    }
+
+    /**
+     * @return the stream which the temporary index was built on
+     */
+    public HgTupleStream getBuildStream() {
+        return buildStream;
+    }
+
+    /**
+     * @return true if the temporary index was built on the right hand
+     * side (streamB) of the given predicate
+     */
+    public boolean isSwapped() {
+        return swapped;
     }
 
     @Override
-    public HgTuple next() {
-        return new HgTuple((HgTuple) aInstances.next(), currB);
+    protected void putA(HgTupleBatch out, int row, Object aInstance) {
+        HgTuple a = (HgTuple) aInstance;
+        for (int i = 0; i < buildIds.length; ++i) {
+            out.column(buildColumns[i])[row] = a.get(buildIds[i]);
+        }
     }
 }
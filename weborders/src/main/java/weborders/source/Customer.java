@@ -4,6 +4,7 @@
  */
 package weborders.source;
 
+import com.github.mercurydb.annotations.HgCompositeIndex;
 import com.github.mercurydb.annotations.HgIndexStyle;
 import com.github.mercurydb.annotations.HgUpdate;
 import com.github.mercurydb.annotations.HgValue;
@@ -11,6 +12,7 @@ import com.github.mercurydb.annotations.HgValue;
 /**
  * @author dsb
  */
+@HgCompositeIndex({"cname", "street"})
 @SuppressWarnings("unused")
 public class Customer extends Common {
     private int cno;
@@ -4,6 +4,7 @@
  */
 package weborders.source;
 
+import com.github.mercurydb.annotations.HgCompositeIndex;
 import com.github.mercurydb.annotations.HgIndexStyle;
 import com.github.mercurydb.annotations.HgUpdate;
 import com.github.mercurydb.annotations.HgValue;
@@ -14,6 +15,7 @@ import java.util.List;
 /**
  * @author dsb
  */
+@HgCompositeIndex(value = {"ono", "qty"}, index = HgIndexStyle.ORDERED)
 @SuppressWarnings("unused")
 public class Odetail extends Common {
     private int ono;
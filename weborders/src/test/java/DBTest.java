@@ -1,20 +1,41 @@
 import com.github.mercurydb.queryutils.*;
 import com.google.common.collect.Lists;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import com.github.mercurydb.queryutils.HgTupleStream.HgTuple;
 import com.github.mercurydb.queryutils.joiners.JoinNestedLoops;
+import com.github.mercurydb.queryutils.joiners.JoinSortMerge;
+import com.github.mercurydb.queryutils.joiners.JoinTempIndexScan;
+import weborders.db.CommonTable;
+import weborders.db.CustomerTable;
 import weborders.db.OdetailTable;
 import weborders.db.OrderTable;
 import weborders.db.PartTable;
 import weborders.db.ZipcodeTable;
 import weborders.source.*;
 
+import java.lang.ref.ReferenceQueue;
 import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.fail;
 
@@ -68,6 +89,192 @@ public class DBTest {
                 o -> o.getOno() == 1020);
     }
 
+    @Test
+    public void testRemove() {
+        Order viaSuper = new Order(1993, customers[0], emps[0], "", "");
+        Order viaTable = new Order(1994, customers[0], emps[0], "", "");
+
+        // dispatches to OrderTable, which removes from CommonTable in turn
+        CommonTable.remove(viaSuper);
+        OrderTable.removeFromTable(viaTable);
+
+        for (Order order : new Order[]{viaSuper, viaTable}) {
+            if (count(HgDB.query(OrderTable.eq.ono(order.getOno()))) != 0) fail();
+            if (orderCount(o -> o == order) != 0) fail();
+            for (Common common : CommonTable.stream()) {
+                if (common == order) fail();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAliases() throws Exception {
+        int threads = 4, aliases = 10000;
+        List<Callable<List<Long>>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            tasks.add(() -> {
+                List<Long> ids = new ArrayList<>();
+                for (int i = 0; i < aliases; ++i) {
+                    ids.add(OrderTable.createAlias().id);
+                }
+                return ids;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Set<Long> ids = new HashSet<>();
+            for (Future<List<Long>> result : executor.invokeAll(tasks)) {
+                ids.addAll(result.get());
+            }
+            if (ids.size() != threads * aliases || ids.contains(OrderTable.ID.id)) fail();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        // only concurrent and snapshot tables keep their indexes in concurrent maps
+        Assume.assumeTrue(OrderTable.value.ono(OrderTable.ID).getIndex() instanceof ConcurrentMap);
+
+        int writers = 4, readers = 2, rows = 500, first = 100000, moved = 50000;
+        Order[][] orders = new Order[writers][rows];
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (int w = 0; w < writers; ++w) {
+            Order[] mine = orders[w];
+            int base = first + w * rows;
+            tasks.add(() -> {
+                for (int i = 0; i < rows; ++i) {
+                    mine[i] = new Order(base + i, customers[i % customers.length], emps[0], "", "");
+                }
+                for (int i = 0; i < rows; ++i) {
+                    mine[i].setOno(base + i + moved);
+                }
+                for (int i = 0; i < rows; i += 2) {
+                    OrderTable.remove(mine[i]);
+                }
+                return null;
+            });
+        }
+        for (int r = 0; r < readers; ++r) {
+            tasks.add(() -> {
+                while (writing.get()) {
+                    for (Order o : HgDB.query(OrderTable.ge.ono(first))) {
+                        if (o.getOno() < first) fail();
+                    }
+                    count(HgDB.join(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono())));
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (Callable<Void> task : tasks) {
+                results.add(executor.submit(task));
+            }
+            for (int w = 0; w < writers; ++w) {
+                results.get(w).get();
+            }
+            writing.set(false);
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            writing.set(false);
+            executor.shutdown();
+        }
+
+        try {
+            for (int w = 0; w < writers; ++w) {
+                for (int i = 0; i < rows; ++i) {
+                    Order order = orders[w][i];
+                    int ono = first + w * rows + i;
+                    boolean kept = i % 2 == 1;
+                    if (count(HgDB.query(OrderTable.eq.ono(ono))) != 0) fail();
+                    List<Order> found = Lists.newArrayList((Iterable<Order>) HgDB.query(OrderTable.eq.ono(ono + moved)));
+                    if (!found.equals(kept ? Collections.singletonList(order) : Collections.<Order>emptyList())) fail();
+                }
+            }
+            if (orderCount(o -> o.getOno() >= first) != writers * rows / 2) fail();
+        } finally {
+            for (Order[] mine : orders) {
+                for (int i = 1; i < rows; i += 2) {
+                    OrderTable.remove(mine[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotReads() throws Exception {
+        // only snapshot tables keep versioned index buckets
+        Assume.assumeTrue(OrderTable.value.ono(OrderTable.ID).getIndex().values().stream()
+                .anyMatch(bucket -> bucket instanceof HgVersionedSet));
+
+        int moving = 20, from = 200001, to = 200002;
+        Order[] orders = new Order[moving];
+        for (int i = 0; i < moving; ++i) {
+            orders[i] = new Order(from, customers[0], emps[0], "", "");
+        }
+
+        // moves the orders back and forth between two onos, one at a time
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> writer = executor.submit(() -> {
+            while (writing.get()) {
+                for (Order order : orders) {
+                    order.setOno(order.getOno() == from ? to : from);
+                }
+                OrderTable.remove(new Order(to, customers[0], emps[0], "", ""));
+            }
+        });
+
+        TableID<Order> alias = OrderTable.createAlias();
+        try {
+            for (int pin = 0; pin < 20; ++pin) {
+                try (HgSnapshot snapshot = HgSnapshot.pin()) {
+                    List<Order> rows = Lists.newArrayList((Iterable<Order>) HgDB.query(OrderTable.ge.ono(from)));
+                    List<List<Object>> pairs = tupleRows(HgDB.join(
+                            OrderTable.on.ono(), OrderTable.as(alias).on.ono(), HgRelation.EQ), OrderTable.ID, alias);
+
+                    // every read of the snapshot sees the same rows
+                    for (int read = 0; read < 5; ++read) {
+                        if (!rows.equals(Lists.newArrayList((Iterable<Order>) HgDB.query(OrderTable.ge.ono(from))))) fail();
+                        if (!pairs.equals(tupleRows(HgDB.join(
+                                OrderTable.on.ono(), OrderTable.as(alias).on.ono(), HgRelation.EQ), OrderTable.ID, alias))) fail();
+                    }
+
+                    // in which every order is in exactly one bucket, whatever its ono is by now
+                    List<Order> all = Arrays.asList(orders);
+                    if (rows.stream().filter(all::contains).count() != moving || !rows.containsAll(all)) fail();
+                    Set<List<Object>> joined = new HashSet<>(pairs);
+                    for (Order a : orders) {
+                        if (!joined.contains(Arrays.asList(a, a))) fail();
+                        for (Order b : orders) {
+                            boolean ab = joined.contains(Arrays.asList(a, b));
+                            if (ab != joined.contains(Arrays.asList(b, a))) fail();
+                            for (Order c : orders) {
+                                if (ab && joined.contains(Arrays.asList(b, c)) && !joined.contains(Arrays.asList(a, c))) fail();
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            writing.set(false);
+            writer.get();
+            executor.shutdown();
+            for (Order order : orders) {
+                OrderTable.remove(order);
+            }
+        }
+    }
+
     @Test
     public void testQueryLt() {
         HgStream<Order> test = HgDB.query(OrderTable.lt.ono(1020));
@@ -126,6 +333,36 @@ public class DBTest {
                 p -> p.getPname().compareTo("L") < 0 && p.getPrice() <= 19.99);
     }
 
+    @Test
+    public void testQueryAfterUpdate() {
+        Order order = orders[0];
+        int ono = order.getOno();
+        order.setOno(2000);
+        try {
+            checkCorrectQueryResult(
+                    HgDB.query(OrderTable.eq.ono(2000)),
+                    OrderTable.stream(),
+                    o -> o.getOno() == 2000);
+            checkCorrectQueryResult(
+                    HgDB.query(OrderTable.eq.ono(ono)),
+                    OrderTable.stream(),
+                    o -> o.getOno() == ono);
+        } finally {
+            order.setOno(ono);
+        }
+    }
+
+    @Test
+    public void testParallelQuery() {
+        List<Odetail> test = HgDB.query(OdetailTable.ge.ono(1021), OdetailTable.lt.qty(5))
+                .parallel()
+                .collect(Collectors.toList());
+        checkCorrectQueryResult(
+                new HgRetrievalStream<>(test),
+                OdetailTable.stream(),
+                o -> o.getOno() >= 1021 && o.getQuantity() < 5);
+    }
+
     @Test
     public void testStreamConcat() {
         HgStream<Order> test = HgDB.query(OrderTable.eq.ono(1020))
@@ -191,6 +428,28 @@ public class DBTest {
         if (count != correctCount) fail();
     }
 
+    @Test
+    public void testSortMergeJoin() {
+        HgRelation[] relations = {HgRelation.EQ, HgRelation.LT, HgRelation.LE, HgRelation.GT, HgRelation.GE};
+        for (HgRelation relation : relations) {
+            HgTupleStream merge = HgDB.join(OrderTable.on.ono(), OdetailTable.on.ono(), relation);
+            if (!(merge instanceof JoinSortMerge)) fail();
+
+            long count = 0;
+            for (HgTuple t : merge) {
+                ++count;
+                if (!relation.test(t.get(OrderTable.ID).getOno(), t.get(OdetailTable.ID).getOno())) fail();
+            }
+
+            long expected = 0;
+            for (HgTuple t : HgDB.join(OrderTable.on.ono(), noIndexStream(OdetailTable.on.ono()), relation)) {
+                ++expected;
+            }
+
+            if (count != expected) fail();
+        }
+    }
+
     @Test
     public void testNestedLoops() {
         long count = 0;
@@ -261,6 +520,38 @@ public class DBTest {
 
     }
 
+    @Test
+    public void testTempIndexBuildSide() {
+        long odetails = 0, orders = 0;
+        for (Odetail od : OdetailTable.stream()) {
+            if (od.getOno() == 1020) ++odetails;
+        }
+        for (Order o : OrderTable.stream()) {
+            if (o.getOno() == 1020) ++orders;
+        }
+
+        JoinTempIndexScan join = new JoinTempIndexScan(new JoinPredicate(
+                noIndexStream(OdetailTable.on.ono()),
+                HgDB.query(OrderTable.eq.ono(1020)).joinOn(OrderTable.value.ono(OrderTable.ID)),
+                HgRelation.GT));
+
+        // the filtered orders are the smaller side
+        if (!join.isSwapped()) fail();
+
+        for (HgTuple jr : join) {
+            if (jr.get(OdetailTable.ID).getOno() <= jr.get(OrderTable.ID).getOno()) fail();
+        }
+
+        long count = 0;
+        for (HgTuple jr : new JoinTempIndexScan(new JoinPredicate(
+                noIndexStream(OdetailTable.on.ono()),
+                HgDB.query(OrderTable.eq.ono(1020)).joinOn(OrderTable.value.ono(OrderTable.ID))))) {
+            if (jr.get(OdetailTable.ID).getOno() != 1020) fail();
+            ++count;
+        }
+        if (count != odetails * orders) fail();
+    }
+
     @Test
     public void testIndexScan3() {
         long count = 0;
@@ -481,6 +772,883 @@ public class DBTest {
         if (count == 0) fail();
     }
 
+    @Test
+    public void testJoinPlannerOrder() {
+        JoinPredicate[] preds = {
+                new JoinPredicate(PartTable.on.qoh(), ZipcodeTable.on.zip(), HgRelation.LT),
+                new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()),
+                new JoinPredicate(OdetailTable.on.qty(), PartTable.on.olevel(), HgRelation.LT)
+        };
+
+        // every predicate after the first must share a table with the ones before it
+        List<JoinPredicate> order = JoinPlanner.order(preds);
+        if (order.size() != preds.length) fail();
+        Set<TableID<?>> ids = new HashSet<>();
+        for (JoinPredicate p : order) {
+            if (!ids.isEmpty() && !ids.contains(p.streamA.getTableId())
+                    && !ids.contains(p.streamB.getTableId())) {
+                fail();
+            }
+            ids.add(p.streamA.getTableId());
+            ids.add(p.streamB.getTableId());
+        }
+
+        int count = 0;
+        for (HgTuple t : HgDB.join(preds)) {
+            ++count;
+            Order o = t.get(OrderTable.ID);
+            Odetail od = t.get(OdetailTable.ID);
+            Part p = t.get(PartTable.ID);
+            Zipcode z = t.get(ZipcodeTable.ID);
+
+            if (o.getOno() != od.getOno()
+                    || od.getQuantity() >= p.getOlevel()
+                    || p.getQoh() >= z.getZip()) {
+                fail();
+            }
+        }
+
+        if (count == 0) fail();
+    }
+
+    @Test
+    public void testStatistics() {
+        List<Order> rows = Lists.newArrayList((Iterable<Order>) OrderTable.stream());
+        if (OrderTable.ID.getStatistics().getRowCount() != rows.size()) fail();
+
+        HgIndexStatistics ono = OrderTable.on.ono().getStatistics();
+        if (ono == null || !ono.hasHistogram()) fail();
+        if (ono.getKeyCount() < 1 || ono.getKeyCount() > ono.getRowCount()) fail();
+
+        double none = ono.estimateSelectivity(HgRelation.LT, Integer.MIN_VALUE);
+        double some = ono.estimateSelectivity(HgRelation.LT, 1022);
+        double all = ono.estimateSelectivity(HgRelation.LE, Integer.MAX_VALUE);
+        if (none != 0 || all != 1 || some <= none || some >= all) fail();
+
+        if (OrderTable.on.ono().getStatistics().estimateCount(HgRelation.GT, Integer.MAX_VALUE) != 0) fail();
+    }
+
+    @Test
+    public void testQueryIndexIntersection() {
+        for (Customer c : customers) {
+            for (Customer d : customers) {
+                long expected = customerCount(x -> x.getName().equals(c.getName())
+                        && x.getStreet().equals(d.getStreet()));
+
+                HgStream<Customer> both = HgDB.query(
+                        CustomerTable.eq.cname(c.getName()),
+                        CustomerTable.eq.street(d.getStreet()));
+                if (Lists.newArrayList((Iterable<Customer>) both).size() != expected) fail();
+                if (both.parallel().count() != expected) fail();
+
+                expected = customerCount(x -> x.getName().equals(c.getName())
+                        && x.getStreet().compareTo(d.getStreet()) >= 0);
+
+                HgStream<Customer> range = HgDB.query(
+                        CustomerTable.eq.cname(c.getName()),
+                        CustomerTable.ge.street(d.getStreet()));
+                if (Lists.newArrayList((Iterable<Customer>) range).size() != expected) fail();
+            }
+        }
+
+        if (HgDB.query(CustomerTable.eq.cname("Nobody"), CustomerTable.eq.street(customers[0].getStreet())).hasNext()) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testRangeFusion() {
+        if (count(HgDB.query(OrderTable.ge.ono(1021), OrderTable.lt.ono(1023)))
+                != orderCount(o -> o.getOno() >= 1021 && o.getOno() < 1023)) fail();
+        if (count(HgDB.query(OrderTable.gt.ono(1020), OrderTable.ge.ono(1021), OrderTable.le.ono(1022)))
+                != orderCount(o -> o.getOno() > 1020 && o.getOno() <= 1022)) fail();
+        if (count(HgDB.query(OrderTable.eq.ono(1021), OrderTable.ge.ono(1020)))
+                != orderCount(o -> o.getOno() == 1021)) fail();
+
+        // empty ranges
+        if (HgDB.query(OrderTable.ge.ono(1022), OrderTable.lt.ono(1022)).hasNext()) fail();
+        if (HgDB.query(OrderTable.eq.ono(1021), OrderTable.gt.ono(1021)).hasNext()) fail();
+        if (HgDB.query(OrderTable.eq.ono(1020), OrderTable.eq.ono(1021)).hasNext()) fail();
+    }
+
+    @Test
+    public void testCompositeIndex() {
+        for (Odetail od : odetails) {
+            checkCorrectQueryResult(
+                    HgDB.query(OdetailTable.eq.qty(od.getQuantity()), OdetailTable.eq.ono(od.getOno())),
+                    OdetailTable.stream(),
+                    o -> o.getOno() == od.getOno() && o.getQuantity() == od.getQuantity());
+        }
+
+        TableID<Odetail> alias = OdetailTable.createAlias();
+        long expected = 0;
+        for (Odetail a : OdetailTable.stream()) {
+            for (Odetail b : OdetailTable.stream()) {
+                if (a.getOno() == b.getOno() && a.getQuantity() == b.getQuantity()) ++expected;
+            }
+        }
+
+        long count = 0;
+        for (HgTuple t : HgDB.join(
+                new JoinPredicate(OdetailTable.on.ono(), OdetailTable.as(alias).on.ono()),
+                new JoinPredicate(OdetailTable.as(alias).on.qty(), OdetailTable.on.qty()))) {
+            Odetail a = t.get(OdetailTable.ID), b = t.get(alias);
+            if (a.getOno() != b.getOno() || a.getQuantity() != b.getQuantity()) fail();
+            ++count;
+        }
+        if (count != expected) fail();
+
+        // the composite index follows updates of its values
+        Customer customer = customers[1];
+        String name = customer.getName();
+        customer.setName("Bertha");
+        try {
+            checkCorrectQueryResult(
+                    HgDB.query(CustomerTable.eq.cname("Bertha"), CustomerTable.eq.street(customer.getStreet())),
+                    CustomerTable.stream(),
+                    c -> c.getName().equals("Bertha") && c.getStreet().equals(customer.getStreet()));
+            checkCorrectQueryResult(
+                    HgDB.query(CustomerTable.eq.cname(name), CustomerTable.eq.street(customer.getStreet())),
+                    CustomerTable.stream(),
+                    c -> c.getName().equals(name) && c.getStreet().equals(customer.getStreet()));
+        } finally {
+            customer.setName(name);
+        }
+    }
+
+    @Test
+    public void testAggregation() {
+        ValueExtractableSeed<Odetail> ono = OdetailTable.value.ono(OdetailTable.ID);
+        ValueExtractableSeed<Odetail> qty = OdetailTable.value.qty(OdetailTable.ID);
+
+        for (boolean parallel : new boolean[]{false, true}) {
+            HgAggregation<Odetail> aggregation = HgAggregation.over(OdetailTable.stream()).groupBy(ono);
+            if (parallel) aggregation.parallel();
+
+            Map<Object, HgAggregateResult> perOrder = aggregation.aggregate(
+                    HgAggregate.count(), HgAggregate.sum(qty), HgAggregate.min(qty), HgAggregate.max(qty));
+            long rows = 0;
+            for (Map.Entry<Object, HgAggregateResult> e : perOrder.entrySet()) {
+                int key = (Integer) e.getKey();
+                List<Integer> qtys = OdetailTable.stream().toJavaStream(false)
+                        .filter(od -> od.getOno() == key)
+                        .map(Odetail::getQuantity)
+                        .collect(Collectors.toList());
+                HgAggregateResult r = e.getValue();
+                if (r.getLong(0) != qtys.size()) fail();
+                if (r.getLong(1) != qtys.stream().mapToLong(q -> q).sum()) fail();
+                if (!r.get(2).equals(Collections.min(qtys)) || !r.get(3).equals(Collections.max(qtys))) fail();
+                rows += r.getLong(0);
+            }
+            if (rows != odetails.length) fail();
+        }
+
+        HgAggregateResult all = HgAggregation.over(PartTable.stream())
+                .aggregateAll(HgAggregate.avg(PartTable.value.price(PartTable.ID)), HgAggregate.count());
+        double avg = PartTable.stream().toJavaStream(false).mapToDouble(Part::getPrice).average().getAsDouble();
+        if (Math.abs(all.getDouble(0) - avg) > 1e-9 || all.getLong(1) != parts.length) fail();
+
+        // index shortcuts
+        for (int o = 1020; o <= 1023; ++o) {
+            int key = o;
+            if (HgDB.count(OdetailTable.eq.ono(o)) != count(HgDB.query(OdetailTable.eq.ono(o)))) fail();
+            if (HgDB.count(OrderTable.ge.ono(o), OrderTable.lt.ono(1023)) != orderCount(x -> x.getOno() >= key && x.getOno() < 1023)) fail();
+        }
+        if (HgDB.count(OdetailTable.lt.qty(5)) != count(HgDB.query(OdetailTable.lt.qty(5)))) fail();
+
+        Set<Integer> onos = OrderTable.stream().toJavaStream(false).map(Order::getOno).collect(Collectors.toSet());
+        if (!HgDB.min(OrderTable.value.ono(OrderTable.ID)).equals(Collections.min(onos))) fail();
+        if (!HgDB.max(OrderTable.value.ono(OrderTable.ID)).equals(Collections.max(onos))) fail();
+        if (!HgDB.min(qty).equals(OdetailTable.stream().toJavaStream(false).map(Odetail::getQuantity).min(Integer::compare).get())) fail();
+
+        Map<Object, Long> perOno = HgDB.countBy(OrderTable.value.ono(OrderTable.ID));
+        for (Map.Entry<Object, Long> e : perOno.entrySet()) {
+            int key = (Integer) e.getKey();
+            if (e.getValue() != orderCount(x -> x.getOno() == key)) fail();
+        }
+
+        // tuples are aggregated per table of each value
+        Map<Object, HgAggregateResult> joined = HgAggregation.over(HgDB.join(OrderTable.on.ono(), OdetailTable.on.ono()))
+                .groupBy(OrderTable.value.ono(OrderTable.ID))
+                .aggregate(HgAggregate.count(), HgAggregate.sum(qty));
+        long tuples = 0;
+        for (HgAggregateResult r : joined.values()) {
+            tuples += r.getLong(0);
+        }
+        if (tuples != correctCount) fail();
+    }
+
+    @Test
+    public void testTopK() {
+        ValueExtractableSeed<Odetail> ono = OdetailTable.value.ono(OdetailTable.ID);
+        ValueExtractableSeed<Odetail> qty = OdetailTable.value.qty(OdetailTable.ID);
+        List<Odetail> all = Lists.newArrayList((Iterable<Odetail>) OdetailTable.stream());
+
+        // walks the ono index
+        checkTop(HgDB.top(HgOrder.desc(ono), 5), all, Comparator.comparing(Odetail::getOno).reversed(), ono, 5);
+        checkTop(HgDB.top(HgOrder.asc(ono), 7, OdetailTable.lt.qty(5)),
+                all.stream().filter(o -> o.getQuantity() < 5).collect(Collectors.toList()),
+                Comparator.comparing(Odetail::getOno), ono, 7);
+        checkTop(HgDB.orderBy(HgOrder.desc(ono), OdetailTable.ge.ono(1021), OdetailTable.lt.ono(1023)),
+                all.stream().filter(o -> o.getOno() >= 1021 && o.getOno() < 1023).collect(Collectors.toList()),
+                Comparator.comparing(Odetail::getOno).reversed(), ono, Integer.MAX_VALUE);
+
+        // bounded heap
+        checkTop(HgDB.top(HgOrder.asc(qty), 4, OdetailTable.eq.ono(1021)),
+                all.stream().filter(o -> o.getOno() == 1021).collect(Collectors.toList()),
+                Comparator.comparing(Odetail::getQuantity), qty, 4);
+        checkTop(OdetailTable.stream().sorted(HgOrder.desc(qty)),
+                all, Comparator.comparing(Odetail::getQuantity).reversed(), qty, Integer.MAX_VALUE);
+
+        List<Integer> joined = new ArrayList<>();
+        for (HgTuple t : HgDB.join(OrderTable.on.ono(), OdetailTable.on.ono()).top(HgOrder.desc(qty), 3)) {
+            joined.add(t.get(OdetailTable.ID).getQuantity());
+        }
+        List<Integer> expected = all.stream().map(Odetail::getQuantity).sorted(Comparator.reverseOrder())
+                .limit(3).collect(Collectors.toList());
+        if (correctCount >= 3 && joined.size() != 3) fail();
+        for (int i = 0; i < joined.size(); ++i) {
+            if (joined.get(i) > expected.get(0) || (i > 0 && joined.get(i) > joined.get(i - 1))) fail();
+        }
+
+        if (count(OrderTable.stream().limit(3)) != Math.min(3, orders.length)) fail();
+        if (HgDB.top(HgOrder.asc(ono), 0).hasNext()) fail();
+    }
+
+    @Test
+    public void testTupleBatches() {
+        TableID<?>[] ids = {OrderTable.ID, OdetailTable.ID};
+        checkBatches(HgDB.join(OrderTable.on.ono(), noIndexStream(OdetailTable.on.ono())), ids);
+        checkBatches(HgDB.join(
+                noIndexStream(OrderTable.on.ono()),
+                noIndexStream(OdetailTable.on.ono()),
+                HgRelation.LT), ids);
+        checkBatches(HgDB.join(
+                new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()),
+                new JoinPredicate(OdetailTable.on.qty(), ZipcodeTable.on.zip(), HgRelation.LT)),
+                OrderTable.ID, OdetailTable.ID, ZipcodeTable.ID);
+
+        HgTupleStream joined = HgDB.join(OrderTable.on.ono(), noIndexStream(OdetailTable.on.ono()));
+        checkBatches(HgDB.join(new JoinPredicate(
+                joined.joinOn(OrderTable.value.ono(OrderTable.ID)),
+                OdetailTable.on.ono())), ids);
+
+        // a filter whose batches list the tables in another order than its tuples
+        HgTupleStream details = HgDB.join(OdetailTable.on.ono(), OrderTable.on.ono());
+        HgTupleStream filtered = HgDB.join(new JoinPredicate(
+                details.joinOn(OdetailTable.value.ono(OdetailTable.ID)),
+                OrderTable.on.ono()));
+        int count = 0;
+        for (HgTuple t : filtered) {
+            if (!(t.get(OrderTable.ID) instanceof Order) || !(t.get(OdetailTable.ID) instanceof Odetail)) fail();
+            ++count;
+        }
+        if (count != count(HgDB.join(OrderTable.on.ono(), OdetailTable.on.ono()))) fail();
+        checkBatches(filtered, ids);
+
+        // a batch after some tuples continues where the tuples stopped
+        HgTupleStream stream = HgDB.join(OrderTable.on.ono(), noIndexStream(OdetailTable.on.ono()));
+        List<List<Object>> expected = tupleRows(stream, ids);
+        List<List<Object>> mixed = new ArrayList<>();
+        stream.reset();
+        for (int i = 0; i < 3 && stream.hasNext(); ++i) {
+            HgTuple t = stream.next();
+            mixed.add(Arrays.asList(t.get(OrderTable.ID), t.get(OdetailTable.ID)));
+        }
+        mixed.addAll(batchRows(stream, ids));
+        if (!mixed.equals(expected)) fail();
+    }
+
+    @Test
+    public void testTupleSlots() {
+        HgTupleStream stream = new JoinNestedLoops(new JoinPredicate(
+                HgDB.query(OrderTable.eq.ono(1020)).joinOn(OrderTable.value.ono(OrderTable.ID)),
+                noIndexStream(OdetailTable.on.ono())));
+        HgTupleStream.Slot<Order> order = stream.slot(OrderTable.ID);
+        HgTupleStream.Slot<Odetail> odetail = stream.slot(OdetailTable.ID);
+        if (stream.getSlotCount() != 2 || stream.slotOf(ZipcodeTable.ID) != -1) fail();
+
+        long count = 0;
+        for (HgTuple t : stream) {
+            if (order.get(t) != t.get(OrderTable.ID) || odetail.get(t) != t.get(OdetailTable.ID)) fail();
+            if (order.get(t).getOno() != odetail.get(t).getOno()) fail();
+            ++count;
+        }
+        if (count == 0) fail();
+
+        try {
+            stream.slot(ZipcodeTable.ID);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        Set<TableID<?>> ids = new HashSet<>(stream.getContainedIds());
+        if (!ids.contains(OrderTable.ID) || ids.contains(TableID.createAlias())) fail();
+    }
+
+    @Test
+    public void testTupleReuse() {
+        TableID<?>[] ids = {OrderTable.ID, OdetailTable.ID};
+        List<List<Object>> expected = tupleRows(new JoinSortMerge(new JoinPredicate(
+                OrderTable.on.ono(), OdetailTable.on.ono())), ids);
+
+        HgTupleStream[] streams = {
+                new JoinSortMerge(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono())),
+                HgDB.join(OrderTable.on.ono(), noIndexStream(OdetailTable.on.ono())),
+                new JoinNestedLoops(new JoinPredicate(
+                        OrderTable.on.ono().reuseTuples(), noIndexStream(OdetailTable.on.ono()).reuseTuples()))
+        };
+        for (HgTupleStream stream : streams) {
+            if (stream.reuseTuples() != stream || !stream.isReusingTuples()) fail();
+
+            // the same tuple is overwritten, copies are kept
+            List<HgTuple> copies = new ArrayList<>();
+            HgTuple last = null;
+            for (HgTuple t : stream) {
+                if (!t.isReused() || (last != null && t != last)) fail();
+                last = t;
+                HgTuple copy = t.copy();
+                if (copy.isReused() || copy.get(OrderTable.ID) != t.get(OrderTable.ID)) fail();
+                copies.add(copy);
+            }
+
+            List<List<Object>> rows = new ArrayList<>();
+            for (HgTuple t : copies) {
+                rows.add(Arrays.asList(t.get(OrderTable.ID), t.get(OdetailTable.ID)));
+            }
+            if (!new HashSet<>(rows).equals(new HashSet<>(expected)) || rows.size() != expected.size()) fail();
+        }
+
+        // top keeps copies of reused tuples
+        ValueExtractableSeed<Odetail> qty = OdetailTable.value.qty(OdetailTable.ID);
+        List<Integer> reusedTop = new ArrayList<>();
+        for (HgTuple t : new JoinSortMerge(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()))
+                .reuseTuples().top(HgOrder.desc(qty), 5)) {
+            if (t.isReused()) fail();
+            reusedTop.add(t.get(OdetailTable.ID).getQuantity());
+        }
+        List<Integer> top = new ArrayList<>();
+        for (HgTuple t : new JoinSortMerge(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()))
+                .top(HgOrder.desc(qty), 5)) {
+            top.add(t.get(OdetailTable.ID).getQuantity());
+        }
+        if (!reusedTop.equals(top)) fail();
+    }
+
+    @Test
+    public void testTypedRelations() {
+        HgRelation[] relations = {HgRelation.EQ, HgRelation.NE, HgRelation.LT, HgRelation.LE, HgRelation.GT, HgRelation.GE};
+        List<AbstractValueExtractablePredicate<?, ?>> typed = Arrays.asList(
+                OdetailTable.eq.qty(5), PartTable.lt.price(24.99), CustomerTable.ge.cname("Bertram"));
+        for (AbstractValueExtractablePredicate<?, ?> pred : typed) {
+            if (!(pred instanceof TypedValueRelation)) fail();
+        }
+        if (CustomerTable.eq.cname(null) instanceof TypedValueRelation) fail();
+
+        // typed filters give the results of the boxed relations
+        List<Function<Integer, ValueExtractableRelation<Odetail, Integer>>> qty = Arrays.asList(
+                OdetailTable.eq::qty, OdetailTable.ne::qty, OdetailTable.lt::qty,
+                OdetailTable.le::qty, OdetailTable.gt::qty, OdetailTable.ge::qty);
+        List<Function<Double, ValueExtractableRelation<Part, Double>>> price = Arrays.asList(
+                PartTable.eq::price, PartTable.ne::price, PartTable.lt::price,
+                PartTable.le::price, PartTable.gt::price, PartTable.ge::price);
+        List<Function<String, ValueExtractableRelation<Customer, String>>> cname = Arrays.asList(
+                CustomerTable.eq::cname, CustomerTable.ne::cname, CustomerTable.lt::cname,
+                CustomerTable.le::cname, CustomerTable.gt::cname, CustomerTable.ge::cname);
+        for (int i = 0; i < relations.length; ++i) {
+            HgRelation relation = relations[i];
+            checkCorrectQueryResult(
+                    OdetailTable.stream().filter(qty.get(i).apply(5)),
+                    OdetailTable.stream(),
+                    o -> relation.test(o.getQuantity(), 5));
+            checkCorrectQueryResult(
+                    PartTable.stream().filter(price.get(i).apply(19.99)),
+                    PartTable.stream(),
+                    p -> relation.test(p.getPrice(), 19.99));
+            checkCorrectQueryResult(
+                    CustomerTable.stream().filter(cname.get(i).apply("Bertram")),
+                    CustomerTable.stream(),
+                    c -> relation.test(c.getName(), "Bertram"));
+            for (Odetail o : odetails) {
+                if (relation.testKeys(o.getQuantity(), 5) != relation.test(o.getQuantity(), 5)) fail();
+            }
+        }
+
+        // joins of primitive values compare and index encoded keys
+        for (HgRelation relation : relations) {
+            HgTupleStream joined = HgDB.join(OrderTable.on.ono(), noIndexStream(OdetailTable.on.ono()));
+            long count = 0;
+            for (HgTuple t : HgDB.join(new JoinPredicate(
+                    joined.joinOn(OdetailTable.value.qty(OdetailTable.ID)), OrderTable.on.ono(), relation))) {
+                if (!relation.test(t.get(OdetailTable.ID).getQuantity(), t.get(OrderTable.ID).getOno())) fail();
+                ++count;
+            }
+            long expected = 0;
+            for (HgTuple t : HgDB.join(OrderTable.on.ono(), noIndexStream(OdetailTable.on.ono()))) {
+                if (relation.test(t.get(OdetailTable.ID).getQuantity(), t.get(OrderTable.ID).getOno())) ++expected;
+            }
+            if (count != expected) fail();
+        }
+
+        HgTupleStream temp = new JoinTempIndexScan(new JoinPredicate(
+                noIndexStream(OrderTable.on.ono()), noIndexStream(OdetailTable.on.ono())));
+        long count = 0;
+        for (HgTuple t : temp) {
+            if (t.get(OrderTable.ID).getOno() != t.get(OdetailTable.ID).getOno()) fail();
+            ++count;
+        }
+        if (count != correctCount) fail();
+    }
+
+    @Test
+    public void testCompiledFilter() {
+        checkCorrectQueryResult(
+                HgDB.queryCompiled(OdetailTable.ge.ono(1021), OdetailTable.lt.qty(5)),
+                OdetailTable.stream(),
+                o -> o.getOno() >= 1021 && o.getQuantity() < 5);
+        checkCorrectQueryResult(
+                HgDB.queryCompiled(PartTable.lt.pname("L"), PartTable.le.price(19.99), PartTable.predicates.qoh(q -> q > 100)),
+                PartTable.stream(),
+                p -> p.getPname().compareTo("L") < 0 && p.getPrice() <= 19.99 && p.getQoh() > 100);
+        checkCorrectQueryResult(
+                HgDB.queryCompiled(OrderTable.eq.ono(1020)),
+                OrderTable.stream(),
+                o -> o.getOno() == 1020);
+
+        // one class per shape, whatever the values
+        HgCompiledFilter<Odetail> a = HgCompiledFilter.compile(OdetailTable.lt.qty(5), OdetailTable.ne.ono(1020));
+        HgCompiledFilter<Odetail> b = HgCompiledFilter.compile(OdetailTable.lt.qty(2), OdetailTable.ne.ono(1021));
+        HgCompiledFilter<Odetail> c = HgCompiledFilter.compile(OdetailTable.ne.ono(1020), OdetailTable.lt.qty(5));
+        if (!a.isCompiled() || a.getClass() != b.getClass()) fail();
+        if (HgCompiledFilter.getShapeCount() > HgCompiledFilter.MAX_SHAPES) fail();
+
+        // a compiled stream may be reset, and filters any stream
+        HgStream<Odetail> stream = a.filter(OdetailTable.stream());
+        List<Odetail> first = Lists.newArrayList((Iterable<Odetail>) stream);
+        stream.reset();
+        if (first.isEmpty() || !Lists.newArrayList((Iterator<Odetail>) stream).equals(first)) fail();
+        checkCorrectQueryResult(
+                c.filter(OdetailTable.stream().filter(OdetailTable.ge.qty(2))),
+                OdetailTable.stream(),
+                o -> o.getQuantity() >= 2 && o.getQuantity() < 5 && o.getOno() != 1020);
+        if (a.filter(OdetailTable.stream()).parallel().count() != first.size()) fail();
+    }
+
+    @Test
+    public void testPreparedQuery() {
+        HgPreparedQuery<Odetail> q = HgDB.prepare(
+                HgParameter.of(OdetailTable.ge.ono(1020)),
+                HgParameter.of(OdetailTable.lt.qty(5)),
+                OdetailTable.ne.ono(1022));
+        if (q.getParameterCount() != 2) fail();
+        for (int ono = 1019; ono <= 1024; ++ono) {
+            for (int qty = 0; qty <= 10; qty += 3) {
+                int o = ono, n = qty;
+                checkCorrectQueryResult(
+                        q.execute(ono, qty),
+                        OdetailTable.stream(),
+                        d -> d.getOno() >= o && d.getQuantity() < n && d.getOno() != 1022);
+            }
+        }
+        if (q.getPlanCount() != 1) fail();
+        q.replan();
+        q.execute(1021, 5);
+        if (q.getPlanCount() != 2) fail();
+
+        try {
+            q.execute(1021);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // bounds which can not both hold, and a string parameter
+        HgPreparedQuery<Order> range = HgDB.prepare(
+                HgParameter.of(OrderTable.ge.ono(1020)), HgParameter.of(OrderTable.lt.ono(1022)));
+        if (range.execute(1023, 1021).hasNext()) fail();
+        checkCorrectQueryResult(range.execute(1021, 1023), OrderTable.stream(), o -> o.getOno() >= 1021 && o.getOno() < 1023);
+
+        // sample bounds which can not both hold still plan an index range
+        int[] tested = new int[1];
+        HgPreparedQuery<Order> empty = HgDB.prepare(
+                HgParameter.of(OrderTable.ge.ono(1022)), HgParameter.of(OrderTable.lt.ono(1020)),
+                OrderTable.predicate(o -> ++tested[0] > 0));
+        for (int i = 0; i < 3; ++i) {
+            tested[0] = 0;
+            checkCorrectQueryResult(empty.execute(1021, 1023), OrderTable.stream(), o -> o.getOno() >= 1021 && o.getOno() < 1023);
+            if (tested[0] != orderCount(o -> o.getOno() >= 1021 && o.getOno() < 1023)) fail();
+        }
+        if (empty.getPlanCount() != 1) fail();
+        HgPreparedQuery<Part> parts = HgDB.prepare(HgParameter.of(PartTable.lt.pname("L")), PartTable.le.price(19.99));
+        checkCorrectQueryResult(parts.execute("M"), PartTable.stream(), p -> p.getPname().compareTo("M") < 0 && p.getPrice() <= 19.99);
+
+        // a prepared join keeps its order and runs again
+        HgPreparedJoin join = HgDB.prepareJoin(
+                new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()),
+                new JoinPredicate(OdetailTable.on.qty(), ZipcodeTable.on.zip(), HgRelation.LT));
+        long expected = 0;
+        for (HgTuple t : HgDB.join(
+                new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()),
+                new JoinPredicate(OdetailTable.on.qty(), ZipcodeTable.on.zip(), HgRelation.LT))) {
+            ++expected;
+        }
+        for (int i = 0; i < 3; ++i) {
+            long count = 0;
+            for (HgTuple t : join.execute()) {
+                if (t.get(OrderTable.ID).getOno() != t.get(OdetailTable.ID).getOno()) fail();
+                ++count;
+            }
+            if (count != expected) fail();
+        }
+        if (join.getPlanCount() != 1 || join.getOrder().size() != 2) fail();
+    }
+
+    @Test
+    public void testQueryCache() {
+        HgDB.setQueryCacheSize(16);
+        try {
+            HgQueryCache cache = HgDB.getQueryCache();
+            HgPreparedQuery<Order> q = HgDB.prepare(HgParameter.of(OrderTable.eq.ono(1020)));
+            checkCorrectQueryResult(q.execute(1021), OrderTable.stream(), o -> o.getOno() == 1021);
+            checkCorrectQueryResult(q.execute(1021), OrderTable.stream(), o -> o.getOno() == 1021);
+            checkCorrectQueryResult(q.execute(1022), OrderTable.stream(), o -> o.getOno() == 1022);
+            if (cache.getHitCount() != 1 || cache.getMissCount() != 2 || cache.size() != 2) fail();
+
+            // an update changes the versions of the table and its superclass table
+            Order order = orders[0];
+            int ono = order.getOno();
+            long version = OrderTable.ID.getStatistics().getVersion();
+            long commonVersion = CommonTable.ID.getStatistics().getVersion();
+            order.setOno(1021);
+            try {
+                if (OrderTable.ID.getStatistics().getVersion() == version) fail();
+                if (CommonTable.ID.getStatistics().getVersion() == commonVersion) fail();
+                checkCorrectQueryResult(q.execute(1021), OrderTable.stream(), o -> o.getOno() == 1021);
+            } finally {
+                order.setOno(ono);
+            }
+            checkCorrectQueryResult(q.execute(1021), OrderTable.stream(), o -> o.getOno() == 1021);
+
+            // inserts and removes invalidate results as well
+            Order extra = new Order(1021, customers[0], emps[0], "", "");
+            try {
+                if (count(q.execute(1021)) != orderCount(o -> o.getOno() == 1021)) fail();
+            } finally {
+                OrderTable.remove(extra);
+            }
+            checkCorrectQueryResult(q.execute(1021), OrderTable.stream(), o -> o.getOno() == 1021);
+
+            // a cached join
+            HgPreparedJoin join = HgDB.prepareJoin(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()));
+            long expected = count(HgDB.join(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono())));
+            long hits = cache.getHitCount();
+            for (int i = 0; i < 3; ++i) {
+                long count = 0;
+                for (HgTuple t : join.execute()) {
+                    if (t.get(OrderTable.ID).getOno() != t.get(OdetailTable.ID).getOno()) fail();
+                    ++count;
+                }
+                if (count != expected) fail();
+            }
+            if (cache.getHitCount() != hits + 2) fail();
+        } finally {
+            HgDB.setQueryCacheSize(0);
+        }
+        if (HgDB.getQueryCache() != null) fail();
+    }
+
+    @Test
+    public void testJoinView() {
+        try (HgJoinView view = HgDB.materialize(
+                new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()),
+                new JoinPredicate(OdetailTable.on.qty(), ZipcodeTable.on.zip(), HgRelation.LT))) {
+            checkJoinView(view);
+
+            // updates, inserts and removes change only the affected tuples
+            Order order = orders[0];
+            int ono = order.getOno();
+            order.setOno(ono == 1020 ? 1021 : 1020);
+            try {
+                checkJoinView(view);
+            } finally {
+                order.setOno(ono);
+            }
+            checkJoinView(view);
+
+            Order extra = new Order(ono, customers[0], emps[0], "", "");
+            Odetail detail = new Odetail(extra, parts[0], 0);
+            try {
+                checkJoinView(view);
+                long count = 0;
+                for (HgTuple t : view.lookup(OdetailTable.ID, detail)) {
+                    if (t.get(OdetailTable.ID) != detail) fail();
+                    ++count;
+                }
+                if (count != count(HgDB.query(OrderTable.eq.ono(ono))) * count(HgDB.query(ZipcodeTable.gt.zip(0)))) fail();
+            } finally {
+                OdetailTable.remove(detail);
+                OrderTable.remove(extra);
+            }
+            checkJoinView(view);
+            if (view.lookup(OdetailTable.ID, detail).hasNext()) fail();
+        }
+    }
+
+    @Test
+    public void testSubscriptions() {
+        Recorder<Order> eq = new Recorder<>();
+        Recorder<Order> range = new Recorder<>();
+        Recorder<Order> other = new Recorder<>();
+        Recorder<Order> wide = new Recorder<>();
+        Recorder<HgTuple> joined = new Recorder<>();
+        try (HgSubscription<Order> s1 = HgDB.subscribe(eq, OrderTable.eq.ono(1999));
+             HgSubscription<Order> s2 = HgDB.subscribe(range, OrderTable.ge.ono(1990), OrderTable.lt.ono(2000));
+             HgSubscription<Order> s3 = HgDB.subscribe(other, OrderTable.ne.ono(0));
+             HgSubscription<Order> s4 = HgDB.subscribe(wide, OrderTable.ge.ono(1900), OrderTable.le.ono(2010));
+             HgSubscription<Order> s5 = HgDB.subscribe(new Recorder<>(), OrderTable.ge.ono(1996), OrderTable.lt.ono(1997));
+             HgJoinView view = HgDB.subscribe(joined, new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()))) {
+            Order order = new Order(1999, customers[0], emps[0], "", "");
+            Odetail detail = new Odetail(order, parts[0], 1);
+            try {
+                if (!eq.inserted.equals(Collections.singletonList(order))) fail();
+                if (!range.inserted.equals(Collections.singletonList(order))) fail();
+                if (joined.inserted.size() != 1 || joined.inserted.get(0).get(OdetailTable.ID) != detail) fail();
+
+                // leaves the equality, stays in the range
+                order.setOno(1995);
+                if (!eq.removed.equals(Collections.singletonList(order))) fail();
+                if (!range.updated.equals(Collections.singletonList(order)) || !range.removed.isEmpty()) fail();
+
+                // leaves the range
+                order.setOno(2005);
+                if (!range.removed.equals(Collections.singletonList(order))) fail();
+                if (other.updated.size() != 2 || !other.removed.isEmpty()) fail();
+                if (!wide.inserted.equals(Collections.singletonList(order)) || wide.updated.size() != 2) fail();
+                if (joined.removed.size() != 1) fail();
+            } finally {
+                OdetailTable.remove(detail);
+                OrderTable.remove(order);
+            }
+            if (!other.removed.equals(Collections.singletonList(order)) || eq.inserted.size() != 1) fail();
+            if (view.size() != count(HgDB.join(new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono())))) fail();
+
+            s1.close();
+            if (!s1.isClosed()) fail();
+            Order another = new Order(1999, customers[0], emps[0], "", "");
+            OrderTable.remove(another);
+            if (eq.inserted.size() != 1 || range.inserted.size() != 2) fail();
+        }
+
+        // the router of the table is unregistered and made again
+        Recorder<Order> again = new Recorder<>();
+        try (HgSubscription<Order> s = HgDB.subscribe(again, OrderTable.eq.ono(1999))) {
+            Order order = new Order(1999, customers[0], emps[0], "", "");
+            OrderTable.remove(order);
+            if (!again.inserted.equals(Collections.singletonList(order)) || eq.inserted.size() != 1) fail();
+        }
+    }
+
+    @Test
+    public void testWeakIdentitySet() throws InterruptedException {
+        ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        int[] collected = new int[1];
+        HgWeakIdentitySet<Object> set = new HgWeakIdentitySet<>(queue, rows -> ++collected[0]);
+
+        Object kept = new Object();
+        Object removed = new Object();
+        set.add(kept);
+        set.add(removed);
+        for (int i = 0; i < 100; ++i) {
+            set.add(new Object());
+        }
+        if (!set.remove(removed) || set.contains(removed) || !set.contains(kept)) fail();
+
+        // the unreachable elements are unlinked once their references are
+        // queued, which is up to the collector, so only the elements which
+        // were expunged are checked
+        for (int i = 0; i < 50 && set.size() > 1; ++i) {
+            System.gc();
+            Thread.sleep(10);
+            HgWeakIdentitySet.expunge(queue);
+        }
+        if (set.size() != 101 - collected[0] || !set.contains(kept)) fail();
+        int live = 0;
+        for (Object o : set) {
+            if (o == removed) fail();
+            ++live;
+        }
+        if (live > set.size()) fail();
+
+        Assume.assumeTrue("No element was collected", collected[0] > 0);
+        if (collected[0] == 100 && (live != 1 || set.iterator().next() != kept)) fail();
+    }
+
+    @Test
+    public void testCompactSet() {
+        HgCompactSet<Integer> set = new HgCompactSet<>();
+        Set<Integer> expected = new HashSet<>();
+
+        // grows through every representation and shrinks back
+        for (int i = 0; i < 3 * HgCompactSet.MAX_INLINE; ++i) {
+            if (!set.add(i) || set.add(i) || !expected.add(i)) fail();
+            if (!set.equals(expected) || !expected.equals(new HashSet<>(set)) || !set.contains(i)) fail();
+        }
+        for (int i = 3 * HgCompactSet.MAX_INLINE - 1; i > 0; --i) {
+            if (!set.remove(i) || set.remove(i) || !expected.remove(i)) fail();
+            if (!set.equals(expected) || !expected.equals(new HashSet<>(set)) || set.contains(i)) fail();
+        }
+        if (set.size() != 1 || !set.contains(0)) fail();
+
+        for (int i = 1; i < 4; ++i) {
+            set.add(i);
+        }
+        for (Iterator<Integer> it = set.iterator(); it.hasNext(); ) {
+            if (it.next() % 2 == 0) {
+                it.remove();
+            }
+        }
+        if (!set.equals(new HashSet<>(Arrays.asList(1, 3)))) fail();
+
+        List<Integer> visited = new ArrayList<>();
+        set.forEach(visited::add);
+        if (visited.size() != 2 || !set.containsAll(visited)) fail();
+
+        // shrinks through the iterator of the HashSet, then by remove
+        set.clear();
+        for (int i = 0; i < 10; ++i) {
+            set.add(i);
+        }
+        if (!set.removeIf(i -> i >= 2) || set.size() != 2) fail();
+        if (!set.remove(1) || set.size() != 1 || !set.contains(0) || !set.toString().equals("[0]")) fail();
+        if (!set.add(1) || !set.equals(new HashSet<>(Arrays.asList(0, 1)))) fail();
+
+        // elements which are sets or arrays themselves
+        HgCompactSet<Set<String>> sets = new HgCompactSet<>();
+        Set<String> a = new HashSet<>(Collections.singletonList("a"));
+        Set<String> b = new HashSet<>(Collections.singletonList("b"));
+        if (!sets.add(a) || !sets.add(b) || sets.size() != 2) fail();
+        if (a.size() != 1 || b.size() != 1 || !sets.contains(a) || !sets.contains(b)) fail();
+        if (!sets.remove(b) || sets.contains(b) || !sets.iterator().next().equals(a)) fail();
+
+        HgCompactSet<Object[]> arrays = new HgCompactSet<>();
+        Object[] single = {"x", "y"};
+        if (!arrays.add(single) || arrays.size() != 1 || arrays.iterator().next() != single) fail();
+        if (!arrays.contains(single) || !arrays.remove(single) || !arrays.isEmpty()) fail();
+    }
+
+    /**
+     * Records the changes pushed to a subscriber.
+     */
+    private static final class Recorder<T> implements HgSubscriber<T> {
+        final List<T> inserted = new ArrayList<>();
+        final List<T> removed = new ArrayList<>();
+        final List<T> updated = new ArrayList<>();
+
+        @Override
+        public void inserted(T row) {
+            inserted.add(row);
+        }
+
+        @Override
+        public void removed(T row) {
+            removed.add(row);
+        }
+
+        @Override
+        public void updated(T row) {
+            updated.add(row);
+        }
+    }
+
+    /**
+     * Checks that a view of Order, Odetail and Zipcode holds the tuples
+     * of the same join run from scratch.
+     */
+    private static void checkJoinView(HgJoinView view) {
+        Set<List<Object>> expected = new HashSet<>(tupleRows(HgDB.join(
+                new JoinPredicate(OrderTable.on.ono(), OdetailTable.on.ono()),
+                new JoinPredicate(OdetailTable.on.qty(), ZipcodeTable.on.zip(), HgRelation.LT)),
+                OrderTable.ID, OdetailTable.ID, ZipcodeTable.ID));
+        List<List<Object>> actual = tupleRows(view.stream(), OrderTable.ID, OdetailTable.ID, ZipcodeTable.ID);
+        if (actual.size() != view.size() || actual.size() != expected.size()
+                || !expected.equals(new HashSet<>(actual))) fail();
+    }
+
+    /**
+     * Checks that the batches of stream hold the same rows as its tuples.
+     */
+    private static void checkBatches(HgTupleStream stream, TableID<?>... ids) {
+        List<List<Object>> tuples = tupleRows(stream, ids);
+        stream.reset();
+        List<List<Object>> batches = batchRows(stream, ids);
+        if (tuples.isEmpty() || !batches.equals(tuples)) fail();
+    }
+
+    private static List<List<Object>> tupleRows(HgTupleStream stream, TableID<?>... ids) {
+        List<List<Object>> rows = new ArrayList<>();
+        for (HgTuple t : stream) {
+            List<Object> row = new ArrayList<>();
+            for (TableID<?> id : ids) {
+                row.add(t.get(id));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static List<List<Object>> batchRows(HgTupleStream stream, TableID<?>... ids) {
+        List<List<Object>> rows = new ArrayList<>();
+        // a small batch, so that buckets are split across batches
+        HgTupleBatch batch = new HgTupleBatch(stream.newBatch().getStream(), 7);
+        while (stream.nextBatch(batch)) {
+            if (batch.size() == 0) fail();
+            for (int i = 0; i < batch.size(); ++i) {
+                List<Object> row = new ArrayList<>();
+                for (TableID<?> id : ids) {
+                    row.add(batch.get(i, id));
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Checks that the keys of the rows of test are the first k keys of
+     * the rows of src in order.
+     */
+    private static <T> void checkTop(HgStream<T> test, List<T> src, Comparator<T> order, ValueExtractable key, int k) {
+        List<Object> expected = src.stream().sorted(order).limit(k)
+                .map(key::extractValue).collect(Collectors.toList());
+        List<Object> actual = new ArrayList<>();
+        for (T row : test) {
+            actual.add(key.extractValue(row));
+        }
+        if (!actual.equals(expected)) fail(actual + " != " + expected);
+    }
+
+    private static long count(HgStream<?> stream) {
+        long count = 0;
+        for (Object o : stream) ++count;
+        return count;
+    }
+
+    private static long orderCount(HgPredicate<Order> pred) {
+        long count = 0;
+        for (Order o : OrderTable.stream()) {
+            if (pred.test(o)) ++count;
+        }
+        return count;
+    }
+
+    private static long customerCount(HgPredicate<Customer> pred) {
+        long count = 0;
+        for (Customer c : CustomerTable.stream()) {
+            if (pred.test(c)) ++count;
+        }
+        return count;
+    }
+
     public static HgTupleStream noIndexStream(HgTupleStream src) {
         return new HgWrappedTupleStream(src) {
             public boolean isIndexed() {